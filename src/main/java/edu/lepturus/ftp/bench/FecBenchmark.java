@@ -0,0 +1,266 @@
+package edu.lepturus.ftp.bench;
+
+import edu.lepturus.ftp.client.ReceivePipeline;
+import edu.lepturus.ftp.server.ChunkCache;
+import edu.lepturus.ftp.server.FileIdentity;
+import edu.lepturus.ftp.server.TransferCoordinator;
+import edu.lepturus.ftp.utils.DataPacket;
+import edu.lepturus.ftp.utils.FileInfo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 校验报文（FEC）的基准测试。
+ * 服务器的共享传输把报文发往本机的丢包中继，中继按给定丢包率随机丢弃后转发给客户端的接收流水线；
+ * 每个文件反复get（每次完整重传，与客户端重新get相同），直到CRC32一致或达到MAX_PASSES次。
+ * 对每个丢包率分别在不开启与开启校验报文时测量，输出平均get次数、发送的报文数、
+ * 每个文件的完成时间与有效吞吐量。各组合并行运行，互不影响，耗时主要取决于服务器的发送节奏。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class FecBenchmark {
+    private static final double[] LOSS_RATES = {0, 0.01, 0.02, 0.05, 0.10};
+    private static final int MAX_PASSES = 8;
+    private static final int RECEIVE_TIMEOUT = 1000;
+    private static final int RING_SIZE = 256;
+    private static final String LOCALHOST = "127.0.0.1";
+
+    private final int FILE_SIZE;
+    private final int PACKET_SIZE;
+    private final int TRIALS;
+    private final Path dir;
+    private final ChunkCache chunkCache = new ChunkCache(64L << 20);
+    private final TransferCoordinator coordinator = new TransferCoordinator(chunkCache);
+
+    /**
+     * @param FILE_SIZE 测试文件长度
+     * @param PACKET_SIZE 报文长度
+     * @param TRIALS 每种组合测试的文件数
+     * @param dir 存放测试文件的目录
+     */
+    public FecBenchmark(int FILE_SIZE, int PACKET_SIZE, int TRIALS, Path dir) {
+        this.FILE_SIZE = FILE_SIZE;
+        this.PACKET_SIZE = PACKET_SIZE;
+        this.TRIALS = TRIALS;
+        this.dir = dir;
+    }
+
+    /**
+     * 丢包中继：收到的报文按丢包率随机丢弃，其余转发到目标端口
+     */
+    private static class LossyRelay implements Runnable, Closeable {
+        private final DatagramSocket udpSocket;
+        private final InetSocketAddress target;
+        private final double lossRate;
+        private final Random random;
+        private final Thread thread;
+        private volatile long received = 0;
+
+        LossyRelay(InetSocketAddress target, double lossRate, Random random) throws IOException {
+            this.udpSocket = new DatagramSocket(0);
+            this.target = target;
+            this.lossRate = lossRate;
+            this.random = random;
+            this.thread = new Thread(this, "lossy-relay-" + udpSocket.getLocalPort());
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[DataPacket.MAX_PACKET_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                while (true) {
+                    packet.setLength(buffer.length);
+                    udpSocket.receive(packet);
+                    ++received;
+                    if (random.nextDouble() >= lossRate) {
+                        packet.setSocketAddress(target);
+                        udpSocket.send(packet);
+                    }
+                }
+            } catch (IOException e) {
+                // 中继已关闭
+            }
+        }
+
+        int getPort() {
+            return udpSocket.getLocalPort();
+        }
+
+        /**
+         * @return 服务器发出的报文数（丢弃前）
+         */
+        long getReceived() {
+            return received;
+        }
+
+        @Override
+        public void close() {
+            udpSocket.close();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 运行所有丢包率与开关组合并输出结果
+     *
+     * @throws IOException 无法创建测试文件
+     * @throws InterruptedException 被中断
+     * @throws ExecutionException 某个组合失败
+     */
+    public void run() throws IOException, InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<Future<String>> rows = new ArrayList<>();
+        int id = 0;
+        for (double lossRate : LOSS_RATES) {
+            for (boolean fec : new boolean[]{false, true}) {
+                int seed = id++;
+                rows.add(executor.submit(() -> measure(seed, lossRate, fec)));
+            }
+        }
+        try {
+            List<String> table = new ArrayList<>();
+            for (Future<String> row : rows) {
+                table.add(row.get());
+            }
+            // 共享传输的日志与结果都在标准输出上，全部完成后再一起输出表格
+            System.out.println(String.format("%d-byte files, %d-byte packets, %d files per row, at most %d gets per file",
+                    FILE_SIZE, PACKET_SIZE, TRIALS, MAX_PASSES));
+            System.out.println(String.format("%5s %4s %4s %7s %8s %10s %12s %8s",
+                    "loss", "FEC", "K", "passes", "packets", "time/file", "goodput", "gave up"));
+            for (String row : table) {
+                System.out.println(row);
+            }
+        } finally {
+            executor.shutdownNow();
+            coordinator.shutdown();
+            chunkCache.shutdown();
+        }
+    }
+
+    /**
+     * 测量一种组合：TRIALS个内容不同的文件，每个反复get直到校验通过
+     *
+     * @param seed 文件内容与丢包的随机种子，也用于区分文件名
+     * @param lossRate 丢包率
+     * @param fec 是否发送校验报文
+     * @return 结果一行
+     */
+    private String measure(int seed, double lossRate, boolean fec) throws IOException {
+        int fecGroupSize = fec ? DataPacket.fecGroupSize(lossRate) : 0;
+        Random random = new Random(seed);
+        long passes = 0;
+        long packets = 0;
+        long nanos = 0;
+        int gaveUp = 0;
+        for (int trial = 0; trial < TRIALS; ++trial) {
+            Path source = dir.resolve("src-" + seed + "-" + trial + ".bin");
+            Path target = dir.resolve("dst-" + seed + "-" + trial + ".bin");
+            byte[] data = new byte[FILE_SIZE];
+            random.nextBytes(data);
+            Files.write(source, data);
+            String crc32 = FileInfo.crc32Calculator(source);
+            FileIdentity identity = FileIdentity.of(source);
+            long start = System.nanoTime();
+            for (int pass = 1; ; ++pass) {
+                ++passes;
+                packets += get(identity, target, fecGroupSize, lossRate, random);
+                if (crc32.equals(FileInfo.crc32Calculator(target))) {
+                    break;
+                }
+                if (pass == MAX_PASSES) {
+                    ++gaveUp;
+                    break;
+                }
+            }
+            nanos += System.nanoTime() - start;
+            Files.delete(source);
+            Files.delete(target);
+        }
+        double seconds = nanos / 1e9 / TRIALS;
+        return String.format("%4.0f%% %4s %4s %7.2f %8.1f %8.1f s %7.1f KB/s %8d",
+                lossRate * 100, fec ? "on" : "off", fec ? Integer.toString(fecGroupSize) : "-",
+                (double) passes / TRIALS, (double) packets / TRIALS, seconds,
+                FILE_SIZE / 1000.0 / seconds, gaveUp);
+    }
+
+    /**
+     * 经丢包中继完整传输一次文件
+     *
+     * @return 服务器发出的报文数，含校验报文
+     */
+    private long get(FileIdentity identity, Path target, int fecGroupSize, double lossRate, Random random)
+            throws IOException {
+        try (DatagramSocket udpSocket = new DatagramSocket(0)) {
+            udpSocket.setReceiveBufferSize(8 << 20);
+            udpSocket.setSoTimeout(RECEIVE_TIMEOUT);
+            InetAddress localhost = InetAddress.getByName(LOCALHOST);
+            try (LossyRelay relay = new LossyRelay(
+                    new InetSocketAddress(localhost, udpSocket.getLocalPort()), lossRate, random)) {
+                CompletableFuture<Void> subscription = coordinator.subscribe(
+                        identity, PACKET_SIZE, fecGroupSize, localhost, relay.getPort());
+                ReceivePipeline pipeline = new ReceivePipeline(udpSocket, PACKET_SIZE, RING_SIZE);
+                try (FileChannel channel = FileChannel.open(target,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    pipeline.receive(channel, DataPacket.packetCount(identity.getSize(), PACKET_SIZE),
+                            DataPacket.payloadSize(PACKET_SIZE), fecGroupSize);
+                } finally {
+                    subscription.cancel(false);
+                }
+                return relay.getReceived();
+            }
+        }
+    }
+
+    /**
+     * args[0]: 文件长度（可选，默认150000）
+     * args[1]: 报文长度（可选，默认4096）
+     * args[2]: 每种组合的文件数（可选，默认3）
+     *
+     * @param args args
+     */
+    public static void main(String[] args) {
+        try {
+            int fileSize = args.length > 0 ? Integer.parseInt(args[0]) : 150000;
+            int packetSize = DataPacket.negotiate(args.length > 1 ? Integer.parseInt(args[1]) : 4096);
+            int trials = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+            Path dir = Files.createTempDirectory("fec-bench");
+            try {
+                new FecBenchmark(fileSize, packetSize, trials, dir).run();
+            } finally {
+                Files.delete(dir);
+            }
+        } catch (IOException | ExecutionException | RuntimeException e) {
+            System.err.println(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package edu.lepturus.ftp.bench;
+
+import edu.lepturus.ftp.server.CommandHandler;
+import edu.lepturus.ftp.server.CommandLexer;
+import edu.lepturus.ftp.server.CommandRegistry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * 命令解析与分派的微基准测试。
+ * 对几种典型命令行反复执行CommandLexer.read与CommandRegistry.dispatch，
+ * 命令行经BufferedReader从循环重复同一行的输入读取，含折行；
+ * 处理函数为空操作，只测读取、解析与查表；输出每秒命令数，
+ * JVM支持时还输出每条命令在本线程上分配的字节数（稳态下应为0）。
+ * 前WARMUP_ROUNDS轮用于预热，不计入结果。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class LexerBenchmark {
+    private static final String[] LINES = {
+            "ls",
+            "cd \"my dir\"",
+            "get \"some dir/file name.bin\" 1a2b3c4d",
+            "job 40000 get 'it\\'s here.txt' 1a2b3c4d",
+            "  get big.bin \\\n    1a2b3c4d  ",
+    };
+    private static final String[] COMMANDS = {"ls", "cd", "get", "job", "delta", "size", "probe", "cache"};
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    private final int ITERATIONS;
+    private final CommandLexer lexer = new CommandLexer();
+    private final CommandRegistry registry = new CommandRegistry();
+    private long dispatched = 0;
+
+    /**
+     * @param ITERATIONS 每轮每种命令行的次数
+     */
+    public LexerBenchmark(int ITERATIONS) {
+        this.ITERATIONS = ITERATIONS;
+        for (String name : COMMANDS) {
+            registry.register(name, 0, 5, args -> ++dispatched);
+        }
+    }
+
+    /**
+     * 无限重复同一段文本的输入，读取时不分配对象
+     */
+    private static class RepeatingReader extends Reader {
+        private final char[] text;
+        private int position = 0;
+
+        RepeatingReader(String text) {
+            this.text = text.toCharArray();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            int n = 0;
+            while (n < len) {
+                int chunk = Math.min(len - n, text.length - position);
+                System.arraycopy(text, position, cbuf, off + n, chunk);
+                n += chunk;
+                position = (position + chunk) % text.length;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * 依次测量每种命令行并输出结果
+     *
+     * @throws IOException 解析失败
+     * @throws CommandHandler.NoSuchCommandException 命令未注册
+     * @throws CommandHandler.ArgumentCountException 参数个数超出注册的范围
+     */
+    public void run() throws IOException, CommandHandler.NoSuchCommandException,
+            CommandHandler.ArgumentCountException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads
+                : null;
+        long thread = Thread.currentThread().getId();
+        System.out.println(String.format("%-44s %12s %14s", "command line", "M cmds/s", "bytes/cmd"));
+        for (String line : LINES) {
+            BufferedReader in = new BufferedReader(new RepeatingReader(line + "\n"));
+            double best = 0;
+            long allocated = 0;
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; ++round) {
+                long bytesBefore = allocations != null ? allocations.getThreadAllocatedBytes(thread) : 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; ++i) {
+                    lexer.read(in);
+                    registry.dispatch(lexer);
+                }
+                long nanos = System.nanoTime() - start;
+                long bytes = allocations != null ? allocations.getThreadAllocatedBytes(thread) - bytesBefore : 0;
+                if (round >= WARMUP_ROUNDS) {
+                    best = Math.max(best, ITERATIONS / (nanos / 1e9) / 1e6);
+                    allocated += bytes;
+                }
+            }
+            System.out.println(String.format("%-44s %12.1f %14s", line.replace("\n", "\\n"), best,
+                    allocations != null ? String.format("%.2f", (double) allocated / ROUNDS / ITERATIONS) : "-"));
+        }
+        long expected = (long) LINES.length * (WARMUP_ROUNDS + ROUNDS) * ITERATIONS;
+        if (dispatched != expected) {
+            System.err.println("Dispatched " + dispatched + " commands, expected " + expected);
+        }
+    }
+
+    /**
+     * args[0]: 每轮每种命令行的次数（可选，默认5000000）
+     *
+     * @param args args
+     */
+    public static void main(String[] args) {
+        try {
+            new LexerBenchmark(args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000).run();
+        } catch (IOException | CommandHandler.NoSuchCommandException
+                 | CommandHandler.ArgumentCountException | RuntimeException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
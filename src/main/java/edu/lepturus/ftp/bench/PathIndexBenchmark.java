@@ -0,0 +1,155 @@
+package edu.lepturus.ftp.bench;
+
+import edu.lepturus.ftp.server.PathIndex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 路径索引的基准测试。
+ * 在临时目录下生成DIRS个目录、每个目录FILES个文件名各不相同的文件，建立PathIndex，输出建立耗时、
+ * stats()的估算与实测的堆占用（建立前后各做几次GC后比较已用堆，含WatchService在堆上的簿记），
+ * 以及前缀与子串查找的耗时；
+ * 然后在一个目录里反复新建又删除CHURN个新名字的文件，输出前后的文件名数与堆占用，
+ * 不再使用的文件名应被回收，文件名池不随新建删除的次数增长。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class PathIndexBenchmark {
+    private static final int QUERY_ROUNDS = 200;
+    private static final int CHURN_BATCH = 1000;
+    private static final long POLL_INTERVAL = 10;
+
+    private final int DIRS;
+    private final int FILES;
+    private final int CHURN;
+
+    /**
+     * @param DIRS 目录数
+     * @param FILES 每个目录的文件数
+     * @param CHURN 新建又删除的文件数
+     */
+    public PathIndexBenchmark(int DIRS, int FILES, int CHURN) {
+        this.DIRS = DIRS;
+        this.FILES = FILES;
+        this.CHURN = CHURN;
+    }
+
+    /**
+     * 生成目录树并依次测量
+     *
+     * @throws IOException 无法创建测试目录
+     * @throws InterruptedException 被中断
+     */
+    public void run() throws IOException, InterruptedException {
+        Path root = Files.createTempDirectory("path-index-bench");
+        try {
+            for (int i = 0; i < DIRS; ++i) {
+                Path dir = Files.createDirectory(root.resolve("dir-" + i));
+                for (int j = 0; j < FILES; ++j) {
+                    Files.createFile(dir.resolve("file-" + i + "-" + j + ".dat"));
+                }
+            }
+            long paths = (long) DIRS * (FILES + 1);
+            long before = usedHeap();
+            long start = System.nanoTime();
+            PathIndex index = new PathIndex(root);
+            try {
+                while (index.find(Paths.get(""), "file-0-0.dat", 1) == null) {
+                    TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL);
+                }
+                double buildMillis = (System.nanoTime() - start) / 1e6;
+                long built = usedHeap() - before;
+                System.out.println(String.format("%d paths in %d directories, built in %.0f ms", paths, DIRS, buildMillis));
+                System.out.println("estimate: " + index.stats());
+                System.out.println(String.format("measured: %.2f MiB (%.1f B/path)",
+                        built / (1024.0 * 1024.0), (double) built / paths));
+                query(index, "file-" + (DIRS / 2) + "-1*");
+                query(index, "-" + (FILES / 2) + ".dat");
+                churn(index, root.resolve("dir-0"));
+                long churned = usedHeap() - before;
+                System.out.println(String.format("after %d create/delete: %s", CHURN, index.stats()));
+                System.out.println(String.format("measured: %.2f MiB (%.1f B/path)",
+                        churned / (1024.0 * 1024.0), (double) churned / paths));
+            } finally {
+                index.close();
+            }
+        } finally {
+            try (Stream<Path> walk = Files.walk(root)) {
+                walk.sorted(Comparator.reverseOrder()).forEach(path -> {
+                    try {
+                        Files.delete(path);
+                    } catch (IOException e) {
+                        System.err.println(e.getMessage());
+                    }
+                });
+            }
+        }
+    }
+
+    private static void query(PathIndex index, String pattern) {
+        int results = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERY_ROUNDS; ++i) {
+            List<String> found = index.find(Paths.get(""), pattern, Integer.MAX_VALUE);
+            results = found.size();
+        }
+        System.out.println(String.format("find %-20s %6d results, %8.1f us/query",
+                pattern, results, (System.nanoTime() - start) / 1e3 / QUERY_ROUNDS));
+    }
+
+    /**
+     * 分批新建又删除新名字的文件，每批结束时新建一个标记文件，等它进入索引，说明之前的事件已处理完
+     */
+    private void churn(PathIndex index, Path dir) throws IOException, InterruptedException {
+        for (int done = 0, batch = 0; done < CHURN; ++batch) {
+            for (int i = 0; i < CHURN_BATCH && done < CHURN; ++i, ++done) {
+                Path file = Files.createFile(dir.resolve("churn-" + done + ".tmp"));
+                Files.delete(file);
+            }
+            String marker = "marker-" + batch;
+            Path markerFile = Files.createFile(dir.resolve(marker));
+            List<String> found;
+            while ((found = index.find(Paths.get(""), marker, 1)) == null || found.isEmpty()) {
+                TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL);
+            }
+            Files.delete(markerFile);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; ++i) {
+            System.gc();
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * args[0]: 目录数（可选，默认200）
+     * args[1]: 每个目录的文件数（可选，默认1000）
+     * args[2]: 新建又删除的文件数（可选，默认400000）
+     *
+     * @param args args
+     */
+    public static void main(String[] args) {
+        try {
+            new PathIndexBenchmark(
+                    args.length > 0 ? Integer.parseInt(args[0]) : 200,
+                    args.length > 1 ? Integer.parseInt(args[1]) : 1000,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 400000).run();
+        } catch (IOException | RuntimeException e) {
+            System.err.println(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
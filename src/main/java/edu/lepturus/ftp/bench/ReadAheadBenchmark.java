@@ -0,0 +1,218 @@
+package edu.lepturus.ftp.bench;
+
+import edu.lepturus.ftp.server.ChunkCache;
+import edu.lepturus.ftp.server.FileIdentity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 块预读的基准测试。
+ * 用每次定位读取都额外等待DISK_LATENCY的文件通道模拟慢磁盘，
+ * 发送方每读一块后花SEND_INTERVAL“发送”，与共享传输和区间发送的读取方式相同；
+ * 分别在不预读与按readAheadDepth预读时顺序读完CHUNKS块，输出每块平均耗时与缓存统计。
+ * 不预读时每块耗时约为两者之和，预读使读盘与发送重叠，接近两者中较大的一个。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class ReadAheadBenchmark {
+    private final int CHUNKS;
+    private final long DISK_LATENCY;
+    private final long SEND_INTERVAL;
+
+    /**
+     * @param CHUNKS 测试文件的块数
+     * @param DISK_LATENCY 每次读盘额外等待的毫秒数
+     * @param SEND_INTERVAL 发送方消耗一块的毫秒数
+     */
+    public ReadAheadBenchmark(int CHUNKS, long DISK_LATENCY, long SEND_INTERVAL) {
+        this.CHUNKS = CHUNKS;
+        this.DISK_LATENCY = DISK_LATENCY;
+        this.SEND_INTERVAL = SEND_INTERVAL;
+    }
+
+    /**
+     * 每次定位读取前等待固定时间的文件通道，其余操作直接委托
+     */
+    private static class SlowChannel extends FileChannel {
+        private final FileChannel channel;
+        private final long latency;
+
+        SlowChannel(FileChannel channel, long latency) {
+            this.channel = channel;
+            this.latency = latency;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * 生成测试文件，分别测量不预读与预读
+     *
+     * @throws IOException 无法创建或读取测试文件
+     * @throws InterruptedException 被中断
+     */
+    public void run() throws IOException, InterruptedException {
+        Path file = Files.createTempFile("read-ahead-bench", ".bin");
+        try {
+            byte[] data = new byte[CHUNKS * ChunkCache.CHUNK_SIZE];
+            new Random(0).nextBytes(data);
+            Files.write(file, data);
+            System.out.println(String.format("%d chunks of %d bytes, %d ms per disk read, %d ms sending per chunk",
+                    CHUNKS, ChunkCache.CHUNK_SIZE, DISK_LATENCY, SEND_INTERVAL));
+            measure(file, false);
+            measure(file, true);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private void measure(Path file, boolean readAhead) throws IOException, InterruptedException {
+        ChunkCache cache = new ChunkCache((long) CHUNKS * ChunkCache.CHUNK_SIZE * 2);
+        FileIdentity identity = FileIdentity.of(file);
+        ChunkCache.Cursor cursor = new ChunkCache.Cursor();
+        byte[] buffer = new byte[ChunkCache.CHUNK_SIZE];
+        long chunkInterval = TimeUnit.MILLISECONDS.toNanos(SEND_INTERVAL);
+        int maxDepth = 0;
+        long start = System.nanoTime();
+        try (FileChannel channel = new SlowChannel(FileChannel.open(file, StandardOpenOption.READ), DISK_LATENCY)) {
+            for (int i = 0; i < CHUNKS; ++i) {
+                long position = (long) i * ChunkCache.CHUNK_SIZE;
+                if (readAhead) {
+                    int depth = cache.readAheadDepth(chunkInterval);
+                    maxDepth = Math.max(maxDepth, depth);
+                    cache.readAhead(identity, channel, position, identity.getSize(), depth);
+                }
+                cache.read(identity, channel, position, buffer, 0, buffer.length, cursor);
+                TimeUnit.MILLISECONDS.sleep(SEND_INTERVAL);
+            }
+        } finally {
+            cache.shutdown();
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        System.out.println(String.format("%-20s %6.1f ms/chunk%s  %s",
+                readAhead ? "with read-ahead:" : "without read-ahead:", millis / CHUNKS,
+                readAhead ? " (depth up to " + maxDepth + ")" : "", cache.stats()));
+    }
+
+    /**
+     * args[0]: 块数（可选，默认40）
+     * args[1]: 每次读盘的额外延迟毫秒数（可选，默认50）
+     * args[2]: 发送一块的毫秒数（可选，默认20）
+     *
+     * @param args args
+     */
+    public static void main(String[] args) {
+        try {
+            new ReadAheadBenchmark(
+                    args.length > 0 ? Integer.parseInt(args[0]) : 40,
+                    args.length > 1 ? Long.parseLong(args[1]) : 50,
+                    args.length > 2 ? Long.parseLong(args[2]) : 20).run();
+        } catch (IOException | RuntimeException e) {
+            System.err.println(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
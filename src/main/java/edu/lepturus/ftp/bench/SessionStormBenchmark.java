@@ -0,0 +1,222 @@
+package edu.lepturus.ftp.bench;
+
+import edu.lepturus.ftp.server.FileServer;
+import edu.lepturus.ftp.utils.Reply;
+import edu.lepturus.ftp.utils.SessionInfo;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连接风暴基准测试。
+ * 在本进程内启动一个服务器（空的临时根目录），CLIENTS个客户端线程各自反复完成
+ * “连接、握手、读到欢迎回复、bye、断开”，共SESSIONS个会话，输出每秒完成的会话数、
+ * 握手延迟（从连接到读完欢迎回复）的分位数和繁忙拒绝数。
+ * 可同时放入SLOW_CLIENTS个逐字节拖延握手的慢客户端（每秒一个字节），
+ * 它们应在握手截止时被断开，不能让正常客户端的握手停滞。
+ * 测量期间服务器的日志输出被丢弃。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class SessionStormBenchmark {
+    private static final String LOCALHOST = "127.0.0.1";
+    private static final long SLOW_BYTE_INTERVAL = 1000;
+
+    private final int SESSIONS;
+    private final int CLIENTS;
+    private final int SLOW_CLIENTS;
+
+    private final AtomicInteger remaining = new AtomicInteger();
+    private final AtomicInteger busy = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param SESSIONS 正常会话总数
+     * @param CLIENTS 并发的正常客户端数
+     * @param SLOW_CLIENTS 慢客户端数
+     */
+    public SessionStormBenchmark(int SESSIONS, int CLIENTS, int SLOW_CLIENTS) {
+        this.SESSIONS = SESSIONS;
+        this.CLIENTS = CLIENTS;
+        this.SLOW_CLIENTS = SLOW_CLIENTS;
+    }
+
+    /**
+     * 启动服务器，运行风暴并输出结果
+     *
+     * @throws IOException 无法启动服务器
+     * @throws InterruptedException 被中断
+     */
+    public void run() throws IOException, InterruptedException {
+        Path root = Files.createTempDirectory("storm-bench");
+        PrintStream console = System.out;
+        FileServer server = new FileServer(0, root);
+        int port = server.getTcpSocket().getLocalPort();
+        Thread serverThread = new Thread(server::run, "storm-server");
+        serverThread.start();
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        List<Thread> slow = new ArrayList<>();
+        long[] slowHeld = new long[SLOW_CLIENTS];
+        long elapsed;
+        try {
+            for (int i = 0; i < SLOW_CLIENTS; ++i) {
+                int index = i;
+                Thread thread = new Thread(() -> slowHandshake(port, slowHeld, index), "storm-slow-" + i);
+                thread.setDaemon(true);
+                thread.start();
+                slow.add(thread);
+            }
+            // 慢客户端先占上握手线程
+            TimeUnit.MILLISECONDS.sleep(SLOW_CLIENTS > 0 ? 500 : 0);
+            remaining.set(SESSIONS);
+            List<Thread> clients = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < CLIENTS; ++i) {
+                Thread thread = new Thread(() -> storm(port), "storm-client-" + i);
+                thread.start();
+                clients.add(thread);
+            }
+            for (Thread thread : clients) {
+                thread.join();
+            }
+            elapsed = System.nanoTime() - start;
+            for (Thread thread : slow) {
+                thread.join();
+            }
+        } finally {
+            System.setOut(console);
+            server.shutdown();
+            serverThread.join();
+            Files.delete(root);
+        }
+        report(elapsed, slowHeld);
+    }
+
+    /**
+     * 一个正常客户端：不断领取会话直到总数用完
+     */
+    private void storm(int port) {
+        while (remaining.getAndDecrement() > 0) {
+            long start = System.nanoTime();
+            try (Socket socket = new Socket(LOCALHOST, port)) {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                out.write(SessionInfo.sessionInfoToJsonString(new SessionInfo(UUID.randomUUID(),
+                        InetAddress.getByName(LOCALHOST), socket.getLocalPort(), 9, 1472)) + "\n");
+                out.flush();
+                String line;
+                while ((line = in.readLine()) != null && !Reply.isEnd(line)) {
+                    if (line.startsWith(Reply.BUSY)) {
+                        break;
+                    }
+                }
+                if (line == null) {
+                    failed.incrementAndGet();
+                    continue;
+                }
+                if (line.startsWith(Reply.BUSY)) {
+                    busy.incrementAndGet();
+                    continue;
+                }
+                latencies.add(System.nanoTime() - start);
+                out.write("bye\n");
+                out.flush();
+                in.readLine();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 一个慢客户端：每秒发送会话信息的一个字节，记录连接被服务器关闭前坚持的时间
+     */
+    private void slowHandshake(int port, long[] held, int index) {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket(LOCALHOST, port)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            socket.setSoTimeout((int) SLOW_BYTE_INTERVAL);
+            while (true) {
+                out.write('{');
+                out.flush();
+                try {
+                    if (in.read() < 0) {
+                        break;
+                    }
+                } catch (java.net.SocketTimeoutException e) {
+                    // 服务器尚未关闭连接，继续拖延
+                }
+            }
+        } catch (IOException e) {
+            // 连接被服务器关闭
+        }
+        held[index] = System.nanoTime() - start;
+    }
+
+    private void report(long elapsed, long[] slowHeld) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        double seconds = elapsed / 1e9;
+        System.out.println(String.format("%d sessions, %d clients, %d slow clients: %.2f s, %.0f sessions/s",
+                SESSIONS, CLIENTS, SLOW_CLIENTS, seconds, sorted.size() / seconds));
+        if (!sorted.isEmpty()) {
+            System.out.println(String.format("handshake p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                    percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6,
+                    sorted.get(sorted.size() - 1) / 1e6));
+        }
+        System.out.println("completed " + sorted.size() + ", busy " + busy.get() + ", failed " + failed.get());
+        if (slowHeld.length > 0) {
+            long longest = 0;
+            for (long held : slowHeld) {
+                longest = Math.max(longest, held);
+            }
+            System.out.println(String.format("slow clients disconnected after at most %.1f s", longest / 1e9));
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(p * sorted.size()) - 1));
+    }
+
+    /**
+     * args[0]: 正常会话总数（可选，默认20000）
+     * args[1]: 并发的正常客户端数（可选，默认8）
+     * args[2]: 慢客户端数（可选，默认0）
+     *
+     * @param args args
+     */
+    public static void main(String[] args) {
+        try {
+            new SessionStormBenchmark(
+                    args.length > 0 ? Integer.parseInt(args[0]) : 20000,
+                    args.length > 1 ? Integer.parseInt(args[1]) : 8,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 0).run();
+        } catch (IOException | RuntimeException e) {
+            System.err.println(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
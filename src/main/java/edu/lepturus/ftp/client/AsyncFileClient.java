@@ -0,0 +1,214 @@
+package edu.lepturus.ftp.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 可嵌入的异步客户端。
+ * 不读取标准输入，ls、cd、get均返回CompletableFuture；
+ * 内部维护一个已握手控制连接的池，连接在请求之间复用，每个连接各自持有UDP套接字，
+ * 因此最多POOL_SIZE个传输并发进行，其余请求排队等待空闲连接。
+ * 工作目录由客户端统一维护，借出的连接若与之不一致会先切换过去。
+ * 每个请求使用提交时的工作目录：cd之后提交的请求等cd完成后在新目录下执行，之前提交的不受影响。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class AsyncFileClient implements AutoCloseable {
+    private static final int DEFAULT_PACKET_SIZE = 32768;
+
+    private final InetAddress HOST_ADDR;
+    private final int HOST_PORT;
+    private final InetAddress CLIENT_ADDR;
+    private final Path ROOT;
+    private final int POOL_SIZE;
+
+    private final BlockingQueue<ControlConnection> idle = new LinkedBlockingQueue<>();
+    private final AtomicInteger opened = new AtomicInteger();
+    private final ConcurrentMap<String, CompletableFuture<FileReceiver.Result>> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final ContentIndex contentIndex;
+    /**
+     * 最近一次提交的cd完成后的工作目录；cd失败时保持原目录，不会异常完成
+     */
+    private volatile CompletableFuture<String> cwd = CompletableFuture.completedFuture("/");
+    private volatile boolean closed = false;
+
+    /**
+     * 连接上执行的操作
+     */
+    @FunctionalInterface
+    private interface ConnectionTask<T> {
+        T run(ControlConnection connection) throws IOException;
+    }
+
+    public AsyncFileClient(InetAddress HOST_ADDR,
+                           int HOST_PORT,
+                           InetAddress CLIENT_ADDR,
+                           Path ROOT,
+                           int POOL_SIZE) {
+        this.HOST_ADDR = HOST_ADDR;
+        this.HOST_PORT = HOST_PORT;
+        this.CLIENT_ADDR = CLIENT_ADDR;
+        this.ROOT = ROOT;
+        this.POOL_SIZE = POOL_SIZE;
+        this.contentIndex = new ContentIndex(ROOT);
+        this.executor = Executors.newFixedThreadPool(POOL_SIZE, r -> {
+            Thread thread = new Thread(r, "async-file-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return 客户端当前工作目录，有未完成的cd时等待其完成
+     */
+    public String getCwd() {
+        return cwd.join();
+    }
+
+    /**
+     * 列出目录
+     *
+     * @param path 相对于当前工作目录的路径，空串表示当前目录
+     * @return 服务器返回的各行
+     */
+    public CompletableFuture<List<String>> ls(String path) {
+        return submit(cwd, connection -> connection.command(
+                path.isEmpty() ? "ls" : "ls " + ControlConnection.quote(path)));
+    }
+
+    /**
+     * 切换工作目录
+     *
+     * @param path 相对于当前工作目录的路径
+     * @return 新的工作目录
+     */
+    public synchronized CompletableFuture<String> cd(String path) {
+        CompletableFuture<String> previous = cwd;
+        CompletableFuture<String> changed = submit(previous, connection -> {
+            List<String> response = connection.command("cd " + ControlConnection.quote(path));
+            if (!response.isEmpty()) {
+                throw new IOException(response.get(0));
+            }
+            return connection.getPwd();
+        });
+        cwd = changed.handle((dir, e) -> e == null ? dir : previous.join());
+        return changed;
+    }
+
+    /**
+     * 下载文件到ROOT，本地副本未改动时由服务器判断是否需要传输
+     *
+     * @param path 相对于当前工作目录的路径
+     * @return 接收结果；丢包或校验失败时以IOException异常完成
+     */
+    public CompletableFuture<FileReceiver.Result> get(String path) {
+        String fileName = Paths.get(path).getFileName().toString();
+        CompletableFuture<String> dir = cwd;
+        ConnectionTask<FileReceiver.Result> task = connection -> {
+            FileReceiver.Result result = connection.get(path, fileName);
+            if (!result.isVerified()) {
+                throw new IOException("File corrupted: " + fileName + ", received "
+                        + result.getReceivedPackets() + " of " + result.getFileInfo().getPacketCount() + " packets");
+            }
+            return result;
+        };
+        // 写同一个本地文件的下载依次进行，后者在前者完成后以条件get发出
+        CompletableFuture<FileReceiver.Result> future = inFlight.compute(fileName, (name, previous) ->
+                previous == null
+                        ? submit(dir, task)
+                        : previous.handle((result, e) -> null).thenCompose(ignored -> submit(dir, task)));
+        future.whenComplete((result, e) -> inFlight.remove(fileName, future));
+        return future;
+    }
+
+    /**
+     * 在连接池的连接上执行操作
+     *
+     * @param dir 提交时的工作目录
+     * @param task 操作
+     * @return 操作的结果
+     */
+    private <T> CompletableFuture<T> submit(CompletableFuture<String> dir, ConnectionTask<T> task) {
+        if (closed) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Client closed"));
+            return failed;
+        }
+        return dir.thenApplyAsync(directory -> run(directory, task), executor);
+    }
+
+    /**
+     * 借出连接执行操作；成功后归还，任何异常（含RuntimeException）都关闭该连接，连接池不会泄漏
+     */
+    private <T> T run(String directory, ConnectionTask<T> task) {
+        ControlConnection connection = null;
+        boolean reusable = false;
+        try {
+            connection = borrow();
+            connection.changeDirectory(directory);
+            T result = task.run(connection);
+            reusable = true;
+            return result;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } finally {
+            if (connection != null) {
+                if (reusable) {
+                    idle.add(connection);
+                } else {
+                    discard(connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * 借出一个空闲连接，不足POOL_SIZE时新建
+     */
+    private ControlConnection borrow() throws IOException, InterruptedException {
+        ControlConnection connection = idle.poll();
+        if (connection != null) {
+            return connection;
+        }
+        if (opened.incrementAndGet() <= POOL_SIZE) {
+            try {
+                return ControlConnection.open(HOST_ADDR, HOST_PORT, CLIENT_ADDR, DEFAULT_PACKET_SIZE, ROOT, contentIndex);
+            } catch (IOException e) {
+                opened.decrementAndGet();
+                throw e;
+            }
+        }
+        opened.decrementAndGet();
+        return idle.take();
+    }
+
+    private void discard(ControlConnection connection) {
+        opened.decrementAndGet();
+        connection.close();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ControlConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+}
@@ -1,15 +1,22 @@
 package edu.lepturus.ftp.client;
 
+import edu.lepturus.ftp.utils.DataPacket;
+import edu.lepturus.ftp.utils.DeltaCodec;
 import edu.lepturus.ftp.utils.FileInfo;
+import edu.lepturus.ftp.utils.Reply;
 
 import java.io.*;
 import java.net.*;
-import java.nio.file.Path;
-import java.util.Objects;
-import java.util.Scanner;
+import java.nio.file.*;
+import java.util.*;
 
 /**
- * 客户端会话类
+ * 客户端会话类。
+ * get作为后台下载进行，立即回到提示符；jobs列出下载进度，wait等待下载结束，cancel取消下载，
+ * 结束的下载在下一次提示符前报告结果。
+ * get -f跟随增长中的文件（如仍在写入的日志），从上次的检查点继续，直到cancel。
+ * 服务器支持失效通知时，ls与cd尽量由本地的目录列表缓存回答；本地cd后服务器端的工作目录
+ * 暂不改变，下一条发往服务器的命令之前再一并切换。
  *
  * @author T.lepturus
  * @version 1.0
@@ -22,6 +29,35 @@ public class ClientSession {
     private final int UDP_PACKET_SIZE;
     private final Path ROOT;
 
+    private final ContentIndex contentIndex;
+    private final SwarmDownloader swarm;
+    private String pwd;
+    /**
+     * 服务器端的工作目录，本地cd后与pwd不同
+     */
+    private String serverPwd;
+    private final ListingCache listingCache;
+    /**
+     * 已发出、尚未读取回复的同步工作目录命令数
+     */
+    private int pendingSync = 0;
+    static final int RECEIVE_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    private final boolean PROBE_PATH;
+    private boolean needProbe;
+    private static final int PROBE_WAIT = 500;
+
+    private final boolean FEC;
+    private int fecGroupSize = 0;
+    /**
+     * 数据报文丢包率（恢复之前）的指数加权平均及新样本的权重
+     */
+    private double lossRate = 0;
+    private static final double LOSS_WEIGHT = 0.5;
+
+    private final Map<Integer, DownloadJob> jobs = new TreeMap<>();
+    private static final long WAIT_POLL = 200;
+
     private final Object runLock = new Object();
     private static final long RUN_DELTA = 1;
 
@@ -33,35 +69,125 @@ public class ClientSession {
             BufferedWriter tcpOut,
             DatagramSocket udpSocket,
             int UDP_PACKET_SIZE,
-            Path ROOT) throws SocketException {
+            Path ROOT,
+            boolean PROBE_PATH,
+            boolean FEC,
+            boolean LISTING_CACHE,
+            List<InetSocketAddress> REPLICAS) throws SocketException {
         this.tcpSocket = tcpSocket;
         this.tcpSocket.setSoTimeout(0);
         this.tcpIn = tcpIn;
         this.tcpOut = tcpOut;
         this.udpSocket = udpSocket;
         this.udpSocket.setSoTimeout(0);
+        this.udpSocket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
         this.UDP_PACKET_SIZE = UDP_PACKET_SIZE;
         this.ROOT = ROOT;
+        this.contentIndex = new ContentIndex(ROOT);
+        this.PROBE_PATH = PROBE_PATH;
+        this.needProbe = PROBE_PATH;
+        this.FEC = FEC;
+        this.listingCache = LISTING_CACHE ? new ListingCache() : null;
+        this.swarm = REPLICAS.size() > 1
+                ? new SwarmDownloader(REPLICAS, tcpSocket.getLocalAddress(), UDP_PACKET_SIZE, ROOT, contentIndex)
+                : null;
     }
 
     public void run() {
         try (Scanner scanner = new Scanner(System.in)) {
-            String line = tcpIn.readLine();
-            System.out.println(line);
+            readResponse();
+            System.out.println(pwd);
             while (true) {
+                readNotices();
+                reportFinishedJobs();
                 System.out.print(PS);
                 String userInput = scanner.nextLine();
-                tcpOut.write(userInput);
+                String[] words = userInput.trim().split("\\s+");
+                if (swarm != null && words.length == 2 && words[0].equals("get")) {
+                    swarmDownload(words[1]);
+                    System.out.println(pwd);
+                    continue;
+                }
+                if (words.length == 1 && words[0].equals("jobs")) {
+                    listJobs();
+                    System.out.println(pwd);
+                    continue;
+                }
+                if (words.length <= 2 && words[0].equals("wait")) {
+                    waitJobs(words.length == 2 ? words[1] : null);
+                    System.out.println(pwd);
+                    continue;
+                }
+                if (listingCache != null && answerLocally(userInput, words)) {
+                    System.out.println(pwd);
+                    continue;
+                }
+                syncDirectory();
+                boolean isGet = words.length >= 2 && words[0].equals("get");
+                if (needProbe && isGet) {
+                    probePath();
+                }
+                if (FEC && isGet && DataPacket.fecGroupSize(lossRate) != fecGroupSize) {
+                    reportLoss();
+                }
+                int deltaBlockSize = 0;
+                String followName = null;
+                long followOffset = 0;
+                String command = userInput;
+                List<String> signatureLines = Collections.emptyList();
+                if (words.length == 3 && words[0].equals("get") && words[1].equals("-d")) {
+                    Path local = ROOT.resolve(Paths.get(words[2]).getFileName());
+                    int blockSize = Files.isRegularFile(local) ? DeltaCodec.blockSize(Files.size(local)) : 0;
+                    if (blockSize > 0 && (Files.size(local) + blockSize - 1) / blockSize <= DeltaCodec.MAX_BLOCKS) {
+                        deltaBlockSize = blockSize;
+                        byte[] signatures = DeltaCodec.signatures(local, deltaBlockSize);
+                        command = "delta " + words[2] + " " + deltaBlockSize + " "
+                                + signatures.length / DeltaCodec.SIGNATURE_SIZE;
+                        signatureLines = DeltaCodec.signatureLines(signatures);
+                    } else {
+                        command = "get " + words[2];
+                    }
+                } else if (words.length == 3 && words[0].equals("get") && words[1].equals("-f")) {
+                    followName = Paths.get(words[2]).getFileName().toString();
+                    followOffset = contentIndex.checkpoint(followName);
+                    command = "follow " + words[2] + " " + followOffset;
+                    if (followOffset > 0) {
+                        command += " " + contentIndex.checkpointIdentity(followName);
+                    }
+                } else if (words.length == 2 && words[0].equals("get")) {
+                    String crc32 = contentIndex.lookup(Paths.get(words[1]).getFileName().toString());
+                    if (crc32 != null) {
+                        command = "get " + words[1] + " " + crc32;
+                    }
+                }
+                DownloadJob job = null;
+                if (isGet) {
+                    job = followName != null
+                            ? new DownloadJob(UDP_PACKET_SIZE, ROOT, contentIndex, followName, followOffset)
+                            : new DownloadJob(UDP_PACKET_SIZE, ROOT, contentIndex, deltaBlockSize);
+                    command = "job " + job.getPort() + " " + command;
+                }
+                tcpOut.write(command);
                 tcpOut.newLine();
+                for (String line : signatureLines) {
+                    tcpOut.write(line);
+                    tcpOut.newLine();
+                }
                 tcpOut.flush();
-                if (userInput.trim().startsWith("get")) {
-                    receiveFileOverUDP();
-                }
-                String response;
-                do {
-                    response = tcpIn.readLine();
-                    System.out.println(response);
-                } while (tcpIn.ready());
+                List<String> response = readResponse();
+                if (job != null) {
+                    startJob(job, response);
+                } else {
+                    for (String line : response) {
+                        System.out.println(line);
+                    }
+                }
+                if (words.length == 2 && words[0].equals("cancel")) {
+                    cancelJob(words[1]);
+                }
+                if (pwd != null) {
+                    System.out.println(pwd);
+                }
                 if (userInput.trim().equals("bye")) {
                     break;
                 }
@@ -76,6 +202,20 @@ public class ClientSession {
         } catch (IOException e) {
             System.err.println(e.getMessage());
         } finally {
+            for (DownloadJob job : jobs.values()) {
+                job.cancel();
+            }
+            try {
+                // 等接收线程记录跟随下载的检查点
+                for (DownloadJob job : jobs.values()) {
+                    job.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (swarm != null) {
+                swarm.close();
+            }
             try {
                 udpSocket.close();
                 tcpSocket.close();
@@ -86,49 +226,406 @@ public class ClientSession {
     }
 
     /**
-     * 使用UDP接收文件（不保证可靠性）
+     * 探测路径上合适的报文长度并通知服务器。
+     * 服务器对每个候选长度发送若干探测报文，选出到达率接近最好水平的最大长度；
+     * 较大的报文一旦被IP分片，任何一片丢失都会导致整个报文丢失，到达数会明显下降。
+     * 无损的路径上分片不会造成丢包，到达数看不出分片，因此候选长度先限制在本机接口的免分片长度之内。
+     *
+     * @throws IOException IOException
      */
-    private void receiveFileOverUDP() {
+    private void probePath() throws IOException {
+        needProbe = false;
+        tcpOut.write("probe");
+        tcpOut.newLine();
+        tcpOut.flush();
+        int[] sizes = DataPacket.PROBE_SIZES;
+        int[] counts = new int[sizes.length];
         byte[] buffer = new byte[UDP_PACKET_SIZE];
         DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
         try {
-            System.out.println("Waiting for server response...");
-            udpSocket.setSoTimeout(3 * 1000);
-            udpSocket.receive(packet);
-            udpSocket.setSoTimeout(1000);
-            FileInfo fileInfo = FileInfo.bytesToFileInfo(packet.getData());
-            String fileName = fileInfo.getFileName();
-            long totalPackets = fileInfo.getPacketCount();
-            System.out.println("Start receiving file: " + fileName);
-            System.out.println("Total packet count: " + totalPackets);
-            Path filePath = ROOT.resolve(fileName);
-            try (FileOutputStream fos = new FileOutputStream(filePath.toFile())) {
-                long receivedPackets = 0;
-                while (receivedPackets < totalPackets) {
-                    udpSocket.receive(packet);
-                    System.out.println("Received packet number: " + receivedPackets);
-                    fos.write(packet.getData(),0, packet.getLength());
-                    ++receivedPackets;
-                }
-                System.out.println("All packets received.");
-            }
-            String srcCrc32 = fileInfo.getCrc32();
-            String dstCrc32 = FileInfo.crc32Calculator(filePath);
-            if (Objects.equals(srcCrc32, dstCrc32)) {
-                System.out.println("File transfer completed (CRC32 checked): " + ROOT.relativize(filePath));
+            udpSocket.setSoTimeout(PROBE_WAIT);
+            while (true) {
+                packet.setLength(buffer.length);
+                udpSocket.receive(packet);
+                long size = DataPacket.readOffset(buffer);
+                for (int i = 0; i < sizes.length; ++i) {
+                    if (sizes[i] == size && packet.getLength() == size) {
+                        ++counts[i];
+                    }
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // 探测报文接收完毕
+        } finally {
+            udpSocket.setSoTimeout(0);
+        }
+        readResponse();
+        int best = DataPacket.chooseProbedSize(sizes, counts, interfaceLimit());
+        if (best > 0) {
+            tcpOut.write("size " + best);
+            tcpOut.newLine();
+            tcpOut.flush();
+            for (String line : readResponse()) {
+                System.out.println(line);
+            }
+        }
+    }
+
+    /**
+     * @return 经控制连接所在的网络接口接收而不被分片的最大报文长度，无法确定时不限制
+     */
+    private int interfaceLimit() {
+        InetAddress local = tcpSocket.getLocalAddress();
+        try {
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(local);
+            if (networkInterface != null && networkInterface.getMTU() > 0) {
+                return DataPacket.unfragmentedSize(networkInterface.getMTU(), local instanceof Inet6Address);
+            }
+        } catch (SocketException e) {
+            System.err.println(e.getMessage());
+        }
+        return DataPacket.MAX_PACKET_SIZE;
+    }
+
+    /**
+     * 把观测到的丢包率告知服务器，服务器据此调整校验组大小。
+     * 只在按该丢包率选出的组大小与当前不同时发送，避免每次get多一次往返。
+     *
+     * @throws IOException IOException
+     */
+    private void reportLoss() throws IOException {
+        tcpOut.write("fec " + String.format(Locale.ROOT, "%.4f", lossRate));
+        tcpOut.newLine();
+        tcpOut.flush();
+        List<String> response = readResponse();
+        if (response.size() == 1 && response.get(0).startsWith("FEC group size")) {
+            fecGroupSize = DataPacket.fecGroupSize(lossRate);
+        }
+        for (String line : response) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * 读取一条命令的完整回复，服务器以带当前工作目录的结尾行（见Reply）结束一条回复。
+     * 先读掉同步工作目录的回复；缓存通知不属于回复，带“!watch”的ls回复存入缓存。
+     *
+     * @return 回复各行（不含工作目录行，工作目录存入pwd，连接关闭时pwd为null）
+     * @throws IOException IOException
+     */
+    private List<String> readResponse() throws IOException {
+        while (pendingSync > 0) {
+            --pendingSync;
+            for (String line : readResponse()) {
+                System.out.println(line);
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        String watched = null;
+        String line;
+        while ((line = tcpIn.readLine()) != null && !Reply.isEnd(line)) {
+            if (Reply.isNotice(line)) {
+                if (listingCache != null && line.startsWith(Reply.WATCH)) {
+                    watched = line.substring(Reply.WATCH.length());
+                } else {
+                    handleNotice(line);
+                }
+                continue;
+            }
+            lines.add(Reply.unescape(line));
+        }
+        if (watched != null && line != null) {
+            listingCache.put(watched, lines);
+        }
+        pwd = line == null ? null : Reply.pwd(line);
+        serverPwd = pwd;
+        return lines;
+    }
+
+    /**
+     * 处理两条回复之间服务器推送的通知，不阻塞
+     *
+     * @throws IOException IOException
+     */
+    private void readNotices() throws IOException {
+        while (pendingSync == 0 && tcpIn.ready()) {
+            String line = tcpIn.readLine();
+            if (line == null) {
+                throw new EOFException("Connection closed by server");
+            }
+            handleNotice(line);
+        }
+    }
+
+    /**
+     * 列表失效交给缓存；后台传输结束时通知对应的下载，其结果报文若已丢失便不再等待
+     *
+     * @param line 通知
+     */
+    private void handleNotice(String line) {
+        if (line.startsWith(Reply.JOB_FINISHED)) {
+            String id = line.substring(Reply.JOB_FINISHED.length());
+            DownloadJob job = id.matches("\\d+") ? jobs.get(Integer.parseInt(id)) : null;
+            if (job != null) {
+                job.serverFinished();
+            }
+        } else if (listingCache != null) {
+            listingCache.invalidate(line);
+        }
+    }
+
+    /**
+     * 用缓存回答ls与cd：ls [目录] 的列表已缓存，或cd的目标可由缓存解析为目录
+     *
+     * @param userInput 用户输入
+     * @param words 按空白分开的用户输入
+     * @return 是否已在本地回答
+     * @throws IOException IOException
+     */
+    private boolean answerLocally(String userInput, String[] words) throws IOException {
+        if (userInput.indexOf('"') >= 0 || userInput.indexOf('\'') >= 0 || pwd == null) {
+            return false;
+        }
+        readNotices();
+        if (words[0].equals("ls") && words.length <= 2) {
+            String dir = words.length == 1 ? pwd : listingCache.resolve(pwd, words[1]);
+            List<String> lines = dir == null ? null : listingCache.get(dir);
+            if (lines == null) {
+                return false;
+            }
+            for (String line : lines) {
+                System.out.println(line);
+            }
+            return true;
+        }
+        if (words[0].equals("cd") && words.length == 2) {
+            String dir = listingCache.resolve(pwd, words[1]);
+            if (dir == null) {
+                return false;
+            }
+            pwd = dir;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 本地cd过时，让服务器切换到同一工作目录。
+     * 切换命令与随后的命令一起发出，回复在readResponse中先行读掉，不多一次往返。
+     *
+     * @throws IOException IOException
+     */
+    private void syncDirectory() throws IOException {
+        if (listingCache == null || pwd == null || pwd.equals(serverPwd)) {
+            return;
+        }
+        tcpOut.write("cd /");
+        tcpOut.newLine();
+        ++pendingSync;
+        if (pwd.length() > 1) {
+            tcpOut.write("cd " + ControlConnection.quote(pwd.substring(1)));
+            tcpOut.newLine();
+            ++pendingSync;
+        }
+        serverPwd = pwd;
+    }
+
+    /**
+     * 从所有副本并行下载
+     *
+     * @param path 相对于当前工作目录的路径
+     */
+    private void swarmDownload(String path) {
+        try {
+            FileReceiver.Result result = swarm.download(pwd, path);
+            FileInfo fileInfo = result.getFileInfo();
+            if (result.isNotModified()) {
+                System.out.println("Local copy is up to date: " + fileInfo.getFileName());
+                return;
+            }
+            for (String line : swarm.getReport()) {
+                System.out.println(line);
+            }
+            System.out.println("Chunks: " + result.getReceivedPackets() + " of " + fileInfo.getPacketCount()
+                    + ", " + result.getTransferredBytes() + " bytes received.");
+            if (result.isVerified()) {
+                System.out.println("File transfer completed (CRC32 checked): " + ROOT.relativize(result.getPath()));
             } else {
-                System.out.println("Please try again. File corrupted: " + ROOT.relativize(filePath));
-                System.out.println("src: " + srcCrc32);
-                System.out.println("dst: " + dstCrc32);
+                System.out.println("Please try again. File corrupted: " + ROOT.relativize(result.getPath()));
+            }
+        } catch (IOException e) {
+            for (String line : swarm.getReport()) {
+                System.out.println(line);
             }
-        } catch (IOException | ClassNotFoundException e) {
             System.err.println(e.getMessage());
-        } finally {
-            try {
-                udpSocket.setSoTimeout(0);
-            } catch (SocketException e) {
-                System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * 服务器接受后台下载时开始接收，否则关闭其套接字并输出服务器的回复
+     *
+     * @param job 已打开套接字的下载
+     * @param response 服务器对job命令的回复
+     */
+    private void startJob(DownloadJob job, List<String> response) {
+        String first = response.isEmpty() ? "" : response.get(0);
+        int started = first.indexOf(Reply.JOB_STARTED);
+        if (!first.startsWith(Reply.JOB) || started < 0) {
+            job.cancel();
+            for (String line : response) {
+                System.out.println(line);
+            }
+            if (job.isFollow() && first.startsWith(Reply.CHECKPOINT_MISMATCH)) {
+                contentIndex.clearCheckpoint(first.substring(Reply.CHECKPOINT_MISMATCH.length()));
+                System.out.println("Checkpoint discarded, get -f again to follow from the start");
+            }
+            return;
+        }
+        int id = Integer.parseInt(first.substring(Reply.JOB.length(), started));
+        job.start(id, first.substring(started + Reply.JOB_STARTED.length()));
+        jobs.put(id, job);
+        if (job.isFollow()) {
+            System.out.println("[" + id + "] Following " + job.getFileName() + " from byte " + job.getFollowOffset());
+        } else {
+            System.out.println("[" + id + "] " + job.getFileName());
+        }
+    }
+
+    private void listJobs() {
+        if (jobs.isEmpty()) {
+            System.out.println("No jobs");
+        }
+        for (DownloadJob job : jobs.values()) {
+            System.out.println("[" + job.getId() + "] " + job.getFileName() + ": "
+                    + (job.isFinished() ? "Finished" : job.progress()));
+        }
+    }
+
+    /**
+     * 等待一个或全部下载结束并报告结果，跟随下载不会自行结束，不等待。
+     * 等待期间继续处理服务器的通知，传输结束的通知使结果报文丢失的下载也能结束
+     *
+     * @param id 下载编号，null表示全部
+     * @throws IOException 读取通知失败
+     */
+    private void waitJobs(String id) throws IOException {
+        List<DownloadJob> targets = new ArrayList<>();
+        if (id == null) {
+            for (DownloadJob job : jobs.values()) {
+                if (!job.isFollow()) {
+                    targets.add(job);
+                }
+            }
+        } else {
+            DownloadJob job = id.matches("\\d+") ? jobs.get(Integer.parseInt(id)) : null;
+            if (job == null) {
+                System.out.println("No such job: " + id);
+                return;
+            }
+            if (job.isFollow() && !job.isFinished()) {
+                System.out.println("Job " + id + " follows a growing file, cancel it to stop");
+                return;
+            }
+            targets.add(job);
+        }
+        try {
+            for (DownloadJob job : targets) {
+                while (!job.await(WAIT_POLL)) {
+                    readNotices();
+                }
+                report(job);
+                jobs.remove(job.getId());
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 服务器已停止发送后关闭本地的接收
+     *
+     * @param id 下载编号
+     */
+    private void cancelJob(String id) {
+        DownloadJob job = id.matches("\\d+") ? jobs.get(Integer.parseInt(id)) : null;
+        if (job != null) {
+            job.cancel();
+        }
+    }
+
+    /**
+     * 报告并移除已结束的下载
+     */
+    private void reportFinishedJobs() {
+        Iterator<DownloadJob> iterator = jobs.values().iterator();
+        while (iterator.hasNext()) {
+            DownloadJob job = iterator.next();
+            if (job.isFinished()) {
+                report(job);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 输出一个已结束下载的结果，并据此更新丢包率与是否需要重新探测路径
+     *
+     * @param job 已结束的下载
+     */
+    private void report(DownloadJob job) {
+        String prefix = "[" + job.getId() + "] ";
+        FileReceiver.Result result = job.getResult();
+        if (job.isFollow()) {
+            if (job.isCancelled()) {
+                System.out.println(prefix + "Stopped following " + job.getFileName()
+                        + " at byte " + job.getCheckpoint());
+            } else {
+                System.out.println(prefix + "Failed: " + job.getFileName()
+                        + (job.getError() == null ? "" : ", " + job.getError())
+                        + ", checkpoint at byte " + job.getCheckpoint());
+            }
+            return;
+        }
+        if (job.isCancelled()) {
+            System.out.println(prefix + "Cancelled: " + job.getFileName());
+            return;
+        }
+        if (result == null || !result.isStarted()) {
+            System.out.println(prefix + "Failed: " + job.getFileName()
+                    + (job.getError() == null ? "" : ", " + job.getError()));
+            return;
+        }
+        FileInfo fileInfo = result.getFileInfo();
+        System.out.println(prefix + "Done: " + fileInfo.getFileName());
+        if (result.isNotModified()) {
+            System.out.println("Local copy is up to date: " + fileInfo.getFileName());
+            return;
+        }
+        System.out.println("Total packet count: " + fileInfo.getPacketCount());
+        if (result.isComplete()) {
+            System.out.println("All packets received.");
+        } else {
+            System.out.println("Received " + result.getReceivedPackets()
+                    + " of " + fileInfo.getPacketCount() + " packets.");
+        }
+        if (result.getRepairedPackets() > 0) {
+            System.out.println("Recovered " + result.getRepairedPackets() + " lost packets from parity.");
+        }
+        if (job.getDeltaBlockSize() > 0) {
+            System.out.println("Delta applied: " + result.getTransferredBytes() + " bytes transferred.");
+        }
+        if (result.isVerified()) {
+            System.out.println("File transfer completed (CRC32 checked): " + ROOT.relativize(result.getPath()));
+        } else {
+            System.out.println("Please try again. File corrupted: " + ROOT.relativize(result.getPath()));
+            System.out.println("src: " + fileInfo.getCrc32());
+            System.out.println("dst: " + result.getDstCrc32());
+        }
+        needProbe = !result.isComplete() && PROBE_PATH;
+        if (fileInfo.getPacketCount() > 0) {
+            double loss = 1 - (double) (result.getReceivedPackets() - result.getRepairedPackets())
+                    / fileInfo.getPacketCount();
+            lossRate = lossRate * (1 - LOSS_WEIGHT) + Math.max(0, loss) * LOSS_WEIGHT;
         }
     }
 }
@@ -0,0 +1,168 @@
+package edu.lepturus.ftp.client;
+
+import edu.lepturus.ftp.utils.FileInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+
+/**
+ * 客户端已下载文件的索引。
+ * 记录每个文件下载完成时的大小、修改时间和CRC32，保存在ROOT下的INDEX_FILE中；
+ * 本地副本未被改动时，可以凭记录的CRC32向服务器发送条件get。
+ * 跟随下载（get -f）的检查点另存于CHECKPOINT_FILE：本地文件在该偏移之前与服务器一致，
+ * 再次跟随时从这里继续；检查点带有文件开头的CRC32，服务器据此确认仍是同一个文件。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class ContentIndex {
+    private static final String INDEX_FILE = ".ftp-index";
+    private static final String CHECKPOINT_FILE = ".ftp-follow";
+
+    private final Path ROOT;
+    private final Path indexPath;
+    private final Properties entries = new Properties();
+    private final Path checkpointPath;
+    private final Properties checkpoints = new Properties();
+
+    public ContentIndex(Path ROOT) {
+        this.ROOT = ROOT;
+        this.indexPath = ROOT.resolve(INDEX_FILE);
+        this.checkpointPath = ROOT.resolve(CHECKPOINT_FILE);
+        load(indexPath, entries);
+        load(checkpointPath, checkpoints);
+    }
+
+    private static void load(Path path, Properties properties) {
+        if (Files.isRegularFile(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                properties.load(in);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 查询本地副本的CRC32
+     *
+     * @param fileName 文件名
+     * @return 本地副本自下载后未改动则返回其CRC32，否则返回null
+     */
+    public synchronized String lookup(String fileName) {
+        String entry = entries.getProperty(fileName);
+        if (entry == null) {
+            return null;
+        }
+        String[] fields = entry.split(",");
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(ROOT.resolve(fileName), BasicFileAttributes.class);
+            if (attributes.size() == Long.parseLong(fields[0])
+                    && attributes.lastModifiedTime().toMillis() == Long.parseLong(fields[1])) {
+                return fields[2];
+            }
+        } catch (IOException | RuntimeException e) {
+            // 本地副本已删除或记录损坏，视为没有副本
+        }
+        return null;
+    }
+
+    /**
+     * 记录一次校验通过的下载
+     *
+     * @param fileName 文件名
+     * @param crc32 文件的CRC32
+     */
+    public synchronized void record(String fileName, String crc32) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(ROOT.resolve(fileName), BasicFileAttributes.class);
+            entries.setProperty(fileName,
+                    attributes.size() + "," + attributes.lastModifiedTime().toMillis() + "," + crc32);
+            save();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * 查询跟随下载的检查点
+     *
+     * @param fileName 文件名
+     * @return 可以继续的偏移；没有检查点、本地文件短于检查点或开头已改动（标识不符）时为0
+     */
+    public synchronized long checkpoint(String fileName) {
+        String entry = checkpoints.getProperty(fileName);
+        if (entry == null) {
+            return 0;
+        }
+        String[] fields = entry.split(",");
+        try {
+            long offset = Long.parseLong(fields[0]);
+            Path local = ROOT.resolve(fileName);
+            if (offset == 0 || Files.size(local) < offset
+                    || !FileInfo.prefixCrc32(local, offset).equals(fields[1])) {
+                return 0;
+            }
+            return offset;
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param fileName 文件名
+     * @return 检查点所属文件的标识（见FileInfo.prefixCrc32），随检查点发给服务器核对；没有时为null
+     */
+    public synchronized String checkpointIdentity(String fileName) {
+        String entry = checkpoints.getProperty(fileName);
+        String[] fields = entry == null ? new String[0] : entry.split(",");
+        return fields.length == 2 ? fields[1] : null;
+    }
+
+    /**
+     * 记录跟随下载的检查点
+     *
+     * @param fileName 文件名
+     * @param offset 本地文件在此之前已完整
+     * @param identity 本地文件开头的标识，见FileInfo.prefixCrc32
+     */
+    public synchronized void recordCheckpoint(String fileName, long offset, String identity) {
+        checkpoints.setProperty(fileName, offset + "," + identity);
+        saveCheckpoints();
+    }
+
+    /**
+     * 服务器上的文件已不是检查点所属的文件（被替换或轮转），丢弃检查点，下次从头跟随
+     *
+     * @param fileName 文件名
+     */
+    public synchronized void clearCheckpoint(String fileName) {
+        if (checkpoints.remove(fileName) != null) {
+            saveCheckpoints();
+        }
+    }
+
+    private void saveCheckpoints() {
+        try {
+            store(checkpoints, checkpointPath, "name=offset,prefix crc32");
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    private void save() throws IOException {
+        store(entries, indexPath, "name=size,mtime,crc32");
+    }
+
+    private void store(Properties properties, Path path, String comments) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, comments);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,326 @@
+package edu.lepturus.ftp.client;
+
+import edu.lepturus.ftp.utils.DataPacket;
+import edu.lepturus.ftp.utils.Reply;
+import edu.lepturus.ftp.utils.SessionInfo;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 一条已完成握手的控制连接及其UDP数据套接字，供客户端库的连接池复用
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+class ControlConnection implements Closeable {
+    private static final int RANGE_POLL = 100;
+    private static final int RANGE_STALL = 3 * 1000;
+
+    private final Socket tcpSocket;
+    private final BufferedReader tcpIn;
+    private final BufferedWriter tcpOut;
+    private final DatagramSocket udpSocket;
+    private final FileReceiver fileReceiver;
+    private final int packetSize;
+    private final String endpoint;
+    private String pwd;
+
+    private ControlConnection(Socket tcpSocket,
+                              BufferedReader tcpIn,
+                              BufferedWriter tcpOut,
+                              DatagramSocket udpSocket,
+                              FileReceiver fileReceiver,
+                              int packetSize,
+                              String endpoint) {
+        this.tcpSocket = tcpSocket;
+        this.tcpIn = tcpIn;
+        this.tcpOut = tcpOut;
+        this.udpSocket = udpSocket;
+        this.fileReceiver = fileReceiver;
+        this.packetSize = packetSize;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * 建立连接并完成握手
+     *
+     * @param hostAddr 服务器地址
+     * @param hostPort 服务器端口
+     * @param clientAddr 本机地址
+     * @param packetSize 提议的报文长度
+     * @param root 下载目录
+     * @param contentIndex 下载索引
+     * @return 可用的连接
+     * @throws IOException 连接失败或服务器繁忙
+     */
+    static ControlConnection open(InetAddress hostAddr,
+                                  int hostPort,
+                                  InetAddress clientAddr,
+                                  int packetSize,
+                                  Path root,
+                                  ContentIndex contentIndex) throws IOException {
+        Socket tcpSocket = new Socket(hostAddr, hostPort);
+        DatagramSocket udpSocket = null;
+        try {
+            BufferedReader tcpIn = new BufferedReader(new InputStreamReader(tcpSocket.getInputStream()));
+            BufferedWriter tcpOut = new BufferedWriter(new OutputStreamWriter(tcpSocket.getOutputStream()));
+            udpSocket = new DatagramSocket(0);
+            udpSocket.setReceiveBufferSize(ClientSession.RECEIVE_BUFFER_SIZE);
+            SessionInfo negotiated;
+            try {
+                tcpOut.write(SessionInfo.sessionInfoToJsonString(new SessionInfo(
+                        UUID.randomUUID(),
+                        clientAddr,
+                        tcpSocket.getLocalPort(),
+                        udpSocket.getLocalPort(),
+                        packetSize)));
+                tcpOut.newLine();
+                tcpOut.flush();
+                String greeting = tcpIn.readLine();
+                if (greeting == null || greeting.startsWith(Reply.BUSY)) {
+                    throw new IOException(greeting == null ? "Connection closed during handshake" : greeting);
+                }
+                negotiated = SessionInfo.jsonStringToSessionInfo(tcpIn.readLine());
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            ControlConnection connection = new ControlConnection(
+                    tcpSocket,
+                    tcpIn,
+                    tcpOut,
+                    udpSocket,
+                    new FileReceiver(udpSocket, negotiated.getFILE_UDP_PACKET_SIZE(), root, contentIndex),
+                    negotiated.getFILE_UDP_PACKET_SIZE(),
+                    hostAddr.getHostAddress() + ":" + hostPort);
+            connection.readResponse();
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            if (udpSocket != null) {
+                udpSocket.close();
+            }
+            tcpSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return 服务器端当前工作目录
+     */
+    String getPwd() {
+        return pwd;
+    }
+
+    /**
+     * @return 协商后的报文长度
+     */
+    int getPacketSize() {
+        return packetSize;
+    }
+
+    /**
+     * @return 前台传输的UDP套接字，回放轨迹时由调用者直接读取
+     */
+    DatagramSocket getUdpSocket() {
+        return udpSocket;
+    }
+
+    /**
+     * 切换到与pwd相同的工作目录，已一致时不发送命令
+     *
+     * @param target 工作目录，格式与服务器回复的工作目录行相同
+     * @throws IOException 目录不存在或连接已关闭
+     */
+    void changeDirectory(String target) throws IOException {
+        if (target.equals(pwd)) {
+            return;
+        }
+        command("cd /");
+        if (target.length() > 1) {
+            List<String> response = command("cd " + quote(target.substring(1)));
+            if (!response.isEmpty()) {
+                throw new IOException(response.get(0));
+            }
+        }
+    }
+
+    /**
+     * 请求服务器发送文件的一个字节区间，按报文头的偏移写入channel。
+     * 按本连接的报文长度记录每个报文是否到达，重复或过期的报文不计入；
+     * 服务器回复后再等一个轮询周期仍未收齐则返回已收到的字节数，由调用者重新安排缺失部分。
+     *
+     * @param path 服务器上的路径
+     * @param offset 区间起点
+     * @param length 区间长度
+     * @param channel 目标文件，可与其他连接共享
+     * @return 收到的字节数，等于length表示收齐
+     * @throws IOException 服务器拒绝、长时间无数据或连接已关闭
+     */
+    long range(String path, long offset, long length, FileChannel channel) throws IOException {
+        send("range " + quote(path) + " " + offset + " " + length);
+        int payloadSize = DataPacket.payloadSize(packetSize);
+        BitSet arrived = new BitSet();
+        byte[] buffer = new byte[packetSize];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        long received = 0;
+        boolean responded = false;
+        int idle = 0;
+        try {
+            udpSocket.setSoTimeout(RANGE_POLL);
+            while (received < length) {
+                try {
+                    packet.setLength(buffer.length);
+                    udpSocket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    if (responded) {
+                        break;
+                    }
+                    responded = tcpIn.ready();
+                    idle += RANGE_POLL;
+                    if (!responded && idle >= RANGE_STALL) {
+                        throw new SocketTimeoutException("No data from " + endpoint + " for " + idle + " ms");
+                    }
+                    continue;
+                }
+                idle = 0;
+                int n = packet.getLength() - DataPacket.HEADER_SIZE;
+                long position = DataPacket.readOffset(buffer);
+                long relative = position - offset;
+                if (n <= 0 || relative < 0 || relative + n > length || relative % payloadSize != 0
+                        || arrived.get((int) (relative / payloadSize))) {
+                    continue;
+                }
+                arrived.set((int) (relative / payloadSize));
+                view.limit(packet.getLength()).position(DataPacket.HEADER_SIZE);
+                while (view.hasRemaining()) {
+                    position += channel.write(view, position);
+                }
+                view.clear();
+                received += n;
+            }
+        } finally {
+            udpSocket.setSoTimeout(0);
+        }
+        List<String> response = readResponse();
+        if (response.isEmpty() || !response.get(0).startsWith(Reply.RANGE_SENT)) {
+            throw new IOException(response.isEmpty() ? "No response from " + endpoint : response.get(0));
+        }
+        return received;
+    }
+
+    /**
+     * 发送一条命令并读取完整回复
+     *
+     * @param command 命令
+     * @return 回复各行（不含工作目录行）
+     * @throws IOException IOException或连接已关闭
+     */
+    List<String> command(String command) throws IOException {
+        send(command);
+        return readResponse();
+    }
+
+    /**
+     * 发送一条带后续行的命令（如增量下载的签名行）并读取完整回复
+     *
+     * @param command 命令
+     * @param lines 紧随命令发送的各行
+     * @return 回复各行（不含工作目录行）
+     * @throws IOException IOException或连接已关闭
+     */
+    List<String> command(String command, List<String> lines) throws IOException {
+        tcpOut.write(command);
+        tcpOut.newLine();
+        for (String line : lines) {
+            tcpOut.write(line);
+            tcpOut.newLine();
+        }
+        tcpOut.flush();
+        return readResponse();
+    }
+
+    /**
+     * 下载文件，本地副本未改动时发送条件get
+     *
+     * @param path 服务器上的路径
+     * @param fileName 本地文件名
+     * @return 接收结果
+     * @throws IOException 服务器拒绝或传输失败
+     */
+    FileReceiver.Result get(String path, String fileName) throws IOException {
+        String crc32 = fileReceiver.getContentIndex().lookup(fileName);
+        send("get " + quote(path) + (crc32 == null ? "" : " " + crc32));
+        FileReceiver.Result result;
+        try {
+            result = fileReceiver.receive(tcpIn, 0);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        List<String> response = readResponse();
+        if (!result.isStarted()) {
+            throw new IOException(response.isEmpty() ? "No response from server" : response.get(0));
+        }
+        return result;
+    }
+
+    private void send(String command) throws IOException {
+        tcpOut.write(command);
+        tcpOut.newLine();
+        tcpOut.flush();
+    }
+
+    private List<String> readResponse() throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = tcpIn.readLine()) != null && !Reply.isEnd(line)) {
+            if (!Reply.isNotice(line)) {
+                lines.add(Reply.unescape(line));
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Connection closed by server");
+        }
+        pwd = Reply.pwd(line);
+        return lines;
+    }
+
+    /**
+     * 用双引号包围参数，转义其中的反斜杠和双引号
+     *
+     * @param argument 参数
+     * @return 可直接拼入命令的参数
+     */
+    static String quote(String argument) {
+        return "\"" + argument.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    @Override
+    public String toString() {
+        return endpoint;
+    }
+
+    @Override
+    public void close() {
+        try {
+            send("bye");
+        } catch (IOException e) {
+            // 连接可能已断开
+        }
+        udpSocket.close();
+        try {
+            tcpSocket.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
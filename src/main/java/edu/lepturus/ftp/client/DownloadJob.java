@@ -0,0 +1,215 @@
+package edu.lepturus.ftp.client;
+
+import edu.lepturus.ftp.utils.FileInfo;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.file.Path;
+
+/**
+ * 客户端的一个后台下载。
+ * 每个后台下载有自己的UDP套接字，服务器把该下载的文件信息与数据报文发往这个端口，
+ * 多个下载同时进行时互不干扰；接收在自己的线程中进行，控制连接留给交互命令。
+ * 取消即关闭套接字，阻塞中的接收随之结束。
+ * 跟随下载（get -f）不会自行结束，直到取消或服务器报告失败，进度为检查点。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+class DownloadJob {
+    private final DatagramSocket udpSocket;
+    private final FileReceiver fileReceiver;
+    private final FollowReceiver follower;
+    private final int deltaBlockSize;
+    private int id;
+    private String fileName;
+    private Thread thread;
+    private volatile FileReceiver.Result result;
+    private volatile String error;
+    private volatile boolean cancelled = false;
+
+    /**
+     * 打开该下载的UDP套接字，向服务器发起下载前调用
+     *
+     * @param packetSize 协商后的报文长度
+     * @param root 下载目录
+     * @param contentIndex 下载索引
+     * @param deltaBlockSize 增量模式的块长度，0表示完整接收
+     * @throws SocketException 无法打开套接字
+     */
+    DownloadJob(int packetSize, Path root, ContentIndex contentIndex, int deltaBlockSize) throws SocketException {
+        this.udpSocket = new DatagramSocket(0);
+        this.udpSocket.setReceiveBufferSize(ClientSession.RECEIVE_BUFFER_SIZE);
+        this.fileReceiver = new FileReceiver(udpSocket, packetSize, root, contentIndex);
+        this.follower = null;
+        this.deltaBlockSize = deltaBlockSize;
+    }
+
+    /**
+     * 打开跟随下载的UDP套接字
+     *
+     * @param packetSize 协商后的报文长度
+     * @param root 下载目录
+     * @param contentIndex 下载索引，记录检查点
+     * @param fileName 本地文件名
+     * @param offset 起始偏移
+     * @throws SocketException 无法打开套接字
+     */
+    DownloadJob(int packetSize, Path root, ContentIndex contentIndex, String fileName, long offset)
+            throws SocketException {
+        this.udpSocket = new DatagramSocket(0);
+        this.udpSocket.setReceiveBufferSize(ClientSession.RECEIVE_BUFFER_SIZE);
+        this.fileReceiver = null;
+        this.follower = new FollowReceiver(udpSocket, packetSize, root, contentIndex, fileName, offset);
+        this.deltaBlockSize = 0;
+    }
+
+    /**
+     * @return 服务器应发往的UDP端口
+     */
+    int getPort() {
+        return udpSocket.getLocalPort();
+    }
+
+    int getId() {
+        return id;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    int getDeltaBlockSize() {
+        return deltaBlockSize;
+    }
+
+    boolean isFollow() {
+        return follower != null;
+    }
+
+    /**
+     * @return 跟随下载的起始偏移
+     */
+    long getFollowOffset() {
+        return follower.getOffset();
+    }
+
+    /**
+     * @return 跟随下载的检查点
+     */
+    long getCheckpoint() {
+        return follower.getCheckpoint();
+    }
+
+    /**
+     * 服务器接受后开始接收
+     *
+     * @param id 服务器分配的编号
+     * @param fileName 文件名
+     */
+    void start(int id, String fileName) {
+        this.id = id;
+        this.fileName = fileName;
+        this.thread = new Thread(() -> {
+            try {
+                if (follower != null) {
+                    follower.follow();
+                } else {
+                    result = fileReceiver.receive(null, deltaBlockSize);
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                if (!cancelled) {
+                    error = e.getMessage();
+                }
+            } finally {
+                udpSocket.close();
+            }
+        }, "download-job-" + id);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    boolean isFinished() {
+        return thread == null || !thread.isAlive();
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return 接收结果，未结束、失败或取消时为null
+     */
+    FileReceiver.Result getResult() {
+        return result;
+    }
+
+    /**
+     * @return 失败原因，没有失败时为null
+     */
+    String getError() {
+        return error;
+    }
+
+    /**
+     * 等待下载结束
+     *
+     * @throws InterruptedException 被中断
+     */
+    void await() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     * 最多等待millis毫秒
+     *
+     * @param millis 等待时长
+     * @return 下载是否已结束
+     * @throws InterruptedException 被中断
+     */
+    boolean await(long millis) throws InterruptedException {
+        if (thread != null) {
+            thread.join(millis);
+        }
+        return isFinished();
+    }
+
+    /**
+     * 服务器报告该传输已结束，结果报文若已丢失，接收随后放弃等待
+     */
+    void serverFinished() {
+        if (follower != null) {
+            follower.serverFinished();
+        } else {
+            fileReceiver.serverFinished();
+        }
+    }
+
+    /**
+     * @return 进行中的状态：等待服务器开始发送，或已收到的报文数与百分比；跟随下载为检查点
+     */
+    String progress() {
+        if (follower != null) {
+            return "Following, " + follower.getCheckpoint() + " bytes";
+        }
+        FileInfo fileInfo = fileReceiver.getCurrent();
+        if (fileInfo == null) {
+            return "Waiting";
+        }
+        long received = fileReceiver.getProgress();
+        long total = Math.max(1, fileInfo.getPacketCount());
+        return "Running, " + received + " of " + fileInfo.getPacketCount() + " packets ("
+                + received * 100 / total + "%)";
+    }
+
+    /**
+     * 取消：关闭套接字，接收线程随之结束
+     */
+    void cancel() {
+        cancelled = true;
+        udpSocket.close();
+    }
+}
@@ -1,14 +1,14 @@
 package edu.lepturus.ftp.client;
 
+import edu.lepturus.ftp.utils.Reply;
 import edu.lepturus.ftp.utils.SessionInfo;
 
 import java.io.*;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.*;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -29,17 +29,31 @@ public class FileClient {
 
     private static final int FILE_UDP_PACKET_SIZE = 32768;
 
+    private static final boolean PROBE_PATH = true;
+
+    private static final boolean FEC = true;
+
+    private static final boolean LISTING_CACHE = true;
+
+
     private final Path ROOT;
 
+    private final List<InetSocketAddress> REPLICAS;
+
+    /**
+     * @param REPLICAS 导出相同根目录的全部服务器（含HOST），多于一个时get从所有副本并行下载
+     */
     public FileClient(
             InetAddress HOST_ADDR,
             int HOST_PORT,
             InetAddress CLIENT_ADDR,
-            Path ROOT) {
+            Path ROOT,
+            List<InetSocketAddress> REPLICAS) {
         this.HOST_ADDR = HOST_ADDR;
         this.HOST_PORT = HOST_PORT;
         this.CLIENT_ADDR = CLIENT_ADDR;
         this.ROOT = ROOT;
+        this.REPLICAS = REPLICAS;
     }
 
     public void run() {
@@ -53,17 +67,27 @@ public class FileClient {
                     tcpSocket.getLocalPort(),
                     udpSocket.getLocalPort(),
                     FILE_UDP_PACKET_SIZE);
+            sessionInfo.setListingInvalidation(LISTING_CACHE);
             tcpOut.write(SessionInfo.sessionInfoToJsonString(sessionInfo));
             tcpOut.newLine();
             tcpOut.flush();
-            System.out.println(tcpIn.readLine());
+            String greeting = tcpIn.readLine();
+            System.out.println(greeting);
+            if (greeting == null || greeting.startsWith(Reply.BUSY)) {
+                return;
+            }
+            SessionInfo negotiated = SessionInfo.jsonStringToSessionInfo(tcpIn.readLine());
             ClientSession clientSession = new ClientSession(
                     tcpSocket,
                     tcpIn,
                     tcpOut,
                     udpSocket,
-                    FILE_UDP_PACKET_SIZE,
-                    ROOT);
+                    negotiated.getFILE_UDP_PACKET_SIZE(),
+                    ROOT,
+                    PROBE_PATH,
+                    FEC,
+                    negotiated.isListingInvalidation(),
+                    REPLICAS);
             clientSession.run();
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -72,16 +96,28 @@ public class FileClient {
 
     /**
      * args[0]: 客户端根目录（文件下载目标）
+     * args[1...]: 服务器地址host:port（可选），第一个用于交互，给出多个时get从所有副本并行下载
      *
      * @param args args
      */
     public static void main(String[] args) {
         try {
+            List<InetSocketAddress> replicas = new ArrayList<>();
+            for (int i = 1; i < args.length; ++i) {
+                int colon = args[i].lastIndexOf(':');
+                replicas.add(new InetSocketAddress(
+                        InetAddress.getByName(args[i].substring(0, colon)),
+                        Integer.parseInt(args[i].substring(colon + 1))));
+            }
+            if (replicas.isEmpty()) {
+                replicas.add(new InetSocketAddress(InetAddress.getByName(PARA_HOST_NAME), PARA_HOST_PORT));
+            }
             new FileClient(
-                    InetAddress.getByName(PARA_HOST_NAME), PARA_HOST_PORT,
+                    replicas.get(0).getAddress(), replicas.get(0).getPort(),
                     InetAddress.getByName(PARA_CLIENT_NAME),
-                    Paths.get(args[0])).run();
-        } catch (UnknownHostException e) {
+                    Paths.get(args[0]),
+                    replicas).run();
+        } catch (UnknownHostException | RuntimeException e) {
             System.err.println(e.getMessage());
         }
     }
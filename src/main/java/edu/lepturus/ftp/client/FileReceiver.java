@@ -0,0 +1,241 @@
+package edu.lepturus.ftp.client;
+
+import edu.lepturus.ftp.utils.DeltaCodec;
+import edu.lepturus.ftp.utils.FileInfo;
+
+import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Objects;
+
+/**
+ * 一个控制连接上的UDP文件接收逻辑，交互式会话与客户端库共用
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class FileReceiver {
+    private final DatagramSocket udpSocket;
+    private final int UDP_PACKET_SIZE;
+    private final Path ROOT;
+    private final ReceivePipeline receivePipeline;
+    private final ContentIndex contentIndex;
+
+    private static final int RING_SIZE = 256;
+    private static final int FILE_INFO_TIMEOUT = 3 * 1000;
+    private static final int FILE_INFO_POLL = 100;
+    private static final int DATA_TIMEOUT = 1000;
+
+    private volatile FileInfo current;
+    /**
+     * 服务器已报告后台传输结束后，最迟等到此时刻（毫秒），0表示尚未报告
+     */
+    private volatile long resultDeadline = 0;
+
+    /**
+     * 一次接收的结果
+     */
+    public static class Result {
+        private final FileInfo fileInfo;
+        private final Path path;
+        private final long receivedPackets;
+        private final long repairedPackets;
+        private final long transferredBytes;
+        private final String dstCrc32;
+
+        Result(FileInfo fileInfo, Path path, long receivedPackets, long repairedPackets,
+               long transferredBytes, String dstCrc32) {
+            this.fileInfo = fileInfo;
+            this.path = path;
+            this.receivedPackets = receivedPackets;
+            this.repairedPackets = repairedPackets;
+            this.transferredBytes = transferredBytes;
+            this.dstCrc32 = dstCrc32;
+        }
+
+        /**
+         * @return 服务器的文件信息，服务器未开始传输（出错、繁忙等）时为null
+         */
+        public FileInfo getFileInfo() {
+            return fileInfo;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * @return 得到的数据报文数，含由校验报文恢复的报文
+         */
+        public long getReceivedPackets() {
+            return receivedPackets;
+        }
+
+        public long getRepairedPackets() {
+            return repairedPackets;
+        }
+
+        public long getTransferredBytes() {
+            return transferredBytes;
+        }
+
+        public String getDstCrc32() {
+            return dstCrc32;
+        }
+
+        public boolean isStarted() {
+            return fileInfo != null;
+        }
+
+        public boolean isNotModified() {
+            return fileInfo != null && fileInfo.isNotModified();
+        }
+
+        public boolean isComplete() {
+            return fileInfo != null && receivedPackets == fileInfo.getPacketCount();
+        }
+
+        /**
+         * @return 本地文件与服务器文件CRC32一致
+         */
+        public boolean isVerified() {
+            return isNotModified() || (fileInfo != null && Objects.equals(fileInfo.getCrc32(), dstCrc32));
+        }
+    }
+
+    public FileReceiver(DatagramSocket udpSocket, int UDP_PACKET_SIZE, Path ROOT, ContentIndex contentIndex) {
+        this.udpSocket = udpSocket;
+        this.UDP_PACKET_SIZE = UDP_PACKET_SIZE;
+        this.ROOT = ROOT;
+        this.receivePipeline = new ReceivePipeline(udpSocket, UDP_PACKET_SIZE, RING_SIZE);
+        this.contentIndex = contentIndex;
+    }
+
+    public ContentIndex getContentIndex() {
+        return contentIndex;
+    }
+
+    /**
+     * @return 正在接收的文件信息，尚未收到时为null
+     */
+    public FileInfo getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return 正在接收的文件已写入的数据报文数
+     */
+    public long getProgress() {
+        return receivePipeline.getProgress();
+    }
+
+    /**
+     * 接收一个文件（不保证可靠性）。
+     * 等待文件信息期间若控制连接先有回复（错误、繁忙等），说明服务器不会发送数据，立即返回。
+     * 增量模式下先接收增量数据到临时文件，再与本地旧副本合成新文件。
+     *
+     * 后台传输不查看控制连接，一直等到文件信息到达、套接字被关闭（取消），
+     * 或服务器已报告传输结束（见serverFinished）而文件信息仍未到达。
+     *
+     * @param tcpIn 控制连接输入，仅用于判断是否有回复，不会读取；后台传输为null
+     * @param deltaBlockSize 增量模式的块长度，0表示完整接收
+     * @return 接收结果
+     * @throws IOException IOException、套接字已关闭或后台传输在服务器端失败
+     * @throws ClassNotFoundException 文件信息无法反序列化
+     */
+    public Result receive(BufferedReader tcpIn, int deltaBlockSize) throws IOException, ClassNotFoundException {
+        current = null;
+        FileInfo fileInfo = awaitFileInfo(tcpIn);
+        if (fileInfo == null) {
+            return new Result(null, null, 0, 0, 0, null);
+        }
+        if (fileInfo.isFailed()) {
+            throw new IOException(fileInfo.getError());
+        }
+        current = fileInfo;
+        String fileName = fileInfo.getFileName();
+        Path filePath = ROOT.resolve(fileName);
+        if (fileInfo.isNotModified()) {
+            return new Result(fileInfo, filePath, 0, 0, 0, fileInfo.getCrc32());
+        }
+        Path receivePath = deltaBlockSize > 0 ? ROOT.resolve("." + fileName + ".delta") : filePath;
+        long receivedPackets;
+        long repairedPackets;
+        try {
+            udpSocket.setSoTimeout(DATA_TIMEOUT);
+            try (FileChannel channel = FileChannel.open(receivePath,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                receivedPackets = receivePipeline.receive(channel, fileInfo.getPacketCount(),
+                        fileInfo.getPayloadSize(), fileInfo.getFecGroupSize());
+                repairedPackets = receivePipeline.getRepairedPackets();
+            }
+        } finally {
+            udpSocket.setSoTimeout(0);
+        }
+        long transferredBytes = Files.size(receivePath);
+        if (deltaBlockSize > 0) {
+            Path partPath = ROOT.resolve("." + fileName + ".part");
+            try (InputStream delta = Files.newInputStream(receivePath);
+                 OutputStream out = Files.newOutputStream(partPath)) {
+                DeltaCodec.apply(filePath, deltaBlockSize, delta, out);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(partPath);
+                throw e;
+            } finally {
+                Files.deleteIfExists(receivePath);
+            }
+            Files.move(partPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        String dstCrc32 = FileInfo.crc32Calculator(filePath);
+        if (Objects.equals(fileInfo.getCrc32(), dstCrc32)) {
+            contentIndex.record(fileName, dstCrc32);
+        }
+        return new Result(fileInfo, filePath, receivedPackets, repairedPackets, transferredBytes, dstCrc32);
+    }
+
+    /**
+     * 服务器报告后台传输已结束：结果（未修改、失败或文件信息）已经发出，
+     * 再过FILE_INFO_TIMEOUT仍未收到说明报文已丢失，不再等待
+     */
+    public void serverFinished() {
+        resultDeadline = System.currentTimeMillis() + FILE_INFO_TIMEOUT;
+    }
+
+    /**
+     * 等待文件信息报文
+     *
+     * @param tcpIn 控制连接输入，为null时一直等到服务器报告传输结束之后FILE_INFO_TIMEOUT
+     * @return 文件信息，超时或服务器已在控制连接上回复时返回null
+     * @throws IOException 后台传输的结果报文已丢失
+     */
+    private FileInfo awaitFileInfo(BufferedReader tcpIn) throws IOException, ClassNotFoundException {
+        byte[] buffer = new byte[UDP_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            udpSocket.setSoTimeout(FILE_INFO_POLL);
+            for (int waited = 0; tcpIn == null || waited < FILE_INFO_TIMEOUT; waited += FILE_INFO_POLL) {
+                try {
+                    udpSocket.receive(packet);
+                    return FileInfo.bytesToFileInfo(packet.getData());
+                } catch (SocketTimeoutException e) {
+                    if (tcpIn != null && tcpIn.ready()) {
+                        return null;
+                    }
+                    long deadline = resultDeadline;
+                    if (tcpIn == null && deadline != 0 && System.currentTimeMillis() > deadline) {
+                        throw new IOException("Result from server lost");
+                    }
+                }
+            }
+            return null;
+        } finally {
+            udpSocket.setSoTimeout(0);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package edu.lepturus.ftp.client;
+
+import edu.lepturus.ftp.utils.DataPacket;
+import edu.lepturus.ftp.utils.FileInfo;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 跟随下载（get -f）的接收：服务器先发送检查点之后的已有内容，再陆续发送新追加的字节。
+ * 报文头为绝对偏移，按偏移写入本地文件；检查点是从头连续收到的末尾，
+ * 检查点之后到达的区间合并记录，区间数有上限，内存与文件长度无关。
+ * 检查点之后的空洞超过HOLE_WAIT仍未补上时，向服务器发送回退请求，从检查点重新发送；
+ * 服务器空闲时的心跳告知已发送到的偏移，末尾的丢包也能发现。
+ * 检查点连同本地文件开头的标识定期写入下载索引，取消或出错后再次跟随时从检查点继续。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+class FollowReceiver {
+    private static final int POLL = 200;
+    private static final long HOLE_WAIT = 1000;
+    private static final long CHECKPOINT_INTERVAL = 1000;
+    private static final int MAX_PENDING_RANGES = 1024;
+
+    private final DatagramSocket udpSocket;
+    private final int packetSize;
+    private final Path ROOT;
+    private final ContentIndex contentIndex;
+    private final String fileName;
+    private final long offset;
+    private volatile long checkpoint;
+    /**
+     * 检查点所属文件的标识及其覆盖的开头长度，开头完整后不再变化
+     */
+    private String identity = null;
+    private long identityLength = -1;
+    /**
+     * 服务器已报告跟随结束后，最迟等到此时刻（毫秒），0表示尚未报告
+     */
+    private volatile long endDeadline = 0;
+    /**
+     * 检查点之后已收到的区间，起点到终点，互不相交
+     */
+    private final TreeMap<Long, Long> pending = new TreeMap<>();
+
+    /**
+     * @param udpSocket 该下载的UDP套接字
+     * @param packetSize 协商后的报文长度
+     * @param ROOT 下载目录
+     * @param contentIndex 下载索引，记录检查点
+     * @param fileName 本地文件名
+     * @param offset 起始偏移，即上次的检查点
+     */
+    FollowReceiver(DatagramSocket udpSocket, int packetSize, Path ROOT, ContentIndex contentIndex,
+                   String fileName, long offset) {
+        this.udpSocket = udpSocket;
+        this.packetSize = packetSize;
+        this.ROOT = ROOT;
+        this.contentIndex = contentIndex;
+        this.fileName = fileName;
+        this.offset = offset;
+        this.checkpoint = offset;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return 本地文件在此偏移之前已完整
+     */
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * 服务器报告跟随已结束：失败的文件信息若HOLE_WAIT内仍未到达，说明已丢失，不再等待
+     */
+    void serverFinished() {
+        endDeadline = System.currentTimeMillis() + HOLE_WAIT;
+    }
+
+    /**
+     * 接收直到套接字被关闭（取消）或服务器报告失败，结束时记录检查点
+     *
+     * @throws IOException 套接字已关闭或服务器端失败（如文件被截断）
+     * @throws ClassNotFoundException 文件信息无法反序列化
+     */
+    void follow() throws IOException, ClassNotFoundException {
+        byte[] buffer = new byte[packetSize];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        byte[] request = new byte[DataPacket.HEADER_SIZE];
+        SocketAddress server = null;
+        long saved = checkpoint;
+        long savedAt = System.currentTimeMillis();
+        long gapSince = 0;
+        try (FileChannel channel = FileChannel.open(ROOT.resolve(fileName),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            channel.truncate(checkpoint);
+            udpSocket.setSoTimeout(POLL);
+            while (true) {
+                try {
+                    packet.setLength(buffer.length);
+                    udpSocket.receive(packet);
+                    server = packet.getSocketAddress();
+                    if (FileInfo.isFileInfo(buffer, packet.getLength())) {
+                        FileInfo fileInfo = FileInfo.bytesToFileInfo(Arrays.copyOf(buffer, packet.getLength()));
+                        if (fileInfo.isFailed()) {
+                            throw new IOException(fileInfo.getError());
+                        }
+                    } else if (packet.getLength() >= DataPacket.HEADER_SIZE) {
+                        long position = DataPacket.readOffset(buffer);
+                        long end = position + packet.getLength() - DataPacket.HEADER_SIZE;
+                        if (end > checkpoint) {
+                            view.limit(packet.getLength()).position(DataPacket.HEADER_SIZE);
+                            for (long p = position; view.hasRemaining(); ) {
+                                p += channel.write(view, p);
+                            }
+                            view.clear();
+                            // 心跳没有载荷，空区间只标出已发送到的偏移
+                            arrived(position, end);
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    // 定期检查空洞与检查点
+                }
+                long now = System.currentTimeMillis();
+                if (endDeadline != 0 && now > endDeadline) {
+                    throw new IOException("Server stopped following");
+                }
+                if (pending.isEmpty()) {
+                    gapSince = 0;
+                } else if (gapSince == 0) {
+                    gapSince = now;
+                }
+                if (server != null && (pending.size() > MAX_PENDING_RANGES
+                        || (gapSince != 0 && now - gapSince >= HOLE_WAIT))) {
+                    DataPacket.writeOffset(request, checkpoint);
+                    udpSocket.send(new DatagramPacket(request, request.length, server));
+                    pending.clear();
+                    gapSince = now;
+                }
+                if (checkpoint != saved && now - savedAt >= CHECKPOINT_INTERVAL) {
+                    recordCheckpoint();
+                    saved = checkpoint;
+                    savedAt = now;
+                }
+            }
+        } finally {
+            recordCheckpoint();
+        }
+    }
+
+    /**
+     * 连同本地文件开头的标识记录检查点，检查点之前的字节已写入本地文件
+     */
+    private void recordCheckpoint() {
+        long current = checkpoint;
+        try {
+            long length = Math.min(current, FileInfo.IDENTITY_PREFIX);
+            if (identityLength != length) {
+                identity = FileInfo.prefixCrc32(ROOT.resolve(fileName), current);
+                identityLength = length;
+            }
+            contentIndex.recordCheckpoint(fileName, current, identity);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * 记录收到的区间[start, end)，与检查点相接时推进检查点
+     */
+    private void arrived(long start, long end) {
+        if (start <= checkpoint) {
+            long next = Math.max(checkpoint, end);
+            while (!pending.isEmpty() && pending.firstKey() <= next) {
+                next = Math.max(next, pending.pollFirstEntry().getValue());
+            }
+            checkpoint = next;
+            return;
+        }
+        Map.Entry<Long, Long> floor = pending.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+            pending.remove(floor.getKey());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = pending.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            pending.remove(next.getKey());
+        }
+        pending.put(start, end);
+    }
+}
@@ -0,0 +1,124 @@
+package edu.lepturus.ftp.client;
+
+import edu.lepturus.ftp.utils.Reply;
+
+import java.util.*;
+
+/**
+ * 客户端的目录列表缓存。
+ * 只缓存服务器以“!watch 目录”标明的ls回复，服务器推送“!invalidate 目录”时丢弃；
+ * 目录以工作目录行的格式为键。cd的目标可由已缓存的各级列表逐级解析，
+ * 无法确定（未缓存、目标是文件、绝对路径、越出根目录）时返回null，由服务器处理。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+class ListingCache {
+    private static final String DIR_TYPE = "<dir>";
+    private static final int MAX_LISTINGS = 256;
+
+    /**
+     * 一个目录的ls回复及其中的子目录名
+     */
+    private static class Listing {
+        private final List<String> lines;
+        private final Set<String> directories = new HashSet<>();
+
+        Listing(List<String> lines) {
+            this.lines = lines;
+            for (String line : lines) {
+                String[] words = line.trim().split("\\s+");
+                // 每行为：类型 文件名 大小 单位，文件名可能含空格
+                if (words.length >= 4 && words[0].equals(DIR_TYPE)) {
+                    int start = line.indexOf(DIR_TYPE) + DIR_TYPE.length();
+                    String rest = line.substring(start).trim();
+                    int end = rest.length();
+                    for (int i = 0; i < 2; ++i) {
+                        end = rest.lastIndexOf(' ', end - 1);
+                    }
+                    directories.add(rest.substring(0, end).trim());
+                }
+            }
+        }
+    }
+
+    private final Map<String, Listing> listings = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+            return size() > MAX_LISTINGS;
+        }
+    };
+
+    /**
+     * 处理失效通知
+     *
+     * @param line 通知行
+     */
+    void invalidate(String line) {
+        if (line.startsWith(Reply.INVALIDATE)) {
+            listings.remove(line.substring(Reply.INVALIDATE.length()));
+        }
+    }
+
+    void put(String dir, List<String> lines) {
+        listings.put(dir, new Listing(lines));
+    }
+
+    /**
+     * @param dir 目录
+     * @return 缓存的ls回复，没有时为null
+     */
+    List<String> get(String dir) {
+        Listing listing = listings.get(dir);
+        return listing == null ? null : listing.lines;
+    }
+
+    /**
+     * 在本地解析目录路径
+     *
+     * @param pwd 当前工作目录
+     * @param path 相对路径
+     * @return 目标目录，无法在本地确定时为null
+     */
+    String resolve(String pwd, String path) {
+        if (path.startsWith("/") || path.startsWith("\\")) {
+            return null;
+        }
+        char separator = pwd.charAt(0);
+        Deque<String> parts = new ArrayDeque<>();
+        for (String part : pwd.substring(1).split(separator == '\\' ? "\\\\" : "/")) {
+            if (!part.isEmpty()) {
+                parts.addLast(part);
+            }
+        }
+        for (String part : path.split("[/\\\\]+")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                if (parts.isEmpty()) {
+                    return null;
+                }
+                parts.removeLast();
+                continue;
+            }
+            Listing listing = listings.get(key(separator, parts));
+            if (listing == null || !listing.directories.contains(part)) {
+                return null;
+            }
+            parts.addLast(part);
+        }
+        return key(separator, parts);
+    }
+
+    private static String key(char separator, Collection<String> parts) {
+        StringBuilder key = new StringBuilder().append(separator);
+        for (String part : parts) {
+            if (key.length() > 1) {
+                key.append(separator);
+            }
+            key.append(part);
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,234 @@
+package edu.lepturus.ftp.client;
+
+import edu.lepturus.ftp.utils.DataPacket;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * UDP接收流水线。
+ * 收包线程只负责把套接字中的报文取到预分配的环形缓冲区里，
+ * 写盘线程按报文头中的偏移用FileChannel定位写入；
+ * 磁盘卡顿时由环形缓冲区吸收，不会让内核套接字缓冲区溢出丢包。
+ * 带校验报文的传输中，到达时组内已收齐的校验报文直接丢弃，其余暂存，
+ * 接收结束后对只缺一个数据报文的组，用校验报文与组内其他报文（从文件读回）异或恢复缺失的报文。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class ReceivePipeline {
+    private final DatagramSocket udpSocket;
+    private final BlockingQueue<Slot> free;
+    private final BlockingQueue<Slot> filled;
+    private long repairedPackets = 0;
+    private volatile long progress = 0;
+
+    /**
+     * 收包线程结束（收满或超时）的标记
+     */
+    private static final Slot END = new Slot(0);
+
+    /**
+     * 环形缓冲区中的一格
+     */
+    private static class Slot {
+        private final byte[] buffer;
+        private final DatagramPacket packet;
+        private final ByteBuffer view;
+
+        Slot(int size) {
+            this.buffer = new byte[size];
+            this.packet = new DatagramPacket(buffer, size);
+            this.view = ByteBuffer.wrap(buffer);
+        }
+    }
+
+    /**
+     * @param udpSocket 数据套接字，调用者负责设置超时
+     * @param packetSize 报文最大长度
+     * @param ringSize 环形缓冲区格数
+     */
+    public ReceivePipeline(DatagramSocket udpSocket, int packetSize, int ringSize) {
+        this.udpSocket = udpSocket;
+        this.free = new ArrayBlockingQueue<>(ringSize);
+        this.filled = new ArrayBlockingQueue<>(ringSize + 1);
+        for (int i = 0; i < ringSize; ++i) {
+            free.add(new Slot(packetSize));
+        }
+    }
+
+    /**
+     * @return 当前（或上一次）接收已写入的数据报文数，可在其他线程读取
+     */
+    public long getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return 上一次接收中由校验报文恢复的报文数
+     */
+    public long getRepairedPackets() {
+        return repairedPackets;
+    }
+
+    /**
+     * 接收totalPackets个数据报文（及其校验报文）并写入channel。
+     * 套接字超时视为发送方已结束，返回实际写入的数据报文数。
+     *
+     * @param channel 目标文件，有校验报文时须可读
+     * @param totalPackets 期望数据报文数
+     * @param payloadSize 数据报文的载荷长度
+     * @param fecGroupSize 每组数据报文数，0表示没有校验报文
+     * @return 实际得到的数据报文数，含恢复的报文
+     * @throws IOException 读写文件异常
+     */
+    public long receive(FileChannel channel, long totalPackets, int payloadSize, int fecGroupSize)
+            throws IOException {
+        long parityPackets = fecGroupSize > 0 ? (totalPackets + fecGroupSize - 1) / fecGroupSize : 0;
+        Thread drainer = new Thread(() -> drain(totalPackets + parityPackets), "udp-drain");
+        drainer.setDaemon(true);
+        drainer.start();
+        repairedPackets = 0;
+        progress = 0;
+        long written = 0;
+        BitSet arrived = new BitSet();
+        Map<Long, byte[]> parities = new HashMap<>();
+        try {
+            while (true) {
+                Slot slot = filled.take();
+                if (slot == END) {
+                    break;
+                }
+                try {
+                    int length = slot.packet.getLength();
+                    long header = length >= DataPacket.HEADER_SIZE ? DataPacket.readOffset(slot.buffer) : 0;
+                    if (fecGroupSize > 0 && DataPacket.isParity(header)) {
+                        long group = DataPacket.parityGroup(header);
+                        if (missing(arrived, group, fecGroupSize, totalPackets) > 0) {
+                            parities.put(group, Arrays.copyOf(slot.buffer, length));
+                        }
+                    } else if (length >= DataPacket.HEADER_SIZE) {
+                        long offset = header;
+                        if (fecGroupSize > 0) {
+                            arrived.set((int) (offset / payloadSize));
+                        }
+                        slot.view.limit(length).position(DataPacket.HEADER_SIZE);
+                        while (slot.view.hasRemaining()) {
+                            offset += channel.write(slot.view, offset);
+                        }
+                        progress = ++written;
+                    }
+                } finally {
+                    slot.view.clear();
+                    slot.packet.setLength(slot.buffer.length);
+                    free.add(slot);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            drainer.interrupt();
+            try {
+                drainer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Slot slot;
+            while ((slot = filled.poll()) != null) {
+                if (slot != END) {
+                    free.add(slot);
+                }
+            }
+        }
+        for (Map.Entry<Long, byte[]> parity : parities.entrySet()) {
+            if (missing(arrived, parity.getKey(), fecGroupSize, totalPackets) == 1) {
+                repair(channel, arrived, parity.getKey(), parity.getValue(), payloadSize, fecGroupSize, totalPackets);
+                ++repairedPackets;
+                ++progress;
+            }
+        }
+        return fecGroupSize > 0 ? arrived.cardinality() : written;
+    }
+
+    /**
+     * @return 组内尚未到达的数据报文数
+     */
+    private static int missing(BitSet arrived, long group, int fecGroupSize, long totalPackets) {
+        int from = (int) (group * fecGroupSize);
+        int to = (int) Math.min(from + fecGroupSize, totalPackets);
+        return to - from - arrived.get(from, to).cardinality();
+    }
+
+    /**
+     * 恢复组内唯一缺失的数据报文：校验载荷依次异或组内其他报文的载荷即为缺失报文的载荷，
+     * 长度同理由各载荷长度的异或得到
+     */
+    private static void repair(FileChannel channel, BitSet arrived, long group, byte[] parity,
+                               int payloadSize, int fecGroupSize, long totalPackets) throws IOException {
+        int from = (int) (group * fecGroupSize);
+        int to = (int) Math.min(from + fecGroupSize, totalPackets);
+        byte[] data = Arrays.copyOfRange(parity, DataPacket.HEADER_SIZE, DataPacket.HEADER_SIZE + payloadSize);
+        int length = DataPacket.parityLengths(DataPacket.readOffset(parity));
+        byte[] other = new byte[payloadSize];
+        int lost = -1;
+        for (int i = from; i < to; ++i) {
+            if (!arrived.get(i)) {
+                lost = i;
+                continue;
+            }
+            long position = (long) i * payloadSize;
+            int n = (int) Math.min(payloadSize, channel.size() - position);
+            ByteBuffer view = ByteBuffer.wrap(other, 0, n);
+            while (view.hasRemaining()) {
+                if (channel.read(view, position + view.position()) < 0) {
+                    throw new IOException("Packet " + i + " missing from file during repair");
+                }
+            }
+            DataPacket.xor(data, 0, other, 0, n);
+            length ^= n;
+        }
+        ByteBuffer view = ByteBuffer.wrap(data, 0, length);
+        long position = (long) lost * payloadSize;
+        while (view.hasRemaining()) {
+            position += channel.write(view, position);
+        }
+        arrived.set(lost);
+    }
+
+    /**
+     * 收包线程主体
+     *
+     * @param totalPackets 期望报文数（含校验报文）
+     */
+    private void drain(long totalPackets) {
+        try {
+            for (long received = 0; received < totalPackets; ++received) {
+                Slot slot = free.take();
+                try {
+                    udpSocket.receive(slot.packet);
+                } catch (IOException e) {
+                    free.add(slot);
+                    if (!(e instanceof SocketTimeoutException) && !udpSocket.isClosed()) {
+                        System.err.println(e.getMessage());
+                    }
+                    break;
+                }
+                filled.add(slot);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            filled.add(END);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package edu.lepturus.ftp.client;
+
+import edu.lepturus.ftp.utils.DataPacket;
+import edu.lepturus.ftp.utils.FileInfo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * 多副本并行下载。
+ * 先向每个副本查询文件大小与CRC32，与第一个应答的副本不一致的副本不参与；
+ * 文件切成若干块放入共享队列，每个副本一个工作线程，取块、请求该字节区间、写入同一个文件，
+ * 快的副本自然取走更多的块。块未收齐时放回队列由任一副本重取，
+ * 连续MAX_FAILURES块未收齐的副本退出本次下载；连接出错（拒绝、长时间无数据、断开）的副本立即退出，
+ * 其连接关闭，下次下载时重新建立。队列取空后空闲的副本会重复请求仍在别处进行的块，
+ * 慢副本手里的最后几块不会拖住整个下载。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class SwarmDownloader implements Closeable {
+    private static final int CHUNK_PACKETS = 8;
+    private static final int MAX_FAILURES = 3;
+    private static final int MAX_FETCHERS = 2;
+    private static final int NONE = -1;
+
+    private final List<InetSocketAddress> REPLICAS;
+    private final InetAddress CLIENT_ADDR;
+    private final int PACKET_SIZE;
+    private final Path ROOT;
+    private final ContentIndex contentIndex;
+    private final ControlConnection[] connections;
+    private final List<String> report = new ArrayList<>();
+
+    /**
+     * 一次下载的共享状态
+     */
+    private static final class Plan {
+        private final long size;
+        private final long chunkSize;
+        private final int chunkCount;
+        private final Deque<Integer> pending = new ArrayDeque<>();
+        private final BitSet done = new BitSet();
+        private final int[] fetchers;
+
+        Plan(long size, long chunkSize) {
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+            this.fetchers = new int[chunkCount];
+            for (int i = 0; i < chunkCount; ++i) {
+                pending.add(i);
+            }
+        }
+
+        /**
+         * 取下一块：先取队列，队列为空时取同时请求者最少的未完成块；
+         * 都没有但仍有块在别处进行时等待
+         *
+         * @return 块号，全部完成时返回NONE
+         */
+        synchronized int next() throws InterruptedException {
+            while (true) {
+                if (done.cardinality() == chunkCount) {
+                    return NONE;
+                }
+                Integer chunk = pending.poll();
+                if (chunk == null) {
+                    chunk = duplicate();
+                }
+                if (chunk != null) {
+                    ++fetchers[chunk];
+                    return chunk;
+                }
+                wait();
+            }
+        }
+
+        private Integer duplicate() {
+            Integer best = null;
+            for (int i = done.nextClearBit(0); i < chunkCount; i = done.nextClearBit(i + 1)) {
+                if (fetchers[i] < MAX_FETCHERS && (best == null || fetchers[i] < fetchers[best])) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        synchronized void finish(int chunk, boolean complete) {
+            --fetchers[chunk];
+            if (complete) {
+                done.set(chunk);
+                pending.remove(chunk);
+            } else if (!done.get(chunk) && fetchers[chunk] == 0 && !pending.contains(chunk)) {
+                pending.addFirst(chunk);
+            }
+            notifyAll();
+        }
+
+        synchronized boolean isComplete() {
+            return done.cardinality() == chunkCount;
+        }
+
+        long offset(int chunk) {
+            return chunk * chunkSize;
+        }
+
+        long length(int chunk) {
+            return Math.min(chunkSize, size - offset(chunk));
+        }
+    }
+
+    /**
+     * @param REPLICAS 各副本的地址
+     * @param CLIENT_ADDR 本机地址
+     * @param PACKET_SIZE 向各副本提议的报文长度
+     * @param ROOT 下载目录
+     * @param contentIndex 下载索引
+     */
+    public SwarmDownloader(List<InetSocketAddress> REPLICAS,
+                           InetAddress CLIENT_ADDR,
+                           int PACKET_SIZE,
+                           Path ROOT,
+                           ContentIndex contentIndex) {
+        this.REPLICAS = REPLICAS;
+        this.CLIENT_ADDR = CLIENT_ADDR;
+        this.PACKET_SIZE = PACKET_SIZE;
+        this.ROOT = ROOT;
+        this.contentIndex = contentIndex;
+        this.connections = new ControlConnection[REPLICAS.size()];
+    }
+
+    /**
+     * @return 上一次下载中各副本的贡献
+     */
+    public List<String> getReport() {
+        return report;
+    }
+
+    /**
+     * 从所有可用副本并行下载
+     *
+     * @param pwd 工作目录，格式与服务器回复的工作目录行相同
+     * @param path 相对于工作目录的路径
+     * @return 接收结果，FileInfo中的报文数为块数
+     * @throws IOException 没有可用的副本，或写本地文件失败
+     */
+    public FileReceiver.Result download(String pwd, String path) throws IOException {
+        report.clear();
+        String fileName = Paths.get(path).getFileName().toString();
+        Path filePath = ROOT.resolve(fileName);
+        List<ControlConnection> sources = new ArrayList<>();
+        long size = NONE;
+        String crc32 = null;
+        for (int i = 0; i < connections.length; ++i) {
+            try {
+                if (connections[i] == null) {
+                    connections[i] = ControlConnection.open(REPLICAS.get(i).getAddress(), REPLICAS.get(i).getPort(),
+                            CLIENT_ADDR, PACKET_SIZE, ROOT, contentIndex);
+                }
+                connections[i].changeDirectory(pwd);
+                List<String> response = connections[i].command("stat " + ControlConnection.quote(path));
+                String[] stat = response.isEmpty() ? new String[0] : response.get(0).split(" ");
+                if (stat.length != 2 || !stat[0].matches("\\d+")) {
+                    throw new IOException(response.isEmpty() ? "No response" : response.get(0));
+                }
+                if (crc32 == null) {
+                    size = Long.parseLong(stat[0]);
+                    crc32 = stat[1];
+                } else if (size != Long.parseLong(stat[0]) || !crc32.equals(stat[1])) {
+                    report.add(connections[i] + ": serves a different version (" + stat[0] + " bytes, crc " + stat[1]
+                            + "), skipped");
+                    continue;
+                }
+                sources.add(connections[i]);
+            } catch (IOException e) {
+                report.add(REPLICAS.get(i).getAddress().getHostAddress() + ":" + REPLICAS.get(i).getPort()
+                        + ": " + e.getMessage() + ", skipped");
+                if (connections[i] != null) {
+                    connections[i].close();
+                    connections[i] = null;
+                }
+            }
+        }
+        if (sources.isEmpty()) {
+            throw new IOException("No replica can serve " + path);
+        }
+        if (crc32.equals(contentIndex.lookup(fileName))) {
+            return new FileReceiver.Result(FileInfo.notModified(fileName, crc32), filePath, 0, 0, 0, crc32);
+        }
+        int payloadSize = Integer.MAX_VALUE;
+        for (ControlConnection source : sources) {
+            payloadSize = Math.min(payloadSize, DataPacket.payloadSize(source.getPacketSize()));
+        }
+        Plan plan = new Plan(size, (long) payloadSize * CHUNK_PACKETS);
+        long[] chunks = new long[sources.size()];
+        long[] bytes = new long[sources.size()];
+        boolean[] broken = new boolean[sources.size()];
+        try (FileChannel channel = FileChannel.open(filePath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Thread[] workers = new Thread[sources.size()];
+            for (int i = 0; i < workers.length; ++i) {
+                final int worker = i;
+                workers[i] = new Thread(() -> fetch(sources.get(worker), plan, path, channel,
+                        chunks, bytes, broken, worker),
+                        "swarm-" + sources.get(i));
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        long transferred = 0;
+        for (int i = 0; i < sources.size(); ++i) {
+            transferred += bytes[i];
+            report.add(sources.get(i) + ": " + chunks[i] + " chunks, " + bytes[i] + " bytes"
+                    + (broken[i] ? ", connection dropped" : ""));
+            if (broken[i]) {
+                for (int j = 0; j < connections.length; ++j) {
+                    if (connections[j] == sources.get(i)) {
+                        connections[j] = null;
+                    }
+                }
+                sources.get(i).close();
+            }
+        }
+        long completed = plan.done.cardinality();
+        String dstCrc32 = plan.isComplete() ? FileInfo.crc32Calculator(filePath) : null;
+        if (crc32.equals(dstCrc32)) {
+            contentIndex.record(fileName, dstCrc32);
+        }
+        return new FileReceiver.Result(new FileInfo(fileName, plan.chunkCount, crc32),
+                filePath, completed, 0, transferred, dstCrc32);
+    }
+
+    /**
+     * 一个副本的工作线程主体
+     */
+    private void fetch(ControlConnection source, Plan plan, String path, FileChannel channel,
+                       long[] chunks, long[] bytes, boolean[] broken, int worker) {
+        int failures = 0;
+        try {
+            int chunk;
+            while ((chunk = plan.next()) != NONE) {
+                boolean complete = false;
+                try {
+                    long received = source.range(path, plan.offset(chunk), plan.length(chunk), channel);
+                    bytes[worker] += received;
+                    complete = received == plan.length(chunk);
+                } catch (IOException e) {
+                    System.err.println(source + ": " + e.getMessage() + ", dropped from this download");
+                    broken[worker] = true;
+                    return;
+                } finally {
+                    plan.finish(chunk, complete);
+                }
+                if (complete) {
+                    ++chunks[worker];
+                    failures = 0;
+                } else if (++failures >= MAX_FAILURES) {
+                    System.err.println(source + ": " + failures + " incomplete chunks in a row, dropped from this download");
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < connections.length; ++i) {
+            if (connections[i] != null) {
+                connections[i].close();
+                connections[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package edu.lepturus.ftp.client;
+
+import edu.lepturus.ftp.utils.DataPacket;
+import edu.lepturus.ftp.utils.DeltaCodec;
+import edu.lepturus.ftp.utils.FileInfo;
+import edu.lepturus.ftp.utils.SessionTrace;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 会话轨迹回放工具。
+ * 读取服务器记录的会话轨迹，每个会话一个线程，以记录的报文长度握手，
+ * 按原始（或加速后的）时间间隔重发命令，但不早于上一条命令的回复；
+ * 后台传输改为发往回放自己打开的UDP端口。回放结束后输出客户端测得的
+ * 各命令往返时间和传输吞吐量，两次回放（如对两个版本的服务器）的输出可以直接对比。
+ * 轨迹中记录的是服务器处理命令的时间，与往返时间不是同一个量，不放在一起比较；
+ * 要比较服务器端时间，被测服务器同样开启轨迹记录，再用compare对比两组轨迹。
+ * 轨迹不记录增量下载的签名行，回放时按记录的块数补发全零签名。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class TraceReplay {
+    private static final String PARA_CLIENT_NAME = "127.0.0.1";
+    private static final String TRACE_GLOB = "trace-*.bin";
+    private static final Pattern JOB_PORT = Pattern.compile("^(\\s*job\\s+)\\d+");
+    private static final Pattern JOB_STARTED = Pattern.compile("^Job (\\d+) started: ");
+    private static final Set<String> TRANSFER_COMMANDS = new HashSet<>(Arrays.asList("get", "delta", "range"));
+    /**
+     * 后台传输静默超过IDLE视为结束，START_WAIT内没有任何报文视为未开始
+     */
+    private static final long IDLE = TimeUnit.SECONDS.toNanos(2);
+    private static final long START_WAIT = TimeUnit.SECONDS.toNanos(30);
+
+    private final InetAddress hostAddr;
+    private final int hostPort;
+    private final double speed;
+    private final List<SessionTrace.Recording> recordings;
+
+    private final Map<String, Latencies> latencies = new TreeMap<>();
+    private final Throughput replayedTransfers = new Throughput();
+    private final AtomicInteger failedSessions = new AtomicInteger();
+
+    private static final long DELTA = 200;
+
+    /**
+     * @param hostAddr 被测服务器地址
+     * @param hostPort 被测服务器端口
+     * @param speed 回放倍速，0表示不等待、尽快发送
+     * @param recordings 会话轨迹
+     */
+    public TraceReplay(InetAddress hostAddr, int hostPort, double speed, List<SessionTrace.Recording> recordings) {
+        this.hostAddr = hostAddr;
+        this.hostPort = hostPort;
+        this.speed = speed;
+        this.recordings = recordings;
+    }
+
+    /**
+     * 一类命令的延迟样本（微秒）：回放只用第一列；对比两组轨迹时两列分别为基准与被测
+     */
+    private static class Latencies {
+        private final List<Long> first = new ArrayList<>();
+        private final List<Long> second = new ArrayList<>();
+    }
+
+    /**
+     * 传输次数、字节数与耗时（微秒）的累计
+     */
+    private static class Throughput {
+        private long count;
+        private long bytes;
+        private long micros;
+
+        synchronized void add(long bytes, long micros) {
+            ++count;
+            this.bytes += bytes;
+            this.micros += micros;
+        }
+
+        synchronized String summary() {
+            double seconds = micros / 1e6;
+            return String.format("%d transfers, %.2f MiB in %.2f s, %.2f MiB/s", count,
+                    bytes / (1024.0 * 1024.0), seconds, seconds > 0 ? bytes / (1024.0 * 1024.0) / seconds : 0.0);
+        }
+    }
+
+    /**
+     * 接收一个UDP端口上的数据报文，统计数据字节数与最后到达时间，文件信息与校验报文不计字节
+     */
+    private static class Sink implements Runnable {
+        private final DatagramSocket udpSocket;
+        private final Thread thread;
+        private volatile long bytes = 0;
+        private volatile long lastActivity = 0;
+        private volatile long lastData = 0;
+        private long sent;
+
+        private final Object lock = new Object();
+
+        Sink(DatagramSocket udpSocket) {
+            this.udpSocket = udpSocket;
+            this.thread = new Thread(this, "replay-sink-" + udpSocket.getLocalPort());
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[DataPacket.MAX_PACKET_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                while (true) {
+                    packet.setLength(buffer.length);
+                    udpSocket.receive(packet);
+                    long now = System.nanoTime();
+                    lastActivity = now;
+                    if (isData(buffer, packet.getLength())) {
+                        bytes += packet.getLength() - DataPacket.HEADER_SIZE;
+                        lastData = now;
+                    }
+                }
+            } catch (IOException e) {
+                // 套接字已关闭
+            }
+        }
+
+        private static boolean isData(byte[] buffer, int length) {
+            if (length <= DataPacket.HEADER_SIZE || FileInfo.isFileInfo(buffer, length)) {
+                return false;
+            }
+            return !DataPacket.isParity(DataPacket.readOffset(buffer));
+        }
+
+        int getPort() {
+            return udpSocket.getLocalPort();
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * 等待后台传输结束：收到报文后静默超过IDLE，或START_WAIT内一个报文都没有
+         *
+         * @return 从发出命令到最后一个数据报文的微秒数
+         * @throws InterruptedException 被中断
+         */
+        long awaitIdle() throws InterruptedException {
+            while (true) {
+                long now = System.nanoTime();
+                long last = lastActivity;
+                if (last == 0 ? now - sent > START_WAIT : now - last > IDLE) {
+                    return lastData == 0 ? 0 : (lastData - sent) / 1000;
+                }
+                synchronized (lock) {
+                    lock.wait(DELTA);
+                }
+            }
+        }
+
+        void close() {
+            udpSocket.close();
+        }
+    }
+
+    /**
+     * 回放所有会话并输出对比结果
+     *
+     * @throws InterruptedException 被中断
+     */
+    public void run() throws InterruptedException {
+        long earliest = Long.MAX_VALUE;
+        for (SessionTrace.Recording recording : recordings) {
+            earliest = Math.min(earliest, recording.getStartMillis());
+        }
+        long base = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (SessionTrace.Recording recording : recordings) {
+            long sessionStart = base + scale(TimeUnit.MILLISECONDS.toNanos(recording.getStartMillis() - earliest));
+            Thread thread = new Thread(() -> replay(recording, sessionStart), "replay-" + recording.getUuid());
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report();
+    }
+
+    /**
+     * 按倍速缩放时间间隔
+     */
+    private long scale(long nanos) {
+        return speed > 0 ? (long) (nanos / speed) : 0;
+    }
+
+    private void sleepUntil(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    /**
+     * 回放一个会话
+     *
+     * @param recording 会话轨迹
+     * @param sessionStart 会话开始的时刻（System.nanoTime）
+     */
+    private void replay(SessionTrace.Recording recording, long sessionStart) {
+        Map<Integer, Integer> recordedOutcomes = new HashMap<>();
+        for (SessionTrace.Record record : recording.getRecords()) {
+            if (record.getType() == SessionTrace.TRANSFER) {
+                recordedOutcomes.put(record.getJob(), record.getOutcome());
+            }
+        }
+        Map<Integer, Sink> jobs = new TreeMap<>();
+        try {
+            sleepUntil(sessionStart);
+            try (ControlConnection connection = ControlConnection.open(
+                    hostAddr,
+                    hostPort,
+                    InetAddress.getByName(PARA_CLIENT_NAME),
+                    recording.getPacketSize(),
+                    Paths.get(System.getProperty("java.io.tmpdir")),
+                    new ContentIndex(Paths.get(System.getProperty("java.io.tmpdir"))))) {
+                Sink foreground = new Sink(connection.getUdpSocket());
+                for (SessionTrace.Record record : recording.getRecords()) {
+                    if (record.getType() != SessionTrace.COMMAND) {
+                        continue;
+                    }
+                    String line = record.getLine();
+                    if (line.trim().equals("bye")) {
+                        break;
+                    }
+                    sleepUntil(sessionStart + scale(TimeUnit.MICROSECONDS.toNanos(record.getStart())));
+                    Sink job = null;
+                    Matcher matcher = JOB_PORT.matcher(line);
+                    if (matcher.find()) {
+                        job = new Sink(new DatagramSocket(0));
+                        line = matcher.group(1) + job.getPort() + line.substring(matcher.end());
+                    }
+                    long before = foreground.getBytes();
+                    long sent = System.nanoTime();
+                    List<String> response = connection.command(line, signatureLines(line));
+                    long latency = (System.nanoTime() - sent) / 1000;
+                    String name = commandName(line);
+                    addLatency(name, latency);
+                    long bytes = foreground.getBytes() - before;
+                    if (TRANSFER_COMMANDS.contains(name) && bytes > 0) {
+                        replayedTransfers.add(bytes, latency);
+                    }
+                    if (job != null) {
+                        job.sent = sent;
+                        Matcher started = response.isEmpty() ? null : JOB_STARTED.matcher(response.get(0));
+                        if (started != null && started.find()) {
+                            jobs.put(Integer.parseInt(started.group(1)), job);
+                        } else {
+                            job.close();
+                        }
+                    }
+                }
+                for (Map.Entry<Integer, Sink> entry : jobs.entrySet()) {
+                    long micros = entry.getValue().awaitIdle();
+                    Integer outcome = recordedOutcomes.get(entry.getKey());
+                    if (outcome != null && outcome == SessionTrace.SENT && entry.getValue().getBytes() > 0) {
+                        replayedTransfers.add(entry.getValue().getBytes(), micros);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            failedSessions.incrementAndGet();
+            System.err.println("Session " + recording.getUuid() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Sink job : jobs.values()) {
+                job.close();
+            }
+        }
+    }
+
+    /**
+     * @return 增量下载命令（最后一个参数为块数）之后应发送的签名行，其他命令为空
+     */
+    private static List<String> signatureLines(String line) {
+        String[] tokens = line.trim().split("\\s+");
+        String name = commandName(line);
+        if (!name.equals("delta") && !name.equals("job delta")) {
+            return Collections.emptyList();
+        }
+        long blocks;
+        try {
+            blocks = Long.parseLong(tokens[tokens.length - 1]);
+        } catch (NumberFormatException e) {
+            return Collections.emptyList();
+        }
+        if (blocks < 0 || blocks > DeltaCodec.MAX_BLOCKS) {
+            return Collections.emptyList();
+        }
+        return DeltaCodec.signatureLines(new byte[(int) blocks * DeltaCodec.SIGNATURE_SIZE]);
+    }
+
+    /**
+     * @return 统计用的命令名，后台传输带上传输方式
+     */
+    private static String commandName(String line) {
+        String[] tokens = line.trim().split("\\s+");
+        if (tokens[0].equals("job") && tokens.length > 2) {
+            return "job " + tokens[2];
+        }
+        return tokens[0];
+    }
+
+    private synchronized void addLatency(String name, long roundTrip) {
+        latencies.computeIfAbsent(name, k -> new Latencies()).first.add(roundTrip);
+    }
+
+    private static String percentiles(List<Long> samples) {
+        if (samples.isEmpty()) {
+            return "-";
+        }
+        List<Long> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted);
+        return String.format("%.1f / %.1f", percentile(sorted, 0.50) / 1000.0, percentile(sorted, 0.95) / 1000.0);
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(p * sorted.size()) - 1));
+    }
+
+    private synchronized void report() {
+        System.out.println("Replayed " + recordings.size() + " sessions (" + failedSessions.get() + " failed) at "
+                + (speed > 0 ? speed + "x" : "full speed"));
+        System.out.println(String.format("%-12s %7s %24s", "command", "count", "round trip p50/p95 ms"));
+        for (Map.Entry<String, Latencies> entry : latencies.entrySet()) {
+            Latencies samples = entry.getValue();
+            System.out.println(String.format("%-12s %7d %24s", entry.getKey(), samples.first.size(),
+                    percentiles(samples.first)));
+        }
+        System.out.println("replayed: " + replayedTransfers.summary());
+    }
+
+    /**
+     * 对比两组轨迹，两边都是服务器记录的命令处理时间与传输耗时，可以直接比较。
+     * 例如用旧版本服务器的轨迹回放新版本（新版本同样开启轨迹记录），再对比旧轨迹与新轨迹
+     *
+     * @param baseline 基准轨迹
+     * @param candidate 被测轨迹
+     */
+    public static void compare(List<SessionTrace.Recording> baseline, List<SessionTrace.Recording> candidate) {
+        Map<String, Latencies> latencies = new TreeMap<>();
+        Throughput baselineTransfers = new Throughput();
+        Throughput candidateTransfers = new Throughput();
+        collect(baseline, latencies, true, baselineTransfers);
+        collect(candidate, latencies, false, candidateTransfers);
+        System.out.println("Compared " + baseline.size() + " baseline and " + candidate.size()
+                + " candidate sessions, server time");
+        System.out.println(String.format("%-12s %7s %20s %7s %20s", "command",
+                "count", "baseline p50/p95 ms", "count", "candidate p50/p95 ms"));
+        for (Map.Entry<String, Latencies> entry : latencies.entrySet()) {
+            Latencies samples = entry.getValue();
+            System.out.println(String.format("%-12s %7d %20s %7d %20s", entry.getKey(),
+                    samples.first.size(), percentiles(samples.first),
+                    samples.second.size(), percentiles(samples.second)));
+        }
+        System.out.println("baseline:  " + baselineTransfers.summary());
+        System.out.println("candidate: " + candidateTransfers.summary());
+    }
+
+    /**
+     * 汇总一组轨迹中各命令的服务器处理时间和成功传输的吞吐量
+     *
+     * @param first 放入第一列（基准），否则第二列
+     */
+    private static void collect(List<SessionTrace.Recording> recordings, Map<String, Latencies> latencies,
+                                boolean first, Throughput transfers) {
+        for (SessionTrace.Recording recording : recordings) {
+            for (SessionTrace.Record record : recording.getRecords()) {
+                if (record.getType() == SessionTrace.COMMAND) {
+                    Latencies samples = latencies.computeIfAbsent(commandName(record.getLine()), k -> new Latencies());
+                    (first ? samples.first : samples.second).add(record.getDuration());
+                } else if (record.getOutcome() == SessionTrace.SENT && record.getBytes() > 0) {
+                    transfers.add(record.getBytes(), record.getDuration());
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取轨迹文件，目录则读取其中所有trace-*.bin
+     */
+    private static void load(Path path, List<SessionTrace.Recording> recordings) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, TRACE_GLOB)) {
+                for (Path file : stream) {
+                    recordings.add(SessionTrace.read(file));
+                }
+            }
+        } else {
+            recordings.add(SessionTrace.read(path));
+        }
+    }
+
+    /**
+     * 回放：args[0]: 被测服务器，主机:端口；args[1]: 回放倍速，1为原速，0为不等待；
+     * args[2...]: 轨迹文件或轨迹目录。
+     * 对比：args[0]: compare；args[1]: 基准轨迹文件或目录；args[2]: 被测轨迹文件或目录
+     *
+     * @param args args
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: TraceReplay <host:port> <speed> <trace file or directory>...");
+            System.err.println("       TraceReplay compare <baseline traces> <candidate traces>");
+            return;
+        }
+        try {
+            if (args[0].equals("compare") && args.length == 3) {
+                List<SessionTrace.Recording> baseline = new ArrayList<>();
+                List<SessionTrace.Recording> candidate = new ArrayList<>();
+                load(Paths.get(args[1]), baseline);
+                load(Paths.get(args[2]), candidate);
+                compare(baseline, candidate);
+                return;
+            }
+            int colon = args[0].lastIndexOf(':');
+            List<SessionTrace.Recording> recordings = new ArrayList<>();
+            for (int i = 2; i < args.length; ++i) {
+                load(Paths.get(args[i]), recordings);
+            }
+            new TraceReplay(
+                    InetAddress.getByName(args[0].substring(0, colon)),
+                    Integer.parseInt(args[0].substring(colon + 1)),
+                    Double.parseDouble(args[1]),
+                    recordings).run();
+        } catch (IOException | RuntimeException e) {
+            System.err.println(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
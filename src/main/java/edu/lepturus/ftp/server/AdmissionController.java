@@ -0,0 +1,159 @@
+package edu.lepturus.ftp.server;
+
+import edu.lepturus.ftp.utils.Reply;
+
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 准入控制类。
+ * 会话线程池与传输许可都是有界的：超出容量时立即拒绝并提示客户端稍后重试，
+ * 而不是无限排队；内存紧张时回收空闲会话。
+ * 会话不排队：没有空闲线程时直接拒绝，被接纳的会话立即开始运行，
+ * 马上收到欢迎回复并登记，回收线程看得到每一个占着连接的会话。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class AdmissionController {
+    private final ThreadPoolExecutor sessionPool;
+    private final Semaphore transferPermits;
+    private final Semaphore followPermits;
+    private final AtomicInteger waitingTransfers = new AtomicInteger();
+    private final int MAX_QUEUED_TRANSFERS;
+    private final long TRANSFER_WAIT;
+    private final long RETRY_AFTER;
+
+    private final Set<ServerSession> sessions = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService reaper;
+    private static final long REAP_PERIOD = 5 * 1000;
+    private static final double MEMORY_PRESSURE_RATIO = 0.85;
+    private static final long PRESSURE_IDLE_TIMEOUT = 30 * 1000;
+
+    /**
+     * @param MAX_SESSIONS 同时运行的会话数上限
+     * @param MAX_TRANSFERS 同时进行的传输数上限
+     * @param MAX_FOLLOWS 同时进行的跟随数上限，跟随不占用传输许可
+     * @param MAX_QUEUED_TRANSFERS 等待传输许可的请求数上限
+     * @param TRANSFER_WAIT 等待传输许可的最长时间（毫秒）
+     * @param RETRY_AFTER 建议客户端重试的间隔（毫秒）
+     */
+    public AdmissionController(int MAX_SESSIONS,
+                               int MAX_TRANSFERS,
+                               int MAX_FOLLOWS,
+                               int MAX_QUEUED_TRANSFERS,
+                               long TRANSFER_WAIT,
+                               long RETRY_AFTER) {
+        this.sessionPool = new ThreadPoolExecutor(
+                MAX_SESSIONS, MAX_SESSIONS,
+                60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.transferPermits = new Semaphore(MAX_TRANSFERS, true);
+        this.followPermits = new Semaphore(MAX_FOLLOWS);
+        this.MAX_QUEUED_TRANSFERS = MAX_QUEUED_TRANSFERS;
+        this.TRANSFER_WAIT = TRANSFER_WAIT;
+        this.RETRY_AFTER = RETRY_AFTER;
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reaper.scheduleWithFixedDelay(this::reapUnderPressure,
+                REAP_PERIOD, REAP_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return 过载时回复客户端的消息
+     */
+    public String busyMessage() {
+        return Reply.BUSY + ", retry after " + RETRY_AFTER + " ms";
+    }
+
+    /**
+     * 提交会话，没有空闲线程时立即失败
+     *
+     * @param session 会话
+     * @return 是否被接纳
+     */
+    public boolean admitSession(ServerSession session) {
+        try {
+            sessionPool.execute(session);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    void register(ServerSession session) {
+        sessions.add(session);
+    }
+
+    void deregister(ServerSession session) {
+        sessions.remove(session);
+    }
+
+    /**
+     * 获取一个传输许可。等待者过多或等待超时则返回false。
+     *
+     * @return 是否获得许可
+     */
+    public boolean acquireTransfer() {
+        if (transferPermits.tryAcquire()) {
+            return true;
+        }
+        if (waitingTransfers.incrementAndGet() > MAX_QUEUED_TRANSFERS) {
+            waitingTransfers.decrementAndGet();
+            return false;
+        }
+        try {
+            return transferPermits.tryAcquire(TRANSFER_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waitingTransfers.decrementAndGet();
+        }
+    }
+
+    public void releaseTransfer() {
+        transferPermits.release();
+    }
+
+    /**
+     * 获取一个跟随名额，不等待：跟随不会自行结束，等到的名额也要很久才归还
+     *
+     * @return 是否获得名额
+     */
+    public boolean acquireFollow() {
+        return followPermits.tryAcquire();
+    }
+
+    public void releaseFollow() {
+        followPermits.release();
+    }
+
+    /**
+     * 堆内存使用率超过阈值时，关闭空闲时间较长的会话
+     */
+    private void reapUnderPressure() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        if ((double) used / runtime.maxMemory() < MEMORY_PRESSURE_RATIO) {
+            return;
+        }
+        for (ServerSession session : sessions) {
+            if (session.idleFor() > PRESSURE_IDLE_TIMEOUT) {
+                System.out.println("Memory pressure, reaping idle session: uuid "
+                        + session.getSessionInfo().getUuid());
+                session.close();
+            }
+        }
+    }
+
+    public void shutdown() {
+        reaper.shutdownNow();
+        sessionPool.shutdownNow();
+    }
+}
@@ -0,0 +1,502 @@
+package edu.lepturus.ftp.server;
+
+import edu.lepturus.ftp.utils.FileInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 服务器共享的热点文件块缓存。
+ * 文件按CHUNK_SIZE切块存放在堆外内存中，以文件标识（路径+修改时间+大小）和块号为键；
+ * 淘汰策略为分段LRU：新块进入试用段，再次命中才晋升到保护段，
+ * 一次性的大文件顺序扫描只会冲刷试用段，不会挤掉真正的热点块。
+ * 一块由多个报文读取，每个读者只有读到一块的第一个报文才算一次访问（计入命中率、可能晋升），
+ * 预读进来（以及计算校验和时读进来）的块被读者第一次读到时算作未命中，也不晋升。
+ * 同一块的并发未命中只读一次磁盘。
+ * 发送方可以预读：后面几块交给读盘线程异步加载，放进同一张加载表，发送方读到时直接等待或命中，
+ * 读盘与发送重叠进行；预读深度按实测的读盘延迟与发送方消耗一块的时间计算。
+ * 文件的CRC32在读者从第0块起按顺序读块时顺便累加，读完最后一块即记入备忘，共享传输的第一轮
+ * 就把校验和算好了；备忘未命中时经缓存逐块计算，读进来的块留给随后的发送，不多读一遍磁盘。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class ChunkCache {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final double PROTECTED_RATIO = 0.8;
+    /**
+     * 同时累加中的CRC32个数上限
+     */
+    private static final int MAX_PARTIAL_CHECKSUMS = 64;
+    private static final int MAX_READ_AHEAD = 16;
+    private static final int READER_THREADS = 4;
+    /**
+     * 读盘延迟指数加权平均的平滑系数（新样本占1/LATENCY_SMOOTHING）
+     */
+    private static final int LATENCY_SMOOTHING = 8;
+
+    private final long MAX_CHUNKS;
+    private final long MAX_PROTECTED;
+
+    private final LinkedHashMap<ChunkKey, ByteBuffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<ChunkKey, ByteBuffer> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * 预读进来、尚未被读者访问的块
+     */
+    private final Set<ChunkKey> prefetched = new HashSet<>();
+    private final ConcurrentHashMap<ChunkKey, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+
+    /**
+     * 文件CRC32备忘，条目数上限与缓存的块数相同；partials中是按块顺序累加中的，两者都由checksums的锁保护
+     */
+    private final Map<FileIdentity, String> checksums;
+    private final Map<FileIdentity, PartialChecksum> partials;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong prefetches = new AtomicLong();
+    private volatile long loadLatency = 0;
+
+    private final ExecutorService readers = Executors.newFixedThreadPool(READER_THREADS, r -> {
+        Thread thread = new Thread(r, "chunk-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 缓存键：文件标识与块号
+     */
+    private static final class ChunkKey {
+        private final FileIdentity identity;
+        private final long index;
+
+        ChunkKey(FileIdentity identity, long index) {
+            this.identity = identity;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ChunkKey that = (ChunkKey) o;
+            return index == that.index && Objects.equals(identity, that.identity);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * identity.hashCode() + Long.hashCode(index);
+        }
+    }
+
+    /**
+     * 按块顺序累加中的CRC32，next为下一个要累加的块号
+     */
+    private static final class PartialChecksum {
+        private final CRC32 crc32 = new CRC32();
+        private long next = 0;
+    }
+
+    /**
+     * 一个读者（一次传输）读到的位置，用于判断是否刚进入一个新块；不是线程安全的，每个读者一个
+     */
+    public static final class Cursor {
+        private FileIdentity identity;
+        private long index = -1;
+
+        /**
+         * @return 是否为该读者对这一块的第一次读取
+         */
+        private boolean advance(FileIdentity identity, long index) {
+            if (index == this.index && identity.equals(this.identity)) {
+                return false;
+            }
+            this.identity = identity;
+            this.index = index;
+            return true;
+        }
+    }
+
+    /**
+     * @param CAPACITY 缓存容量（字节）
+     */
+    public ChunkCache(long CAPACITY) {
+        this.MAX_CHUNKS = Math.max(1, CAPACITY / CHUNK_SIZE);
+        this.MAX_PROTECTED = (long) (MAX_CHUNKS * PROTECTED_RATIO);
+        long maxChecksums = MAX_CHUNKS;
+        this.checksums = new LinkedHashMap<FileIdentity, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<FileIdentity, String> eldest) {
+                return size() > maxChecksums;
+            }
+        };
+        this.partials = new LinkedHashMap<FileIdentity, PartialChecksum>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<FileIdentity, PartialChecksum> eldest) {
+                return size() > MAX_PARTIAL_CHECKSUMS;
+            }
+        };
+    }
+
+    /**
+     * 从缓存读取文件内容，未命中时经channel从磁盘读取并放入缓存
+     *
+     * @param identity 文件标识
+     * @param channel 已打开的文件
+     * @param position 文件偏移
+     * @param dst 目标数组
+     * @param off 目标数组偏移
+     * @param len 最多读取的字节数
+     * @param cursor 该读者的读取位置，同一块的后续读取不算访问
+     * @return 实际读取的字节数，文件末尾返回-1
+     * @throws IOException 读取磁盘失败
+     */
+    public int read(FileIdentity identity, FileChannel channel, long position,
+                    byte[] dst, int off, int len, Cursor cursor) throws IOException {
+        if (position >= identity.getSize()) {
+            return -1;
+        }
+        int total = 0;
+        while (total < len && position < identity.getSize()) {
+            long index = position / CHUNK_SIZE;
+            boolean access = cursor.advance(identity, index);
+            ByteBuffer chunk = chunk(identity, channel, index, access);
+            if (access) {
+                accumulate(identity, index, chunk);
+            }
+            int inChunk = (int) (position % CHUNK_SIZE);
+            if (inChunk >= chunk.limit()) {
+                break;
+            }
+            int n = Math.min(len - total, chunk.limit() - inChunk);
+            chunk.position(inChunk);
+            chunk.get(dst, off + total, n);
+            total += n;
+            position += n;
+        }
+        return total;
+    }
+
+    /**
+     * 获取一个块的只读视图
+     *
+     * @param identity 文件标识
+     * @param channel 已打开的文件
+     * @param index 块号
+     * @param access 是否算作一次访问：计入命中率，试用段中的块随之晋升
+     * @return 只读视图，调用者独占其position与limit
+     * @throws IOException 读取磁盘失败
+     */
+    private ByteBuffer chunk(FileIdentity identity, FileChannel channel, long index, boolean access)
+            throws IOException {
+        ChunkKey key = new ChunkKey(identity, index);
+        ByteBuffer cached = lookup(key, access);
+        if (cached != null) {
+            return cached.duplicate();
+        }
+        if (access) {
+            misses.incrementAndGet();
+        }
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            try {
+                ByteBuffer loaded = await(existing);
+                if (access) {
+                    demanded(key);
+                }
+                return loaded.duplicate();
+            } catch (IOException e) {
+                // 别人的读取失败（例如预读者的文件已关闭），用自己的channel重读
+                ByteBuffer loaded = load(channel, index);
+                store(key, loaded, access);
+                return loaded.duplicate();
+            }
+        }
+        try {
+            ByteBuffer loaded = load(channel, index);
+            store(key, loaded, access);
+            future.complete(loaded);
+            return loaded.duplicate();
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key);
+        }
+    }
+
+    private static ByteBuffer await(CompletableFuture<ByteBuffer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for chunk", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * 预读position所在块之后的depth个块，不越过end；已缓存或正在加载的块跳过。
+     * 加载在读盘线程中进行，不阻塞调用者。
+     *
+     * @param identity 文件标识
+     * @param channel 已打开的文件，调用者关闭后尚未开始的预读会失败并被丢弃
+     * @param position 当前读取位置
+     * @param end 预读不超过此偏移
+     * @param depth 预读块数
+     */
+    public void readAhead(FileIdentity identity, FileChannel channel, long position, long end, int depth) {
+        long last = (Math.min(end, identity.getSize()) - 1) / CHUNK_SIZE;
+        for (long index = position / CHUNK_SIZE + 1; index <= Math.min(last, position / CHUNK_SIZE + depth); ++index) {
+            ChunkKey key = new ChunkKey(identity, index);
+            if (contains(key)) {
+                continue;
+            }
+            CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+            if (loading.putIfAbsent(key, future) != null) {
+                continue;
+            }
+            prefetches.incrementAndGet();
+            final long chunkIndex = index;
+            readers.execute(() -> {
+                try {
+                    ByteBuffer loaded = load(channel, chunkIndex);
+                    insertPrefetched(key, loaded);
+                    future.complete(loaded);
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    loading.remove(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * 预读深度：读一块的平均延迟内发送方能消耗几块，就提前几块，至少1块（双缓冲）
+     *
+     * @param chunkInterval 发送方消耗一块的时间（纳秒）
+     * @return 预读块数
+     */
+    public int readAheadDepth(long chunkInterval) {
+        long depth = 1 + loadLatency / Math.max(1, chunkInterval);
+        return (int) Math.min(MAX_READ_AHEAD, depth);
+    }
+
+    private ByteBuffer load(FileChannel channel, long index) throws IOException {
+        long begin = System.nanoTime();
+        long start = index * CHUNK_SIZE;
+        int length = (int) Math.min(CHUNK_SIZE, Math.max(0, channel.size() - start));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        long latency = loadLatency;
+        loadLatency = latency + (System.nanoTime() - begin - latency) / LATENCY_SMOOTHING;
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private synchronized boolean contains(ChunkKey key) {
+        return protectedSegment.containsKey(key) || probation.containsKey(key);
+    }
+
+    /**
+     * 查找缓存的块；算作访问时计入命中率，试用段中的块晋升到保护段，
+     * 但预读进来的块第一次被访问时算作未命中，留在试用段
+     *
+     * @param key 缓存键
+     * @param access 是否算作一次访问
+     * @return 缓存的块，没有时为null
+     */
+    private synchronized ByteBuffer lookup(ChunkKey key, boolean access) {
+        ByteBuffer buffer = protectedSegment.get(key);
+        if (buffer != null) {
+            if (access) {
+                hits.incrementAndGet();
+            }
+            return buffer;
+        }
+        buffer = probation.get(key);
+        if (buffer == null || !access) {
+            return buffer;
+        }
+        if (prefetched.remove(key)) {
+            misses.incrementAndGet();
+            return buffer;
+        }
+        hits.incrementAndGet();
+        probation.remove(key);
+        protectedSegment.put(key, buffer);
+        while (protectedSegment.size() > MAX_PROTECTED) {
+            Iterator<Map.Entry<ChunkKey, ByteBuffer>> eldest = protectedSegment.entrySet().iterator();
+            Map.Entry<ChunkKey, ByteBuffer> demoted = eldest.next();
+            eldest.remove();
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+        evictOverflow();
+        return buffer;
+    }
+
+    /**
+     * 放入读到的块；不算访问的读取（如计算校验和）与预读一样，读者第一次读到时才算访问
+     */
+    private void store(ChunkKey key, ByteBuffer buffer, boolean access) {
+        if (access) {
+            insert(key, buffer);
+        } else {
+            insertPrefetched(key, buffer);
+        }
+    }
+
+    private synchronized void insert(ChunkKey key, ByteBuffer buffer) {
+        if (protectedSegment.containsKey(key)) {
+            return;
+        }
+        probation.put(key, buffer);
+        evictOverflow();
+    }
+
+    private synchronized void insertPrefetched(ChunkKey key, ByteBuffer buffer) {
+        if (protectedSegment.containsKey(key) || probation.containsKey(key)) {
+            return;
+        }
+        probation.put(key, buffer);
+        prefetched.add(key);
+        evictOverflow();
+    }
+
+    /**
+     * 读者等到了预读中的块，此次已算作未命中，之后的访问按普通的块处理
+     */
+    private synchronized void demanded(ChunkKey key) {
+        prefetched.remove(key);
+    }
+
+    private void evictOverflow() {
+        Iterator<ChunkKey> eldest = probation.keySet().iterator();
+        while (probation.size() + protectedSegment.size() > MAX_CHUNKS && eldest.hasNext()) {
+            prefetched.remove(eldest.next());
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * 读者第一次读到一块时调用：这一块正好是该文件下一个要累加的块就累加进CRC32，
+     * 第0块重新开始累加，读完最后一块时记入备忘
+     *
+     * @param identity 文件标识
+     * @param index 块号
+     * @param chunk 块的只读视图，不改变其position
+     */
+    private void accumulate(FileIdentity identity, long index, ByteBuffer chunk) {
+        PartialChecksum partial;
+        synchronized (checksums) {
+            if (checksums.containsKey(identity)) {
+                return;
+            }
+            if (index == 0) {
+                partial = new PartialChecksum();
+                partials.put(identity, partial);
+            } else {
+                partial = partials.get(identity);
+                if (partial == null) {
+                    return;
+                }
+            }
+        }
+        String crc32;
+        synchronized (partial) {
+            if (partial.next != index) {
+                return;
+            }
+            partial.crc32.update(chunk.duplicate());
+            if (++partial.next * CHUNK_SIZE < identity.getSize()) {
+                return;
+            }
+            crc32 = Long.toHexString(partial.crc32.getValue());
+        }
+        synchronized (checksums) {
+            partials.remove(identity, partial);
+            checksums.put(identity, crc32);
+        }
+    }
+
+    /**
+     * 获取文件的CRC32。
+     * 备忘中没有时经缓存逐块计算（不算访问，不影响命中率与晋升），读进来的块正好供随后的发送使用；
+     * 放不进试用段的大文件绕过缓存直接读，以免冲掉试用段里的其他块。
+     *
+     * @param identity 文件标识
+     * @return CRC32十六进制字符串
+     * @throws IOException 读取文件失败
+     */
+    public String checksum(FileIdentity identity) throws IOException {
+        synchronized (checksums) {
+            String crc32 = checksums.get(identity);
+            if (crc32 != null) {
+                return crc32;
+            }
+        }
+        String crc32;
+        long chunks = (identity.getSize() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (chunks > MAX_CHUNKS - MAX_PROTECTED) {
+            crc32 = FileInfo.crc32Calculator(identity.getPath());
+        } else {
+            CRC32 crc = new CRC32();
+            try (FileChannel channel = FileChannel.open(identity.getPath(), StandardOpenOption.READ)) {
+                for (long index = 0; index < chunks; ++index) {
+                    crc.update(chunk(identity, channel, index, false));
+                }
+            }
+            crc32 = Long.toHexString(crc.getValue());
+        }
+        synchronized (checksums) {
+            checksums.put(identity, crc32);
+        }
+        return crc32;
+    }
+
+    /**
+     * @return 命中率等统计信息
+     */
+    public String stats() {
+        long h = hits.get(), m = misses.get();
+        long used;
+        synchronized (this) {
+            used = probation.size() + protectedSegment.size();
+        }
+        return String.format("Chunk cache: hits %d, misses %d, hit rate %.2f%%, evictions %d, chunks %d / %d"
+                        + ", read-ahead %d, disk latency %.2f ms",
+                h, m, h + m == 0 ? 0.0 : h * 100.0 / (h + m), evictions.get(), used, MAX_CHUNKS,
+                prefetches.get(), loadLatency / 1e6);
+    }
+
+    public void shutdown() {
+        readers.shutdownNow();
+    }
+}
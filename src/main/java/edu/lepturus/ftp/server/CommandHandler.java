@@ -1,17 +1,32 @@
 package edu.lepturus.ftp.server;
 
+import edu.lepturus.ftp.utils.DataPacket;
+import edu.lepturus.ftp.utils.DeltaCodec;
 import edu.lepturus.ftp.utils.FileInfo;
+import edu.lepturus.ftp.utils.Reply;
 import edu.lepturus.ftp.utils.SessionInfo;
+import edu.lepturus.ftp.utils.SessionTrace;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 命令处理类
@@ -23,13 +38,45 @@ public class CommandHandler {
     private final Navigator navigator;
     private final SessionInfo sessionInfo;
 
-    private final BufferedWriter tcpOut;
+    private final BufferedReader tcpIn;
+    private final ReplyWriter tcpOut;
     private final InetAddress CLIENT_ADDRESS;
     private final int CLIENT_UDP_PORT;
-    private final int UDP_PACKET_SIZE;
+    private final int MAX_UDP_PACKET_SIZE;
+    private int udpPacketSize;
+    private int fecGroupSize = 0;
+    private final AdmissionController admission;
+    private final ChunkCache chunkCache;
+    private final TransferCoordinator coordinator;
+    private final PathIndex pathIndex;
+    private final SessionTrace trace;
+    private final NoticeWriter notices;
+    private final ListingWatch listingWatch;
+    private static final int MAX_FIND_RESULTS = 10000;
+    private static final int FIND_FLUSH_LINES = 256;
+    private final ConcurrentHashMap<Integer, TransferJob> jobs = new ConcurrentHashMap<>();
+    private final AtomicInteger followJobs = new AtomicInteger();
+    private final AtomicInteger lastJobId = new AtomicInteger(TransferJob.FOREGROUND);
 
     private final Object lock = new Object();
     private static final long DELTA = 200;
+    private static final int HEARTBEAT_TICKS = 5;
+
+    private final CommandRegistry registry = new CommandRegistry()
+            .register("ls", 0, 1, this::ls)
+            .register("cd", 1, 1, this::cd)
+            .register("get", 1, 2, this::get)
+            .register("delta", 3, 3, this::delta)
+            .register("cache", 0, 0, this::cache)
+            .register("probe", 0, 0, this::sendProbesOverUDP)
+            .register("size", 1, 1, this::size)
+            .register("fec", 1, 1, this::fec)
+            .register("find", 1, 1, this::find)
+            .register("du", 0, 1, this::du)
+            .register("stat", 1, 1, this::stat)
+            .register("range", 3, 3, this::range)
+            .register("job", 3, 5, this::job)
+            .register("cancel", 1, 1, this::cancel);
 
     /**
      * 异常“没有这个命令”
@@ -49,18 +96,59 @@ public class CommandHandler {
         }
     }
 
+    /**
+     * 异常“违反协议”：无法再与客户端保持同步，例如签名块数无效或超过上限，随后的签名行不知该读掉多少；
+     * 会话回复错误后关闭连接
+     */
+    public static class ProtocolViolationException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ProtocolViolationException(String message) {
+            super(message);
+        }
+    }
+
     public CommandHandler(Navigator navigator,
                           SessionInfo sessionInfo,
-                          BufferedWriter tcpOut,
+                          BufferedReader tcpIn,
+                          ReplyWriter tcpOut,
                           InetAddress CLIENT_ADDRESS,
                           int CLIENT_UDP_PORT,
-                          int UDP_PACKET_SIZE) {
+                          int MAX_UDP_PACKET_SIZE,
+                          AdmissionController admission,
+                          ChunkCache chunkCache,
+                          TransferCoordinator coordinator,
+                          PathIndex pathIndex,
+                          SessionTrace trace,
+                          NoticeWriter notices,
+                          ListingWatch listingWatch) {
         this.navigator = navigator;
         this.sessionInfo = sessionInfo;
+        this.tcpIn = tcpIn;
         this.tcpOut = tcpOut;
         this.CLIENT_ADDRESS = CLIENT_ADDRESS;
         this.CLIENT_UDP_PORT = CLIENT_UDP_PORT;
-        this.UDP_PACKET_SIZE = UDP_PACKET_SIZE;
+        this.MAX_UDP_PACKET_SIZE = MAX_UDP_PACKET_SIZE;
+        this.udpPacketSize = MAX_UDP_PACKET_SIZE;
+        this.admission = admission;
+        this.chunkCache = chunkCache;
+        this.coordinator = coordinator;
+        this.pathIndex = pathIndex;
+        this.trace = trace;
+        this.notices = notices;
+        this.listingWatch = listingWatch;
+    }
+
+    /**
+     * 传输主体
+     */
+    @FunctionalInterface
+    private interface TransferBody {
+        /**
+         * @return 回复客户端的消息，没有时为null
+         * @throws IOException IOException
+         */
+        String run() throws IOException;
     }
 
     /**
@@ -70,76 +158,519 @@ public class CommandHandler {
      * @throws NoSuchCommandException 没有这个命令
      * @throws ArgumentCountException 参数数量错误
      */
-    public void handle(List<String> args) throws NoSuchCommandException, ArgumentCountException {
-        if (args.size() > 2) {
-            throw new ArgumentCountException("Too many arguments!");
-        } else if (args.isEmpty()) {
-            return;
+    public void handle(CommandLexer args) throws NoSuchCommandException, ArgumentCountException {
+        registry.dispatch(args);
+    }
+
+    /**
+     * @return 是否有跟随以外的后台传输在进行；跟随大部分时间空闲且不会自行结束，不算
+     */
+    public boolean hasTransfers() {
+        return jobs.size() > followJobs.get();
+    }
+
+    /**
+     * 会话结束时取消所有后台传输
+     */
+    public void close() {
+        for (TransferJob job : jobs.values()) {
+            job.cancel();
         }
-        switch (args.get(0)) {
-            case "ls": {
-                try {
-                    List<Path> list = args.size() > 1
-                            ? navigator.ls(Paths.get(args.get(1)))
-                            : navigator.ls();
-                    String[][] tokens = new String[list.size()][3];
-                    for (int i = 0; i < list.size(); ++i) {
-                        if (Files.isDirectory(list.get(i))) {
-                            tokens[i][0] = "<dir>";
-                        } else if (Files.isRegularFile(list.get(i))) {
-                            tokens[i][0] = "<file>";
-                        } else {
-                            tokens[i][0] = "<other>";
-                        }
-                        tokens[i][1] = list.get(i).getFileName().toString();
-                        tokens[i][2] = formatFileSize(Files.readAttributes(list.get(i),
-                                BasicFileAttributes.class).size());
-                    }
-                    printStringMatrix(tokens, tcpOut);
+    }
+
+    /**
+     * 列出目录；客户端缓存列表时先登记失效通知再列出（列出期间的变化也会通知），
+     * 列出成功后回复中才附带“!watch 目录”一行，失败的回复不会被缓存
+     */
+    private void ls(CommandLexer args) {
+        try {
+            Path watched = null;
+            if (listingWatch != null) {
+                Path dir = args.count() > 1 ? navigator.relative(Paths.get(args.token(1))) : navigator.getPwd();
+                if (Files.isDirectory(navigator.getROOT().resolve(dir)) && listingWatch.watch(dir)) {
+                    watched = dir;
+                }
+            }
+            List<Path> list = args.count() > 1
+                    ? navigator.ls(Paths.get(args.token(1)))
+                    : navigator.ls();
+            String[][] tokens = new String[list.size()][3];
+            for (int i = 0; i < list.size(); ++i) {
+                if (Files.isDirectory(list.get(i))) {
+                    tokens[i][0] = "<dir>";
+                } else if (Files.isRegularFile(list.get(i))) {
+                    tokens[i][0] = "<file>";
+                } else {
+                    tokens[i][0] = "<other>";
+                }
+                tokens[i][1] = list.get(i).getFileName().toString();
+                tokens[i][2] = formatFileSize(Files.readAttributes(list.get(i),
+                        BasicFileAttributes.class).size());
+            }
+            printStringMatrix(tokens, tcpOut);
+            if (watched != null) {
+                tcpOut.notice(Reply.WATCH + ListingWatch.key(watched));
+            }
+            tcpOut.flush();
+        } catch (IOException e) {
+            try {
+                tcpOut.write(e.getMessage());
+                tcpOut.newLine();
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+            }
+        }
+    }
+
+    private void cd(CommandLexer args) {
+        try {
+            navigator.cd(Paths.get(args.token(1)));
+        } catch (NoSuchFileException e) {
+            try {
+                tcpOut.write(e.getMessage());
+                tcpOut.newLine();
+                tcpOut.flush();
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+            }
+        }
+    }
+
+    private void get(CommandLexer args) {
+        try {
+            Path file = navigator.get(Paths.get(args.token(1)));
+            if (!admission.acquireTransfer()) {
+                tcpOut.write(admission.busyMessage());
+                tcpOut.newLine();
+                tcpOut.flush();
+                return;
+            }
+            try {
+                String clientCrc32 = args.count() > 2 ? args.token(2) : null;
+                TransferJob job = foreground(file);
+                String reply = traced(job, () -> sendFileOverUDP(file, clientCrc32, job));
+                if (reply != null) {
+                    tcpOut.write(reply);
+                    tcpOut.newLine();
                     tcpOut.flush();
-                } catch (IOException e) {
-                    try {
-                        tcpOut.write(e.getMessage());
-                    } catch (IOException ex) {
-                        System.err.println(ex.getMessage());
-                    }
                 }
-                break;
+            } finally {
+                admission.releaseTransfer();
+            }
+        } catch (IOException e) {
+            try {
+                tcpOut.write(e.getMessage());
+                tcpOut.newLine();
+                tcpOut.flush();
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 增量下载：delta 路径 块长度 块数，块签名随后分行发送
+     */
+    private void delta(CommandLexer args) {
+        try {
+            byte[] signatures = readSignatures(args.token(3));
+            Path file = navigator.get(Paths.get(args.token(1)));
+            int blockSize = Integer.parseInt(args.token(2));
+            if (!DeltaCodec.isValidBlockSize(blockSize)) {
+                throw new IllegalArgumentException("Invalid block size: " + blockSize);
+            }
+            if (!admission.acquireTransfer()) {
+                tcpOut.write(admission.busyMessage());
+                tcpOut.newLine();
+                tcpOut.flush();
+                return;
+            }
+            try {
+                TransferJob job = foreground(file);
+                traced(job, () -> {
+                    sendDeltaOverUDP(file, blockSize, signatures, job);
+                    return null;
+                });
+            } finally {
+                admission.releaseTransfer();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            try {
+                tcpOut.write(e.getMessage());
+                tcpOut.newLine();
+                tcpOut.flush();
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 读取命令之后的块签名行。块数有效时先读掉全部行再检查，签名行出错时控制连接仍与客户端同步；
+     * 块数无效或超过上限时不读签名行，立即以违反协议结束会话，客户端无法借此让服务器读任意多行
+     *
+     * @param count 命令中的块数
+     * @return 依次排列的各块签名
+     * @throws IOException 读取失败，或某行超长
+     * @throws IllegalArgumentException 签名行格式错误
+     * @throws ProtocolViolationException 块数无效或超过上限
+     */
+    private byte[] readSignatures(String count) throws IOException {
+        long blocks;
+        try {
+            blocks = Long.parseLong(count);
+        } catch (NumberFormatException e) {
+            throw new ProtocolViolationException("Invalid block count: " + count);
+        }
+        if (blocks < 0) {
+            throw new ProtocolViolationException("Invalid block count: " + blocks);
+        }
+        if (blocks > DeltaCodec.MAX_BLOCKS) {
+            throw new ProtocolViolationException("Too many blocks: " + blocks + ", limit is " + DeltaCodec.MAX_BLOCKS);
+        }
+        int lines = DeltaCodec.signatureLineCount(blocks);
+        byte[] signatures = new byte[(int) blocks * DeltaCodec.SIGNATURE_SIZE];
+        String error = null;
+        int filled = 0;
+        for (int i = 0; i < lines; ++i) {
+            String line = CommandLexer.readLine(tcpIn);
+            if (line == null) {
+                throw new EOFException("Connection closed while reading signatures");
+            }
+            if (error != null) {
+                continue;
+            }
+            try {
+                byte[] decoded = Base64.getDecoder().decode(line.trim());
+                long remaining = blocks - (long) i * DeltaCodec.SIGNATURES_PER_LINE;
+                int expected = (int) Math.min(DeltaCodec.SIGNATURES_PER_LINE, remaining) * DeltaCodec.SIGNATURE_SIZE;
+                if (decoded.length != expected) {
+                    throw new IllegalArgumentException("Signature line " + (i + 1) + " has " + decoded.length
+                            + " bytes, expected " + expected);
+                }
+                System.arraycopy(decoded, 0, signatures, filled, decoded.length);
+                filled += decoded.length;
+            } catch (IllegalArgumentException e) {
+                error = e.getMessage();
             }
-            case "cd": {
-                if (args.size() < 2) {
-                    throw new ArgumentCountException("Too few arguments!");
+        }
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+        return signatures;
+    }
+
+    /**
+     * 后台传输：job 端口 get 路径 [CRC32]、job 端口 delta 路径 块长度 块数（签名随后分行发送），
+     * 或 job 端口 follow 路径 偏移 [开头CRC32]（跟随增长中的文件，直到取消；偏移非0时须带
+     * 检查点所属文件的标识，与服务器文件不符说明文件已被替换，拒绝并回复Reply.CHECKPOINT_MISMATCH；
+     * 跟随占用单独的跟随名额，名额用完时直接回复繁忙）。
+     * 检查参数后立即回复编号，传输在自己的线程中进行，控制连接可继续处理其他命令；
+     * 文件信息与数据报文发往客户端为该传输打开的端口，此后出错（含繁忙）以失败的文件信息告知；
+     * 传输结束后再在控制连接上推送“!finished 编号”，结果报文丢失时客户端据此放弃等待
+     */
+    private void job(CommandLexer args) {
+        try {
+            byte[] signatures = args.count() == 6 && args.tokenEquals(2, "delta")
+                    ? readSignatures(args.token(5))
+                    : null;
+            int port = Integer.parseInt(args.token(1));
+            if (port <= 0 || port > 0xFFFF) {
+                throw new IllegalArgumentException("Invalid port: " + port);
+            }
+            Path file = navigator.get(Paths.get(args.token(3)));
+            TransferJob job = new TransferJob(lastJobId.incrementAndGet(), file.getFileName().toString(),
+                    port, udpPacketSize, fecGroupSize);
+            TransferBody body;
+            boolean follow = false;
+            if (args.token(2).equals("get") && args.count() <= 5) {
+                String clientCrc32 = args.count() > 4 ? args.token(4) : null;
+                body = () -> sendFileOverUDP(file, clientCrc32, job);
+            } else if (signatures != null) {
+                int blockSize = Integer.parseInt(args.token(4));
+                if (!DeltaCodec.isValidBlockSize(blockSize)) {
+                    throw new IllegalArgumentException("Invalid block size: " + blockSize);
                 }
-                try {
-                    navigator.cd(Paths.get(args.get(1)));
-                } catch (NoSuchFileException e) {
-                    try {
-                        tcpOut.write(e.getMessage());
-                        tcpOut.flush();
-                    } catch (IOException ex) {
-                        System.err.println(ex.getMessage());
-                    }
+                body = () -> {
+                    sendDeltaOverUDP(file, blockSize, signatures, job);
+                    return null;
+                };
+            } else if (args.token(2).equals("follow") && (args.count() == 5 || args.count() == 6)) {
+                long offset = Long.parseLong(args.token(4));
+                if (offset < 0) {
+                    throw new IllegalArgumentException("Invalid offset: " + offset);
                 }
-                break;
+                if (offset > 0 && (args.count() < 6 || offset > Files.size(file)
+                        || !FileInfo.prefixCrc32(file, offset).equals(args.token(5)))) {
+                    throw new IllegalArgumentException(Reply.CHECKPOINT_MISMATCH + file.getFileName());
+                }
+                if (!admission.acquireFollow()) {
+                    tcpOut.write(admission.busyMessage());
+                    tcpOut.newLine();
+                    tcpOut.flush();
+                    return;
+                }
+                follow = true;
+                followJobs.incrementAndGet();
+                body = () -> {
+                    followOverUDP(file, offset, job);
+                    return null;
+                };
+            } else {
+                throw new IllegalArgumentException("Usage: job <port> get <path> [crc32]"
+                        + " | job <port> delta <path> <block size> <block count>"
+                        + " | job <port> follow <path> <offset> [<prefix crc32>]");
+            }
+            jobs.put(job.getId(), job);
+            boolean following = follow;
+            job.start(() -> runJob(job, body, following));
+            tcpOut.write(Reply.JOB + job.getId() + Reply.JOB_STARTED + job.getFileName());
+            tcpOut.newLine();
+            tcpOut.flush();
+        } catch (IOException | IllegalArgumentException e) {
+            try {
+                tcpOut.write(e.getMessage());
+                tcpOut.newLine();
+                tcpOut.flush();
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
             }
-            case "get": {
-                if (args.size() < 2) {
-                    throw new ArgumentCountException("Too few arguments!");
+        }
+    }
+
+    /**
+     * 后台传输线程主体
+     *
+     * @param follow 是否为跟随：跟随已在job中占用跟随名额，结束时归还，不占用传输许可
+     */
+    private void runJob(TransferJob job, TransferBody body, boolean follow) {
+        try {
+            traced(job, () -> {
+                if (follow) {
+                    return body.run();
+                }
+                if (!admission.acquireTransfer()) {
+                    throw new IOException(admission.busyMessage());
                 }
                 try {
-                    sendFileOverUDP(navigator.get(Paths.get(args.get(1))));
-                } catch (Navigator.NotFileException | NoSuchFileException e) {
-                    try {
-                        tcpOut.write(e.getMessage());
-                        tcpOut.flush();
-                    } catch (IOException ex) {
-                        System.err.println(ex.getMessage());
-                    }
+                    return body.run();
+                } finally {
+                    admission.releaseTransfer();
+                }
+            });
+        } catch (IOException e) {
+            if (!job.isCancelled()) {
+                try {
+                    sendFileInfo(FileInfo.failed(job.getFileName(), e.getMessage()), job.getPort());
+                } catch (IOException ex) {
+                    System.err.println(ex.getMessage());
+                }
+            }
+        } finally {
+            if (follow) {
+                followJobs.decrementAndGet();
+                admission.releaseFollow();
+            }
+            jobs.remove(job.getId());
+            notices.post(Reply.JOB_FINISHED + job.getId());
+            System.out.println("Session " + sessionInfo.getUuid() + ", job " + job.getId()
+                    + (job.isCancelled() ? " cancelled: " : " finished: ") + job.getFileName());
+        }
+    }
+
+    private void cancel(CommandLexer args) {
+        try {
+            TransferJob job = jobs.get(Integer.parseInt(args.token(1)));
+            if (job == null) {
+                tcpOut.write("No such job: " + args.token(1));
+            } else {
+                job.cancel();
+                tcpOut.write(Reply.JOB + job.getId() + " cancelled: " + job.getFileName());
+            }
+            tcpOut.newLine();
+            tcpOut.flush();
+        } catch (NumberFormatException | IOException e) {
+            try {
+                tcpOut.write(e.getMessage());
+                tcpOut.newLine();
+                tcpOut.flush();
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+            }
+        }
+    }
+
+    private void cache(CommandLexer args) {
+        try {
+            tcpOut.write(chunkCache.stats());
+            tcpOut.newLine();
+            tcpOut.flush();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * 设置前向纠错：参数为客户端观测到的丢包率（0到1），按其选择校验组大小；off关闭
+     *
+     * @param args 参数组
+     */
+    private void fec(CommandLexer args) {
+        try {
+            if (args.token(1).equals("off")) {
+                fecGroupSize = 0;
+                tcpOut.write("FEC off");
+            } else {
+                double lossRate = Double.parseDouble(args.token(1));
+                if (!(lossRate >= 0 && lossRate <= 1)) {
+                    throw new NumberFormatException("Loss rate out of range: " + args.token(1));
+                }
+                fecGroupSize = DataPacket.fecGroupSize(lossRate);
+                tcpOut.write("FEC group size: " + fecGroupSize);
+            }
+            tcpOut.newLine();
+            tcpOut.flush();
+        } catch (NumberFormatException | IOException e) {
+            try {
+                tcpOut.write(e.getMessage());
+                tcpOut.newLine();
+                tcpOut.flush();
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+            }
+        }
+    }
+
+    private void size(CommandLexer args) {
+        try {
+            int size = Integer.parseInt(args.token(1));
+            if (size < DataPacket.MIN_PACKET_SIZE || size > MAX_UDP_PACKET_SIZE) {
+                throw new NumberFormatException("Packet size out of range: " + size);
+            }
+            udpPacketSize = size;
+            tcpOut.write("Packet size: " + udpPacketSize);
+            tcpOut.newLine();
+            tcpOut.flush();
+        } catch (NumberFormatException | IOException e) {
+            try {
+                tcpOut.write(e.getMessage());
+                tcpOut.newLine();
+                tcpOut.flush();
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 在当前工作目录下按文件名查找，结果来自路径索引，不遍历磁盘
+     */
+    private void find(CommandLexer args) {
+        try {
+            List<String> matches = pathIndex.find(navigator.getPwd(), args.token(1), MAX_FIND_RESULTS + 1);
+            if (matches == null) {
+                tcpOut.write("Index not ready. " + pathIndex.stats());
+                tcpOut.newLine();
+                tcpOut.flush();
+                return;
+            }
+            int shown = Math.min(matches.size(), MAX_FIND_RESULTS);
+            for (int i = 0; i < shown; ++i) {
+                tcpOut.write(matches.get(i));
+                tcpOut.newLine();
+                if ((i + 1) % FIND_FLUSH_LINES == 0) {
+                    tcpOut.flush();
                 }
-                break;
             }
-            default: {
-                throw new NoSuchCommandException("No such command: " + args.get(0));
+            if (matches.size() > MAX_FIND_RESULTS) {
+                tcpOut.write("More than " + MAX_FIND_RESULTS + " matches, narrow the pattern");
+                tcpOut.newLine();
+            }
+            tcpOut.flush();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * 输出目录（或文件）的总大小与文件数，读取路径索引中维护的合计
+     */
+    private void du(CommandLexer args) {
+        try {
+            Path target = navigator.relative(Paths.get(args.count() > 1 ? args.token(1) : ""));
+            long[] usage = pathIndex.usage(target);
+            if (usage == null) {
+                tcpOut.write("Index not ready. " + pathIndex.stats());
+            } else {
+                tcpOut.write(formatFileSize(usage[0]) + ", " + usage[1] + " files in "
+                        + FileSystems.getDefault().getSeparator() + target);
+            }
+            tcpOut.newLine();
+            tcpOut.flush();
+        } catch (IOException e) {
+            try {
+                tcpOut.write(e.getMessage());
+                tcpOut.newLine();
+                tcpOut.flush();
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 输出文件大小与CRC32，供客户端比对各副本是否一致
+     */
+    private void stat(CommandLexer args) {
+        try {
+            Path file = navigator.get(Paths.get(args.token(1)));
+            FileIdentity identity = FileIdentity.of(file);
+            tcpOut.write(identity.getSize() + " " + chunkCache.checksum(identity));
+            tcpOut.newLine();
+            tcpOut.flush();
+        } catch (IOException e) {
+            try {
+                tcpOut.write(e.getMessage());
+                tcpOut.newLine();
+                tcpOut.flush();
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 只发送文件的一个字节区间，不发送文件信息；发完后在控制连接上回复报文数
+     */
+    private void range(CommandLexer args) {
+        try {
+            Path file = navigator.get(Paths.get(args.token(1)));
+            long offset = Long.parseLong(args.token(2));
+            long length = Long.parseLong(args.token(3));
+            if (offset < 0 || length <= 0) {
+                throw new IllegalArgumentException("Invalid range: " + offset + " " + length);
+            }
+            if (!admission.acquireTransfer()) {
+                tcpOut.write(admission.busyMessage());
+                tcpOut.newLine();
+                tcpOut.flush();
+                return;
+            }
+            try {
+                long packets = sendRangeOverUDP(file, offset, length);
+                tcpOut.write(Reply.RANGE_SENT + packets + " packets");
+                tcpOut.newLine();
+                tcpOut.flush();
+            } finally {
+                admission.releaseTransfer();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            try {
+                tcpOut.write(e.getMessage());
+                tcpOut.newLine();
+                tcpOut.flush();
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
             }
         }
     }
@@ -191,48 +722,302 @@ public class CommandHandler {
     }
 
     /**
-     * 使用UDP传输文件（不保证可靠性）
+     * 发送路径探测报文：对每个不超过协商上限的候选长度各发送PROBE_REPEAT个报文，
+     * 报文头记录报文自身长度，客户端据各长度的到达率选出最合适的报文长度
+     */
+    private void sendProbesOverUDP(CommandLexer args) {
+        try (DatagramSocket udpOut = new DatagramSocket()) {
+            for (int size : DataPacket.PROBE_SIZES) {
+                if (size > MAX_UDP_PACKET_SIZE) {
+                    continue;
+                }
+                byte[] probe = new byte[size];
+                DataPacket.writeOffset(probe, size);
+                for (int i = 0; i < DataPacket.PROBE_REPEAT; ++i) {
+                    udpOut.send(new DatagramPacket(probe, size, CLIENT_ADDRESS, CLIENT_UDP_PORT));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * 运行传输主体，失败时记入会话轨迹；发送完毕、未修改与取消由发送方法自己记录
+     *
+     * @param job 传输目标
+     * @param body 传输主体
+     * @return 传输主体的回复
+     * @throws IOException 传输失败
+     */
+    private String traced(TransferJob job, TransferBody body) throws IOException {
+        long start = trace.now();
+        try {
+            return body.run();
+        } catch (IOException e) {
+            trace.transfer(start, trace.now() - start, job.getId(), job.getFileName(), 0, 0, SessionTrace.FAILED);
+            throw e;
+        }
+    }
+
+    /**
+     * @return 前台传输：发往会话的UDP端口，使用会话当前的报文长度与校验组大小
+     */
+    private TransferJob foreground(Path file) {
+        return new TransferJob(TransferJob.FOREGROUND, file.getFileName().toString(),
+                CLIENT_UDP_PORT, udpPacketSize, fecGroupSize);
+    }
+
+    /**
+     * 使用UDP传输文件（不保证可靠性）。
+     * 条件get：客户端给出的CRC32与服务器缓存的一致时只回复“未修改”，不发送数据。
      *
      * @param file 文件路径
+     * @param clientCrc32 客户端本地副本的CRC32，可为null
+     * @param job 传输目标
+     * @return 回复客户端的消息，没有时为null
+     * @throws IOException IOException
      */
-    private void sendFileOverUDP(Path file) {
-        try (DatagramSocket udpOut = new DatagramSocket()) {
-            byte[] fileInfoBytes = FileInfo.fileInfoToBytes(
-                    new FileInfo(
-                            file.getFileName().toString(),
-                            file.toFile().length() / UDP_PACKET_SIZE + 1,
-                            FileInfo.crc32Calculator(file)));
-            DatagramPacket fileInfoPacket = new DatagramPacket(
-                    fileInfoBytes,
-                    fileInfoBytes.length,
-                    CLIENT_ADDRESS,
-                    CLIENT_UDP_PORT);
-            udpOut.send(fileInfoPacket);
-            try (FileInputStream fis = new FileInputStream(file.toFile())) {
-                byte[] buffer = new byte[UDP_PACKET_SIZE];
-                DatagramPacket packet;
-                int packetNum = 0, bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    packet = new DatagramPacket(buffer, bytesRead, CLIENT_ADDRESS, CLIENT_UDP_PORT);
-                    udpOut.send(packet);
-                    System.out.println("Session " + sessionInfo.getUuid() + ", UDP sent packet number: " + packetNum++);
+    private String sendFileOverUDP(Path file, String clientCrc32, TransferJob job) throws IOException {
+        FileIdentity identity = FileIdentity.of(file);
+        String crc32 = chunkCache.checksum(identity);
+        if (crc32.equals(clientCrc32)) {
+            trace.transfer(trace.now(), 0, job.getId(), job.getFileName(), 0, 0, SessionTrace.NOT_MODIFIED);
+            sendFileInfo(FileInfo.notModified(file.getFileName().toString(), crc32), job.getPort());
+            return "Not modified: " + file.getFileName();
+        }
+        sendOverUDP(file.getFileName().toString(), identity, crc32, true, job);
+        return null;
+    }
+
+    /**
+     * 计算文件相对于客户端旧副本的增量，并用UDP传输增量（不保证可靠性）。
+     * 文件信息中的CRC32仍是完整新文件的，客户端还原后据此校验。
+     *
+     * @param file 文件路径
+     * @param blockSize 客户端签名的块长度
+     * @param signatures 客户端旧副本的块签名
+     * @param job 传输目标
+     * @throws IOException IOException
+     */
+    private void sendDeltaOverUDP(Path file, int blockSize, byte[] signatures, TransferJob job)
+            throws IOException {
+        Path deltaFile = null;
+        try {
+            FileIdentity identity = FileIdentity.of(file);
+            deltaFile = Files.createTempFile("ftp-delta-", ".bin");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                 OutputStream out = Files.newOutputStream(deltaFile)) {
+                DeltaCodec.encode(channel, blockSize, signatures, out);
+            }
+            FileIdentity deltaIdentity = FileIdentity.of(deltaFile);
+            System.out.println("Session " + sessionInfo.getUuid() + ", delta for " + file.getFileName()
+                    + ": " + identity.getSize() + " -> " + deltaIdentity.getSize() + " bytes");
+            sendOverUDP(file.getFileName().toString(), deltaIdentity, chunkCache.checksum(identity), false, job);
+        } finally {
+            if (deltaFile != null) {
+                try {
+                    Files.deleteIfExists(deltaFile);
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 发送文件信息，再加入payload的共享传输等待数据报文（及校验报文）发送完毕。
+     * 同一文件的并发下载只读取一次。
+     *
+     * @param fileName 客户端保存的文件名
+     * @param payload 实际发送的内容
+     * @param crc32 客户端最终文件应有的CRC32
+     * @param cached 是否经块缓存读取；一次性的临时文件（如增量）不经缓存，不占缓存也不进校验和备忘
+     * @param job 传输目标，取消时提前返回
+     * @throws IOException IOException
+     */
+    private void sendOverUDP(String fileName, FileIdentity payload, String crc32, boolean cached, TransferJob job)
+            throws IOException {
+        long start = trace.now();
+        FileInfo fileInfo = new FileInfo(
+                fileName,
+                DataPacket.packetCount(payload.getSize(), job.getPacketSize()),
+                crc32,
+                DataPacket.payloadSize(job.getPacketSize()),
+                job.getFecGroupSize());
+        int outcome = SessionTrace.CANCELLED;
+        try {
+            sendFileInfo(fileInfo, job.getPort());
+            job.await(coordinator.subscribe(payload, job.getPacketSize(), job.getFecGroupSize(), cached,
+                    CLIENT_ADDRESS, job.getPort()));
+            outcome = SessionTrace.SENT;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (CancellationException e) {
+            // 传输已取消
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+        trace.transfer(start, trace.now() - start, job.getId(), fileName,
+                outcome == SessionTrace.SENT ? payload.getSize() : 0,
+                fileInfo.getPacketCount() + fileInfo.getParityCount(), outcome);
+    }
+
+    /**
+     * 使用UDP发送文件的[offset, offset + length)区间（不保证可靠性），报文头为绝对偏移
+     *
+     * @param file 文件路径
+     * @param offset 区间起点
+     * @param length 区间长度，超出文件末尾的部分忽略
+     * @return 发送的报文数
+     * @throws IOException IOException
+     */
+    private long sendRangeOverUDP(Path file, long offset, long length) throws IOException {
+        long start = trace.now();
+        FileIdentity identity = FileIdentity.of(file);
+        long end = Math.min(identity.getSize(), offset + length);
+        int payloadSize = DataPacket.payloadSize(udpPacketSize);
+        long chunkInterval = TimeUnit.MILLISECONDS.toNanos(DELTA) * ChunkCache.CHUNK_SIZE / payloadSize;
+        byte[] buffer = new byte[udpPacketSize];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, CLIENT_ADDRESS, CLIENT_UDP_PORT);
+        ChunkCache.Cursor cursor = new ChunkCache.Cursor();
+        long packets = 0;
+        long bytes = 0;
+        int outcome = SessionTrace.SENT;
+        try (DatagramSocket udpOut = new DatagramSocket();
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (long position = offset; position < end; position += payloadSize) {
+                if (packets > 0) {
                     synchronized (lock) {
                         try {
                             lock.wait(DELTA);
                         } catch (InterruptedException e) {
                             Thread.currentThread().interrupt();
+                            outcome = SessionTrace.CANCELLED;
+                            break;
                         }
                     }
                 }
+                chunkCache.readAhead(identity, channel, position, end, chunkCache.readAheadDepth(chunkInterval));
+                int bytesRead = chunkCache.read(identity, channel, position,
+                        buffer, DataPacket.HEADER_SIZE, (int) Math.min(payloadSize, end - position), cursor);
+                if (bytesRead <= 0) {
+                    throw new IOException("File shrank during transfer: " + file.getFileName());
+                }
+                DataPacket.writeOffset(buffer, position);
+                packet.setLength(DataPacket.HEADER_SIZE + bytesRead);
+                udpOut.send(packet);
+                ++packets;
+                bytes += bytesRead;
             }
-        } catch (IOException e) {
-            try {
-                tcpOut.write(e.getMessage());
-                tcpOut.newLine();
-                tcpOut.flush();
-            } catch (IOException ex) {
-                System.err.println(ex.getMessage());
+        }
+        trace.transfer(start, trace.now() - start, TransferJob.FOREGROUND, file.getFileName().toString(),
+                bytes, packets, outcome);
+        return packets;
+    }
+
+    /**
+     * 跟随增长中的文件：先发送[offset, 当前末尾)，之后轮询文件长度发送新追加的字节，直到取消。
+     * 每个报文头为绝对偏移，每DELTA发送一个报文；没有新数据时每HEARTBEAT_TICKS个DELTA
+     * 发送一个只有报文头的心跳，告知已发送到的偏移，客户端据此发现末尾的丢包。
+     * 等待的同时接收客户端的回退请求（只有报文头，为其检查点），从该偏移重新发送；
+     * 回退请求只接受来自客户端该传输端口的报文。
+     * 只用一个报文长度的缓冲区，内存与文件长度无关。文件变短（被截断）时失败；
+     * 空闲时还检查路径上的文件是否仍是打开的那个（文件键，文件系统不提供时比较长度），
+     * 被改名轮转时发完旧文件已有的内容后失败。
+     *
+     * @param file 文件路径
+     * @param offset 起始偏移
+     * @param job 传输目标，取消时结束
+     * @throws IOException 文件被截断、轮转或读取失败
+     */
+    private void followOverUDP(Path file, long offset, TransferJob job) throws IOException {
+        long start = trace.now();
+        String fileName = file.getFileName().toString();
+        int payloadSize = DataPacket.payloadSize(job.getPacketSize());
+        byte[] buffer = new byte[job.getPacketSize()];
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, CLIENT_ADDRESS, job.getPort());
+        byte[] request = new byte[DataPacket.HEADER_SIZE];
+        DatagramPacket rewind = new DatagramPacket(request, request.length);
+        long position = offset;
+        long bytes = 0;
+        long packets = 0;
+        int idleTicks = 0;
+        try (DatagramSocket udpOut = new DatagramSocket();
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Object fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+            byte[] fileInfoBytes = FileInfo.fileInfoToBytes(FileInfo.following(fileName));
+            udpOut.send(new DatagramPacket(fileInfoBytes, fileInfoBytes.length, CLIENT_ADDRESS, job.getPort()));
+            udpOut.setSoTimeout((int) DELTA);
+            while (!job.isCancelled()) {
+                long size = channel.size();
+                if (size < position) {
+                    throw new IOException("File truncated: " + fileName);
+                }
+                if (position < size) {
+                    view.limit(DataPacket.HEADER_SIZE + (int) Math.min(payloadSize, size - position))
+                            .position(DataPacket.HEADER_SIZE);
+                    int bytesRead = channel.read(view, position);
+                    if (bytesRead <= 0) {
+                        throw new IOException("File truncated: " + fileName);
+                    }
+                    DataPacket.writeOffset(buffer, position);
+                    packet.setLength(DataPacket.HEADER_SIZE + bytesRead);
+                    udpOut.send(packet);
+                    position += bytesRead;
+                    bytes += bytesRead;
+                    ++packets;
+                    idleTicks = 0;
+                } else if (++idleTicks % HEARTBEAT_TICKS == 0) {
+                    if (isRotated(file, fileKey, position)) {
+                        throw new IOException("File rotated: " + fileName);
+                    }
+                    DataPacket.writeOffset(buffer, position);
+                    packet.setLength(DataPacket.HEADER_SIZE);
+                    udpOut.send(packet);
+                }
+                try {
+                    rewind.setLength(request.length);
+                    udpOut.receive(rewind);
+                    long checkpoint = DataPacket.readOffset(request);
+                    if (rewind.getLength() == DataPacket.HEADER_SIZE
+                            && rewind.getAddress().equals(CLIENT_ADDRESS) && rewind.getPort() == job.getPort()
+                            && checkpoint >= offset && checkpoint < position) {
+                        position = checkpoint;
+                    }
+                } catch (SocketTimeoutException e) {
+                    // 等待一个DELTA，没有回退请求
+                }
             }
         }
+        trace.transfer(start, trace.now() - start, job.getId(), fileName, bytes, packets, SessionTrace.CANCELLED);
+    }
+
+    /**
+     * @param file 跟随的文件路径
+     * @param fileKey 打开时的文件键，文件系统不提供时为null
+     * @param position 已发送到的偏移
+     * @return 路径上已不是打开的文件：被改名移走，或换成了另一个文件
+     */
+    private static boolean isRotated(Path file, Object fileKey, long position) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return fileKey != null ? !fileKey.equals(attributes.fileKey()) : attributes.size() < position;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private void sendFileInfo(FileInfo fileInfo, int port) throws IOException {
+        try (DatagramSocket udpOut = new DatagramSocket()) {
+            byte[] fileInfoBytes = FileInfo.fileInfoToBytes(fileInfo);
+            DatagramPacket fileInfoPacket = new DatagramPacket(
+                    fileInfoBytes,
+                    fileInfoBytes.length,
+                    CLIENT_ADDRESS,
+                    port);
+            udpOut.send(fileInfoPacket);
+        }
     }
 }
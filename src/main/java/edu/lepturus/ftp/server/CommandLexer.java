@@ -0,0 +1,322 @@
+package edu.lepturus.ftp.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 命令词法分析器。
+ * 每个会话持有一个实例，命令行从输入直接读进可复用的字符缓冲区，首尾空白就地去掉，
+ * 折行读入的后续行接在同一缓冲区中；解析结果也在可复用的缓冲区中，
+ * 字元以(起点, 长度)记录，只有处理函数真正需要时才生成String；
+ * 稳态下读取并解析一行命令不分配任何对象（source()除外，每次调用都会新建String）。
+ * 语法：空格分隔参数，可以使用引号将包含空格的参数包围起来；
+ * 在单引号内反斜杠转义单引号，双引号内反斜杠转义双引号，
+ * 引号内双反斜杠表示反斜杠；行尾反斜杠会尝试读取新行，若新行非空则继续解析。
+ * 一条命令（含折行读入的后续行）不超过MAX_LINE个字符，客户端无法让服务器缓冲任意长的行。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class CommandLexer {
+    public static final int MAX_LINE = 64 * 1024;
+
+    private char[] input = new char[256];
+    private int inputLength;
+    private char[] output = new char[256];
+    private int[] starts = new int[8];
+    private int[] lengths = new int[8];
+    private int count;
+
+    /**
+     * 异常“命令过长”，超长的行已被读掉，连接仍可继续使用
+     */
+    public static class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LineTooLongException() {
+            this(MAX_LINE);
+        }
+
+        public LineTooLongException(int limit) {
+            super("Command line too long, limit is " + limit + " characters");
+        }
+    }
+
+    /**
+     * 读取一行，行尾可以是\n、\r或\r\n。
+     * 超过MAX_LINE个字符时读掉该行余下的部分再抛出异常，内存不随行长增长。
+     *
+     * @param in 输入
+     * @return 不含行尾的一行，输入结束时为null
+     * @throws LineTooLongException 行超过MAX_LINE个字符
+     * @throws IOException IOException
+     */
+    public static String readLine(BufferedReader in) throws IOException {
+        return readLine(in, MAX_LINE);
+    }
+
+    /**
+     * 读取一行，超过limit个字符时读掉余下部分再抛出异常
+     *
+     * @param in 输入
+     * @param limit 一行的字符数上限
+     * @return 不含行尾的一行，输入结束时为null
+     * @throws LineTooLongException 行超过limit个字符
+     * @throws IOException IOException
+     */
+    public static String readLine(BufferedReader in, int limit) throws IOException {
+        StringBuilder line = new StringBuilder();
+        boolean tooLong = false;
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c == '\r') {
+                in.mark(1);
+                if (in.read() != '\n') {
+                    in.reset();
+                }
+                break;
+            }
+            if (line.length() < limit) {
+                line.append((char) c);
+            } else {
+                tooLong = true;
+            }
+        }
+        if (tooLong) {
+            throw new LineTooLongException(limit);
+        }
+        return c < 0 && line.length() == 0 ? null : line.toString();
+    }
+
+    /**
+     * 从输入读取一条命令并解析：读入一行，去掉首尾空白，行尾反斜杠时接着读入后续行。
+     * 超过MAX_LINE个字符时读掉该行余下的部分再抛出异常，连接仍可继续使用。
+     *
+     * @param in 输入
+     * @return 是否读到命令，输入结束时为false
+     * @throws LineTooLongException 命令（含折行读入的后续行）超过MAX_LINE个字符
+     * @throws IOException IOException
+     */
+    public boolean read(BufferedReader in) throws IOException {
+        inputLength = 0;
+        if (readInto(in, MAX_LINE) < 0) {
+            return false;
+        }
+        lex(in);
+        return true;
+    }
+
+    /**
+     * 读取一行接在input末尾，行首的空白跳过，行尾的空白读完后去掉，效果与String.trim相同
+     *
+     * @param in 输入
+     * @param limit input中的字符总数上限
+     * @return 接上的字符数，输入已结束时为-1
+     * @throws LineTooLongException 超过limit，超长的行已被读掉，input恢复原状
+     * @throws IOException IOException
+     */
+    private int readInto(BufferedReader in, int limit) throws IOException {
+        int start = inputLength;
+        boolean consumed = false;
+        boolean tooLong = false;
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            consumed = true;
+            if (c == '\r') {
+                in.mark(1);
+                if (in.read() != '\n') {
+                    in.reset();
+                }
+                break;
+            }
+            if (c <= ' ' && inputLength == start) {
+                continue;
+            }
+            if (inputLength < limit) {
+                ensureInput(inputLength + 1);
+                input[inputLength++] = (char) c;
+            } else {
+                tooLong = true;
+            }
+        }
+        if (tooLong) {
+            inputLength = start;
+            throw new LineTooLongException(limit);
+        }
+        if (c < 0 && !consumed) {
+            return -1;
+        }
+        while (inputLength > start && input[inputLength - 1] <= ' ') {
+            --inputLength;
+        }
+        return inputLength - start;
+    }
+
+    /**
+     * 解析input中已读入的命令
+     *
+     * @param in 折行时读取后续行
+     * @throws LineTooLongException 折行读入的后续行使命令超过MAX_LINE个字符
+     * @throws IOException 读取后续行时的IO异常
+     */
+    private void lex(BufferedReader in) throws IOException {
+        count = 0;
+        int outLength = 0;
+        int tokenStart = 0;
+        boolean nonBlank = false;
+        boolean inSingleQuote = false;
+        boolean inDoubleQuote = false;
+        for (int i = 0; i < inputLength; ++i) {
+            char c = input[i];
+            char emit = 0;
+            boolean emitting = true;
+            switch (c) {
+                case '\\': {
+                    char next = i < inputLength - 1 ? input[i + 1] : 0;
+                    if (i == inputLength - 1) {
+                        // 后续行接在换行之后，解析时跳过换行
+                        int end = inputLength;
+                        ensureInput(inputLength + 1);
+                        input[inputLength++] = '\n';
+                        if (readInto(in, MAX_LINE) > 0) {
+                            ++i;
+                            emitting = false;
+                        } else {
+                            inputLength = end;
+                            emit = '\\';
+                        }
+                    } else if ((inSingleQuote || inDoubleQuote) && next == '\\') {
+                        emit = '\\';
+                        ++i;
+                    } else if (inSingleQuote && next == '\'') {
+                        emit = '\'';
+                        ++i;
+                    } else if (inDoubleQuote && next == '\"') {
+                        emit = '\"';
+                        ++i;
+                    } else {
+                        emit = '\\';
+                    }
+                    break;
+                }
+                case '\'': {
+                    if (!inDoubleQuote) {
+                        inSingleQuote = !inSingleQuote;
+                        emitting = false;
+                    } else {
+                        emit = '\'';
+                    }
+                    break;
+                }
+                case '\"': {
+                    if (!inSingleQuote) {
+                        inDoubleQuote = !inDoubleQuote;
+                        emitting = false;
+                    } else {
+                        emit = '\"';
+                    }
+                    break;
+                }
+                case ' ': {
+                    if (inSingleQuote || inDoubleQuote) {
+                        emit = ' ';
+                    } else {
+                        if (nonBlank) {
+                            addToken(tokenStart, outLength - tokenStart);
+                        } else {
+                            outLength = tokenStart;
+                        }
+                        tokenStart = outLength;
+                        nonBlank = false;
+                        emitting = false;
+                    }
+                    break;
+                }
+                default: {
+                    emit = c;
+                    break;
+                }
+            }
+            if (emitting) {
+                if (outLength == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                output[outLength++] = emit;
+                nonBlank |= emit > ' ';
+            }
+        }
+        if (nonBlank) {
+            addToken(tokenStart, outLength - tokenStart);
+        }
+    }
+
+    private void ensureInput(int capacity) {
+        if (capacity > input.length) {
+            input = Arrays.copyOf(input, Math.max(input.length * 2, capacity));
+        }
+    }
+
+    private void addToken(int start, int length) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+        }
+        starts[count] = start;
+        lengths[count] = length;
+        ++count;
+    }
+
+    /**
+     * @return 最近一次读入的命令文本（已去掉首尾空白），折行读入的后续行以换行分隔；每次调用都会新建
+     */
+    public String source() {
+        return new String(input, 0, inputLength);
+    }
+
+    /**
+     * @return 字元数
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @param i 字元序号
+     * @return 字元字符串（每次调用都会新建）
+     */
+    public String token(int i) {
+        return new String(output, starts[i], lengths[i]);
+    }
+
+    /**
+     * 计算字元的哈希值，与String.hashCode一致，不分配对象
+     *
+     * @param i 字元序号
+     * @return 哈希值
+     */
+    public int tokenHash(int i) {
+        int h = 0;
+        for (int j = starts[i], end = starts[i] + lengths[i]; j < end; ++j) {
+            h = 31 * h + output[j];
+        }
+        return h;
+    }
+
+    /**
+     * @param i 字元序号
+     * @param s 比较对象
+     * @return 字元是否与s相同，不分配对象
+     */
+    public boolean tokenEquals(int i, String s) {
+        if (lengths[i] != s.length()) {
+            return false;
+        }
+        for (int j = 0; j < lengths[i]; ++j) {
+            if (output[starts[i] + j] != s.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
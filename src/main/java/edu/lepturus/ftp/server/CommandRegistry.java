@@ -0,0 +1,105 @@
+package edu.lepturus.ftp.server;
+
+/**
+ * 命令注册表。
+ * 命令以名称、参数个数范围和处理函数注册，分派时直接用词法分析器中的字元查开放寻址表，
+ * 不生成命令名字符串；新增命令只需注册，不必改动会话的主循环。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class CommandRegistry {
+    /**
+     * 命令处理函数
+     */
+    @FunctionalInterface
+    public interface Command {
+        /**
+         * @param args 已解析的命令，第0个字元为命令名
+         * @throws CommandHandler.ArgumentCountException 参数不合法
+         */
+        void execute(CommandLexer args) throws CommandHandler.ArgumentCountException;
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final int hash;
+        private final int minArgs;
+        private final int maxArgs;
+        private final Command command;
+
+        Entry(String name, int minArgs, int maxArgs, Command command) {
+            this.name = name;
+            this.hash = name.hashCode();
+            this.minArgs = minArgs;
+            this.maxArgs = maxArgs;
+            this.command = command;
+        }
+    }
+
+    private Entry[] table = new Entry[16];
+    private int size = 0;
+
+    /**
+     * 注册命令
+     *
+     * @param name 命令名
+     * @param minArgs 最少参数个数（不含命令名）
+     * @param maxArgs 最多参数个数（不含命令名）
+     * @param command 处理函数
+     * @return this
+     */
+    public CommandRegistry register(String name, int minArgs, int maxArgs, Command command) {
+        if ((size + 1) * 2 > table.length) {
+            Entry[] old = table;
+            table = new Entry[old.length * 2];
+            for (Entry entry : old) {
+                if (entry != null) {
+                    insert(entry);
+                }
+            }
+        }
+        insert(new Entry(name, minArgs, maxArgs, command));
+        ++size;
+        return this;
+    }
+
+    private void insert(Entry entry) {
+        int mask = table.length - 1;
+        int i = entry.hash & mask;
+        while (table[i] != null && !table[i].name.equals(entry.name)) {
+            i = (i + 1) & mask;
+        }
+        table[i] = entry;
+    }
+
+    /**
+     * 分派命令
+     *
+     * @param args 已解析的命令
+     * @throws CommandHandler.NoSuchCommandException 没有这个命令
+     * @throws CommandHandler.ArgumentCountException 参数数量错误
+     */
+    public void dispatch(CommandLexer args)
+            throws CommandHandler.NoSuchCommandException, CommandHandler.ArgumentCountException {
+        if (args.count() == 0) {
+            return;
+        }
+        int mask = table.length - 1;
+        int hash = args.tokenHash(0);
+        for (int i = hash & mask; table[i] != null; i = (i + 1) & mask) {
+            Entry entry = table[i];
+            if (entry.hash == hash && args.tokenEquals(0, entry.name)) {
+                int argCount = args.count() - 1;
+                if (argCount > entry.maxArgs) {
+                    throw new CommandHandler.ArgumentCountException("Too many arguments!");
+                } else if (argCount < entry.minArgs) {
+                    throw new CommandHandler.ArgumentCountException("Too few arguments!");
+                }
+                entry.command.execute(args);
+                return;
+            }
+        }
+        throw new CommandHandler.NoSuchCommandException("No such command: " + args.token(0));
+    }
+}
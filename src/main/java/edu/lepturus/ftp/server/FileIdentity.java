@@ -0,0 +1,67 @@
+package edu.lepturus.ftp.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * 文件标识：路径、修改时间与大小均相同才视为同一份内容
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public final class FileIdentity {
+    private final Path path;
+    private final long modifiedTime;
+    private final long size;
+
+    public FileIdentity(Path path, long modifiedTime, long size) {
+        this.path = path;
+        this.modifiedTime = modifiedTime;
+        this.size = size;
+    }
+
+    /**
+     * 读取文件当前的标识
+     *
+     * @param path 文件路径
+     * @return 文件标识
+     * @throws IOException 读取文件属性失败
+     */
+    public static FileIdentity of(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return new FileIdentity(
+                path.toAbsolutePath().normalize(),
+                attributes.lastModifiedTime().toMillis(),
+                attributes.size());
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getModifiedTime() {
+        return modifiedTime;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        FileIdentity that = (FileIdentity) o;
+        return modifiedTime == that.modifiedTime
+                && size == that.size
+                && Objects.equals(path, that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(path, modifiedTime, size);
+    }
+}
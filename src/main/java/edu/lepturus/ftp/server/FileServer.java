@@ -7,6 +7,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.concurrent.*;
 
+import edu.lepturus.ftp.utils.DataPacket;
 import edu.lepturus.ftp.utils.SessionInfo;
 
 /**
@@ -18,67 +19,215 @@ import edu.lepturus.ftp.utils.SessionInfo;
 public class FileServer {
     private static final int SERVER_TCP_PORT = 2020;
 
-    private final ExecutorService executorService;
+    private final AdmissionController admission;
     private static final int POOL_SIZE = 4;
+    private static final int MAX_TRANSFERS = 16;
+    private static final int MAX_FOLLOWS = 64;
+    private static final int TRANSFER_QUEUE_SIZE = 32;
+    private static final long TRANSFER_WAIT = 2 * 1000;
+    private static final long RETRY_AFTER = 1000;
 
     private final ServerSocket tcpSocket;
+    private static final int ACCEPT_BACKLOG = 4096;
+    private static final int ACCEPTOR_COUNT = 2;
+
+    private final ThreadPoolExecutor handshakePool;
+    private static final int HANDSHAKE_QUEUE_SIZE = 1024;
+    private static final int HANDSHAKE_TIMEOUT = 5 * 1000;
+    private static final int MAX_HANDSHAKE_LINE = 4 * 1024;
+    /**
+     * 握手的截止时刻：接受连接时登记，到期仍未完成握手则关闭连接（含排队时间）
+     */
+    private final ScheduledExecutorService handshakeDeadlines;
 
     private final Path ROOT;
 
-    private final Object lock = new Object();
-    private static final long DELTA = 1;
+    private final ChunkCache chunkCache;
+    private static final long CACHE_CAPACITY = 256L * 1024 * 1024;
+    private final TransferCoordinator coordinator;
+    private final PathIndex pathIndex;
+    private final Path TRACE_DIR;
 
     public FileServer(int TCP_LISTEN_PORT, Path ROOT) throws IOException {
-        this.tcpSocket = new ServerSocket(TCP_LISTEN_PORT);
+        this(TCP_LISTEN_PORT, ROOT, null);
+    }
+
+    /**
+     * @param TCP_LISTEN_PORT TCP监听端口
+     * @param ROOT 服务器根目录
+     * @param TRACE_DIR 会话轨迹目录，null表示不记录
+     * @throws IOException 无法监听端口
+     */
+    public FileServer(int TCP_LISTEN_PORT, Path ROOT, Path TRACE_DIR) throws IOException {
+        this(TCP_LISTEN_PORT, ROOT, TRACE_DIR, new AdmissionController(
+                Runtime.getRuntime().availableProcessors() * POOL_SIZE,
+                MAX_TRANSFERS,
+                MAX_FOLLOWS,
+                TRANSFER_QUEUE_SIZE,
+                TRANSFER_WAIT,
+                RETRY_AFTER));
+    }
+
+    public FileServer(int TCP_LISTEN_PORT, Path ROOT, Path TRACE_DIR, AdmissionController admission)
+            throws IOException {
+        this.tcpSocket = new ServerSocket(TCP_LISTEN_PORT, ACCEPT_BACKLOG);
         this.ROOT = ROOT;
-        this.executorService = Executors.newFixedThreadPool(
-                Runtime.getRuntime().availableProcessors() * POOL_SIZE);
+        this.TRACE_DIR = TRACE_DIR;
+        this.admission = admission;
+        this.chunkCache = new ChunkCache(CACHE_CAPACITY);
+        this.coordinator = new TransferCoordinator(chunkCache);
+        this.pathIndex = new PathIndex(ROOT);
+        int handshakeThreads = Runtime.getRuntime().availableProcessors() * 2;
+        this.handshakePool = new ThreadPoolExecutor(
+                handshakeThreads, handshakeThreads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(HANDSHAKE_QUEUE_SIZE),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.handshakeDeadlines = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "handshake-deadline");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public ServerSocket getTcpSocket() {
         return tcpSocket;
     }
 
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+    /**
+     * 启动多个接收线程并阻塞至服务器套接字关闭。
+     * 接收线程只负责accept，握手交给握手线程池异步完成，慢客户端不会阻塞其他连接。
+     */
     public void run() {
-        while (true) {
+        Thread[] acceptors = new Thread[ACCEPTOR_COUNT];
+        for (int i = 0; i < acceptors.length; ++i) {
+            acceptors[i] = new Thread(this::acceptLoop, "acceptor-" + i);
+            acceptors[i].start();
+        }
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!tcpSocket.isClosed()) {
             try {
                 Socket clientTcp = tcpSocket.accept();
-                BufferedReader tcpIn = new BufferedReader(new InputStreamReader(clientTcp.getInputStream()));
-                BufferedWriter tcpOut = new BufferedWriter(new OutputStreamWriter(clientTcp.getOutputStream()));
-                SessionInfo sessionInfo = SessionInfo.jsonStringToSessionInfo(tcpIn.readLine().trim());
-                String msg = "Session establishing: address "
-                        + sessionInfo.getClientAddress()
-                        + ", tcp port "
-                        + sessionInfo.getClientTcpPort()
-                        + ", udp port "
-                        + sessionInfo.getClientUdpPort()
-                        + ", uuid "
-                        + sessionInfo.getUuid();
-                System.out.println(msg);
-                tcpOut.write(msg);
+                ScheduledFuture<?> deadline = handshakeDeadlines.schedule(
+                        () -> closeQuietly(clientTcp), HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+                try {
+                    handshakePool.execute(() -> handshake(clientTcp, deadline));
+                } catch (RejectedExecutionException e) {
+                    deadline.cancel(false);
+                    rejectBusy(clientTcp);
+                }
+            } catch (IOException e) {
+                if (!tcpSocket.isClosed()) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 握手线程池已满：回复繁忙后断开，客户端据此稍后重试
+     *
+     * @param clientTcp 客户端TCP连接
+     */
+    private void rejectBusy(Socket clientTcp) {
+        try {
+            Writer tcpOut = new OutputStreamWriter(clientTcp.getOutputStream());
+            tcpOut.write(admission.busyMessage() + System.lineSeparator());
+            tcpOut.flush();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        } finally {
+            closeQuietly(clientTcp);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * 读取客户端的会话信息并提交会话。
+     * 握手从接受连接起至多HANDSHAKE_TIMEOUT（截止时连接被关闭，读取随之失败），
+     * 会话信息不超过MAX_HANDSHAKE_LINE个字符，逐字节拖延的客户端也无法长期占用握手线程
+     *
+     * @param clientTcp 客户端TCP连接
+     * @param deadline 截止时关闭连接的任务，握手完成前取消
+     */
+    private void handshake(Socket clientTcp, ScheduledFuture<?> deadline) {
+        try {
+            clientTcp.setSoTimeout(HANDSHAKE_TIMEOUT);
+            BufferedReader tcpIn = new BufferedReader(new InputStreamReader(clientTcp.getInputStream()));
+            ReplyWriter tcpOut = new ReplyWriter(new OutputStreamWriter(clientTcp.getOutputStream()));
+            String line = CommandLexer.readLine(tcpIn, MAX_HANDSHAKE_LINE);
+            if (line == null || !deadline.cancel(false)) {
+                clientTcp.close();
+                return;
+            }
+            SessionInfo sessionInfo = SessionInfo.jsonStringToSessionInfo(line.trim());
+            sessionInfo.setFILE_UDP_PACKET_SIZE(DataPacket.negotiate(sessionInfo.getFILE_UDP_PACKET_SIZE()));
+            ServerSession session = new ServerSession(
+                    clientTcp,
+                    tcpIn,
+                    tcpOut,
+                    sessionInfo,
+                    ROOT,
+                    admission,
+                    chunkCache,
+                    coordinator,
+                    pathIndex,
+                    TRACE_DIR);
+            if (!admission.admitSession(session)) {
+                System.out.println("Session rejected (busy): uuid " + sessionInfo.getUuid());
+                tcpOut.write(admission.busyMessage());
                 tcpOut.newLine();
                 tcpOut.flush();
-                executorService.execute(new ServerSession(
-                        clientTcp,
-                        tcpIn,
-                        tcpOut,
-                        sessionInfo,
-                        ROOT));
-            } catch (Exception e) {
-                System.err.println(e.getMessage());
+                clientTcp.close();
             }
-            synchronized (lock) {
-                try {
-                    lock.wait(DELTA);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
+        } catch (Exception e) {
+            deadline.cancel(false);
+            if (!clientTcp.isClosed()) {
+                System.err.println(e.getMessage());
             }
+            closeQuietly(clientTcp);
         }
     }
 
+    public void shutdown() {
+        try {
+            tcpSocket.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        handshakePool.shutdownNow();
+        handshakeDeadlines.shutdownNow();
+        coordinator.shutdown();
+        chunkCache.shutdown();
+        pathIndex.close();
+        admission.shutdown();
+    }
+
     /**
      * args[0]: 服务器根目录（绝对路径）
+     * args[1]: TCP监听端口（可选，默认2020），同一台机器上运行多个副本时使用
+     * args[2]: 会话轨迹目录（可选），指定后每个会话记录一个轨迹文件，供TraceReplay回放
      *
      * @param args args
      */
@@ -86,20 +235,18 @@ public class FileServer {
         try {
             Path root = Paths.get(args[0]);
             if (Files.exists(root) && Files.isDirectory(root)) {
-                FileServer fileServer = new FileServer(SERVER_TCP_PORT, root);
+                int port = args.length > 1 ? Integer.parseInt(args[1]) : SERVER_TCP_PORT;
+                Path traceDir = args.length > 2 ? Paths.get(args[2]) : null;
+                FileServer fileServer = new FileServer(port, root, traceDir);
                 Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                     System.out.println("Shutdown Hook is running. Cleaning up resources...");
-                    try {
-                        fileServer.getTcpSocket().close();
-                    } catch (IOException e) {
-                        System.err.println(e.getMessage());
-                    }
+                    fileServer.shutdown();
                 }));
                 fileServer.run();
             } else {
                 System.err.println("This is not a valid root path!");
             }
-        } catch (IOException e) {
+        } catch (IOException | NumberFormatException e) {
             System.err.println(e.getMessage());
         }
     }
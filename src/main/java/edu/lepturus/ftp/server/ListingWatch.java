@@ -0,0 +1,92 @@
+package edu.lepturus.ftp.server;
+
+import edu.lepturus.ftp.utils.Reply;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * 一个会话的目录列表失效通知。
+ * 客户端缓存ls的结果：ls回复中的“!watch 目录”表示该列表可以缓存，
+ * 此后目录内容（或其父目录中该目录的一行）变化时，服务器推送“!invalidate 目录”，
+ * 每次列出至多通知一次，客户端再次列出时重新登记。
+ * 路径索引线程只登记失效、把通知交给会话的NoticeWriter，不写套接字，
+ * 通知在两条回复之间由会话的通知线程写出。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class ListingWatch implements Consumer<Path> {
+    private final NoticeWriter notices;
+    private final PathIndex pathIndex;
+    private final Set<Path> watched = new HashSet<>();
+    private boolean closed = false;
+
+    /**
+     * 开始接收路径索引的目录变化，握手完成后创建
+     *
+     * @param notices 会话的通知
+     * @param pathIndex 路径索引
+     */
+    public ListingWatch(NoticeWriter notices, PathIndex pathIndex) {
+        this.notices = notices;
+        this.pathIndex = pathIndex;
+        pathIndex.addListener(this);
+    }
+
+    /**
+     * @param dir 相对于ROOT的目录
+     * @return 与工作目录行格式相同的目录名
+     */
+    public static String key(Path dir) {
+        return FileSystems.getDefault().getSeparator() + dir;
+    }
+
+    /**
+     * 登记客户端将缓存的目录列表，须在列出目录之前调用，列出期间的变化随后也会通知
+     *
+     * @param dir 相对于ROOT的目录
+     * @return 目录正被路径索引监视，客户端可以缓存
+     */
+    public synchronized boolean watch(Path dir) {
+        if (!pathIndex.isWatched(dir)) {
+            return false;
+        }
+        watched.add(dir);
+        return true;
+    }
+
+    /**
+     * 路径索引线程调用：目录的列表失效，它在父目录列表中的一行（大小）也可能变化
+     *
+     * @param dir 内容变化的目录，相对于ROOT
+     */
+    @Override
+    public synchronized void accept(Path dir) {
+        if (closed) {
+            return;
+        }
+        invalidate(dir);
+        if (!dir.toString().isEmpty()) {
+            Path parent = dir.getParent();
+            invalidate(parent == null ? dir.getFileSystem().getPath("") : parent);
+        }
+    }
+
+    private void invalidate(Path dir) {
+        if (watched.remove(dir)) {
+            notices.post(Reply.INVALIDATE + key(dir));
+        }
+    }
+
+    /**
+     * 会话结束，不再接收变化
+     */
+    public synchronized void close() {
+        closed = true;
+        pathIndex.removeListener(this);
+    }
+}
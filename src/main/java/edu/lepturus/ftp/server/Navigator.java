@@ -68,6 +68,17 @@ public class Navigator {
         }
     }
 
+    /**
+     * 解析路径但不改变当前工作目录
+     *
+     * @param path 相对或绝对路径
+     * @return 相对于ROOT的目标路径
+     * @throws NoSuchFileException 目标不存在
+     */
+    public Path relative(Path path) throws NoSuchFileException {
+        return ROOT.relativize(resolvePath(path));
+    }
+
     /**
      * 前往目标目录
      *
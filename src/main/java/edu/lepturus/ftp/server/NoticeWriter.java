@@ -0,0 +1,117 @@
+package edu.lepturus.ftp.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 一个会话的服务器通知（见Reply.NOTICE）。
+ * 其他线程（路径索引、后台传输）只把通知放入队列，立即返回，不会因客户端接收缓慢而阻塞；
+ * 通知由本会话自己的线程写出，且只在两条回复之间写出，不会插入某条回复的中间。
+ * 尚未写出的相同通知只保留一条。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class NoticeWriter implements Runnable {
+    private final ReplyWriter tcpOut;
+    private final Set<String> pending = new LinkedHashSet<>();
+    /**
+     * 保护busy，写出通知期间持有，回复开始前须等待其写完
+     */
+    private final Object output = new Object();
+    private boolean busy = false;
+    private volatile boolean closed = false;
+    private final Thread thread;
+
+    /**
+     * 启动本会话的通知线程，握手完成后创建
+     *
+     * @param tcpOut 控制连接的输出
+     * @param name 线程名
+     */
+    public NoticeWriter(ReplyWriter tcpOut, String name) {
+        this.tcpOut = tcpOut;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * 放入一条通知，不阻塞
+     *
+     * @param notice 通知，以Reply.NOTICE开头
+     */
+    public void post(String notice) {
+        synchronized (pending) {
+            if (closed) {
+                return;
+            }
+            pending.add(notice);
+            pending.notifyAll();
+        }
+    }
+
+    /**
+     * 开始处理一条命令，其间的通知积压到回复结束
+     */
+    public void begin() {
+        synchronized (output) {
+            busy = true;
+        }
+    }
+
+    /**
+     * 回复已写完，可以写出积压的通知
+     */
+    public void end() {
+        synchronized (output) {
+            busy = false;
+            output.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                List<String> batch;
+                synchronized (pending) {
+                    while (pending.isEmpty() && !closed) {
+                        pending.wait();
+                    }
+                    batch = new ArrayList<>(pending);
+                    pending.clear();
+                }
+                synchronized (output) {
+                    while (busy && !closed) {
+                        output.wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    for (String notice : batch) {
+                        tcpOut.notice(notice);
+                    }
+                    tcpOut.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 会话结束，丢弃未写出的通知
+     */
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+}
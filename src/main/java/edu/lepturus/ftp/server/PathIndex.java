@@ -0,0 +1,1028 @@
+package edu.lepturus.ftp.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * 服务器根目录下全部路径的内存索引。
+ * 路径按树存放在并行数组中：父节点、文件名编号、首个子节点、下一个兄弟节点、
+ * 串起同名节点的双向链表，以及子树的字节数与文件数（文件节点为自身大小与1），
+ * 每个路径36字节外加1比特的目录标记；
+ * 文件名去重后存入一个共享char数组，同名文件只存一份。
+ * 查询先匹配去重后的文件名，再沿同名链表取出节点，开销与路径总数无关：
+ * 模式以字面前缀开头时在按名称排序的编号数组中二分出前缀区间；
+ * 否则以模式中最长的字面片段在文件名char数组上顺序扫描，只对命中的文件名做通配匹配。
+ * 新增的文件名先留在未排序的尾部，尾部足够长时再归并进排序数组；
+ * 不再被任何路径使用的文件名超过一半时压缩文件名池，回收其字符与编号。
+ * 索引在后台由fork-join并行遍历建立，各目录的列出与stat并行进行，只在插入节点时加锁；
+ * 之后移入的目录树在处理完该批事件、释放锁之后同样并行遍历；
+ * 之后由WatchService监视每个目录增量更新，文件的新增、删除与大小变化沿父节点链
+ * 更新各级目录的合计，任意子树的大小都可直接读出；事件溢出时重新比对该目录。
+ * 处理完一个目录的事件后通知监听者该目录的内容已变化，供会话使各自客户端缓存的列表失效。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class PathIndex implements Closeable {
+    private static final int NONE = -1;
+    private static final int ROOT_NODE = 0;
+    private static final int INITIAL_NODES = 1024;
+    private static final int INITIAL_CHARS = 16 * 1024;
+    /**
+     * 每个被监视目录在两个映射和WatchKey上的大致开销
+     */
+    private static final int WATCH_ENTRY_BYTES = 160;
+    private static final int BUILD_PARALLELISM = Runtime.getRuntime().availableProcessors() * 2;
+
+    private final Path ROOT;
+    private final WatchService watchService;
+    private final Map<WatchKey, Integer> keyNodes = new HashMap<>();
+    private final Map<Integer, WatchKey> nodeKeys = new HashMap<>();
+    private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private volatile boolean ready = false;
+    private int watchFailures = 0;
+    private final List<Consumer<Path>> listeners = new CopyOnWriteArrayList<>();
+    private final ForkJoinPool listPool = new ForkJoinPool(BUILD_PARALLELISM);
+
+    private int[] parent = new int[INITIAL_NODES];
+    private int[] name = new int[INITIAL_NODES];
+    private int[] firstChild = new int[INITIAL_NODES];
+    private int[] nextSibling = new int[INITIAL_NODES];
+    private int[] nextSame = new int[INITIAL_NODES];
+    private int[] prevSame = new int[INITIAL_NODES];
+    private long[] bytes = new long[INITIAL_NODES];
+    private int[] files = new int[INITIAL_NODES];
+    private final BitSet directories = new BitSet();
+    private int nodeCount = 0;
+    private int liveNodes = 0;
+    private int freeHead = NONE;
+
+    private char[] chars = new char[INITIAL_CHARS];
+    private int charCount = 0;
+    private int[] nameStart = new int[INITIAL_NODES];
+    private int[] nameLength = new int[INITIAL_NODES];
+    private int[] nameFirst = new int[INITIAL_NODES];
+    private int nameCount = 0;
+    private int[] nameTable = new int[INITIAL_NODES * 2];
+    private int[] sorted = new int[0];
+    private int sortedCount = 0;
+    private static final int MIN_UNSORTED = 4096;
+    private int liveNames = 0;
+    private static final int MIN_DEAD_NAMES = 4096;
+
+    /**
+     * 开始在后台建立索引
+     *
+     * @param ROOT 根目录
+     * @throws IOException 无法创建WatchService
+     */
+    public PathIndex(Path ROOT) throws IOException {
+        this.ROOT = ROOT.toAbsolutePath().normalize();
+        this.watchService = this.ROOT.getFileSystem().newWatchService();
+        allocateNode();
+        parent[ROOT_NODE] = NONE;
+        name[ROOT_NODE] = NONE;
+        firstChild[ROOT_NODE] = NONE;
+        nextSibling[ROOT_NODE] = NONE;
+        bytes[ROOT_NODE] = 0;
+        files[ROOT_NODE] = 0;
+        directories.set(ROOT_NODE);
+        Thread watcher = new Thread(this::run, "path-index");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void run() {
+        long start = System.currentTimeMillis();
+        try {
+            listPool.invoke(new ListTask(ROOT, ROOT_NODE));
+        } catch (RejectedExecutionException | CancellationException e) {
+            return;
+        }
+        rwLock.writeLock().lock();
+        try {
+            mergeUnsorted();
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+        ready = true;
+        System.out.println("Path index built in " + (System.currentTimeMillis() - start) + " ms. " + stats());
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path changed = null;
+            List<ListTask> subtrees = new ArrayList<>();
+            rwLock.writeLock().lock();
+            try {
+                Integer node = keyNodes.get(key);
+                if (node != null) {
+                    changed = ROOT.relativize((Path) key.watchable());
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (node == null) {
+                        continue;
+                    }
+                    Path dir = (Path) key.watchable();
+                    if (event.kind() == OVERFLOW) {
+                        reconcile(dir, node, subtrees);
+                    } else if (event.kind() == ENTRY_CREATE) {
+                        created(dir, node, event.context().toString(), subtrees);
+                    } else if (event.kind() == ENTRY_MODIFY) {
+                        modified(dir, node, event.context().toString());
+                    } else if (event.kind() == ENTRY_DELETE) {
+                        int child = child(node, event.context().toString());
+                        if (child != NONE) {
+                            removeSubtree(child);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    Integer removed = keyNodes.remove(key);
+                    if (removed != null) {
+                        nodeKeys.remove(removed);
+                    }
+                }
+                compactNames();
+            } finally {
+                rwLock.writeLock().unlock();
+            }
+            if (!subtrees.isEmpty()) {
+                try {
+                    listPool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(subtrees)));
+                } catch (RejectedExecutionException | CancellationException e) {
+                    return;
+                }
+            }
+            if (changed != null) {
+                for (Consumer<Path> listener : listeners) {
+                    listener.accept(changed);
+                }
+            }
+        }
+    }
+
+    /**
+     * 注册目录变化的监听者，在索引线程中以相对于ROOT的目录路径调用，不应阻塞
+     *
+     * @param listener 监听者
+     */
+    public void addListener(Consumer<Path> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Path> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param relative 相对于ROOT的目录
+     * @return 该目录已在索引中且正被监视，其变化会通知监听者
+     */
+    public boolean isWatched(Path relative) {
+        if (!ready) {
+            return false;
+        }
+        rwLock.readLock().lock();
+        try {
+            int node = nodeOf(relative);
+            return node != NONE && nodeKeys.containsKey(node);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 查找当前目录下文件名或路径后缀匹配的路径。
+     * 模式不含*和?时按子串匹配；含/时逐级匹配路径的最后几级，*不跨越/。
+     *
+     * @param scope 查找范围，相对于ROOT
+     * @param pattern 通配模式或子串
+     * @param limit 最多返回的结果数
+     * @return 相对于scope的路径，目录以分隔符结尾；索引尚未建好时返回null
+     */
+    public List<String> find(Path scope, String pattern, int limit) {
+        if (!ready) {
+            return null;
+        }
+        String glob = pattern.indexOf('*') < 0 && pattern.indexOf('?') < 0 ? "*" + pattern + "*" : pattern;
+        List<String> parts = new ArrayList<>();
+        for (String part : glob.split("/")) {
+            if (!part.isEmpty()) {
+                parts.add(part);
+            }
+        }
+        List<String> results = new ArrayList<>();
+        if (parts.isEmpty()) {
+            return results;
+        }
+        String last = parts.get(parts.size() - 1);
+        rwLock.readLock().lock();
+        try {
+            int scopeNode = nodeOf(scope);
+            if (scopeNode == NONE) {
+                return results;
+            }
+            forEachName(last, id -> {
+                for (int node = nameFirst[id]; node != NONE && results.size() < limit; node = nextSame[node]) {
+                    int top = matchAncestors(node, parts);
+                    if (top != NONE && isBelow(top, scopeNode)) {
+                        results.add(pathOf(node, scopeNode));
+                    }
+                }
+                return results.size() < limit;
+            });
+        } finally {
+            rwLock.readLock().unlock();
+        }
+        return results;
+    }
+
+    /**
+     * 读取子树合计
+     *
+     * @param relative 相对于ROOT的路径
+     * @return {字节数, 文件数}；索引尚未建好时返回null
+     * @throws NoSuchFileException 路径尚未进入索引
+     */
+    public long[] usage(Path relative) throws NoSuchFileException {
+        if (!ready) {
+            return null;
+        }
+        rwLock.readLock().lock();
+        try {
+            int node = nodeOf(relative);
+            if (node == NONE) {
+                throw new NoSuchFileException("Not indexed yet: " + relative);
+            }
+            return new long[]{bytes[node], files[node]};
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return 路径数、文件名数与估算的内存占用
+     */
+    public String stats() {
+        rwLock.readLock().lock();
+        try {
+            long nodeBytes = (long) parent.length * (7 * Integer.BYTES + Long.BYTES) + directories.size() / Byte.SIZE;
+            long nameBytes = (long) nameStart.length * 3 * Integer.BYTES
+                    + (long) sorted.length * Integer.BYTES
+                    + (long) nameTable.length * Integer.BYTES
+                    + (long) chars.length * Character.BYTES;
+            long watchBytes = (long) keyNodes.size() * WATCH_ENTRY_BYTES;
+            long total = nodeBytes + nameBytes + watchBytes;
+            return String.format("Path index: %d paths, %d names (%d unused), %d watched directories%s"
+                            + ", %.2f MiB (%.1f B/path)",
+                    liveNodes,
+                    liveNames,
+                    nameCount - liveNames,
+                    keyNodes.size(),
+                    watchFailures > 0 ? " (" + watchFailures + " unwatched)" : "",
+                    total / (1024.0 * 1024.0),
+                    liveNodes == 0 ? 0.0 : (double) total / liveNodes);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        listPool.shutdownNow();
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * 并行遍历的任务：列出一个目录，再并行处理其子目录
+     */
+    private final class ListTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final int node;
+
+        ListTask(Path dir, int node) {
+            this.dir = dir;
+            this.node = node;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(listDirectory(dir, node));
+        }
+    }
+
+    /**
+     * 注册监视后列出目录并插入其直接子项，文件大小合计沿父节点链累加。
+     * 先注册再列出，列出期间新建的文件不会遗漏；列出与stat不持锁。
+     *
+     * @param dir 目录
+     * @param node 目录对应的节点
+     * @return 子目录的任务
+     */
+    private List<ListTask> listDirectory(Path dir, int node) {
+        WatchKey key = null;
+        try {
+            key = dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (watchFailures++ == 0) {
+                    System.err.println("Cannot watch " + dir + ": " + e.getMessage());
+                }
+            }
+        }
+        List<String> names = new ArrayList<>();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                try {
+                    attributes.add(Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+                    names.add(entry.getFileName().toString());
+                } catch (IOException e) {
+                    // 列出后被删除
+                }
+            }
+        } catch (IOException e) {
+            // 无权限或已被删除
+        }
+        List<ListTask> subtasks = new ArrayList<>();
+        rwLock.writeLock().lock();
+        try {
+            if (key != null) {
+                keyNodes.put(key, node);
+                nodeKeys.put(node, key);
+            }
+            long addedBytes = 0;
+            int addedFiles = 0;
+            for (int i = 0; i < names.size(); ++i) {
+                BasicFileAttributes attrs = attributes.get(i);
+                int child = addNode(node, names.get(i), attrs.isDirectory(), attrs.size());
+                if (attrs.isDirectory()) {
+                    subtasks.add(new ListTask(dir.resolve(names.get(i)), child));
+                } else {
+                    addedBytes += attrs.size();
+                    ++addedFiles;
+                }
+            }
+            propagate(node, addedBytes, addedFiles);
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+        return subtasks;
+    }
+
+    /**
+     * 新建或移入的文件插入索引；目录只插入自身，其内容由subtrees中的任务在释放锁后遍历
+     *
+     * @param subtrees 收集待遍历的目录
+     */
+    private void created(Path dir, int parentNode, String fileName, List<ListTask> subtrees) {
+        if (child(parentNode, fileName) != NONE) {
+            return;
+        }
+        Path path = dir.resolve(fileName);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return;
+        }
+        int node = addNode(parentNode, fileName, attrs.isDirectory(), attrs.size());
+        if (attrs.isDirectory()) {
+            subtrees.add(new ListTask(path, node));
+        } else {
+            propagate(parentNode, attrs.size(), 1);
+        }
+    }
+
+    private void modified(Path dir, int parentNode, String fileName) {
+        int node = child(parentNode, fileName);
+        if (node == NONE || directories.get(node)) {
+            return;
+        }
+        try {
+            long size = Files.readAttributes(dir.resolve(fileName), BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS).size();
+            long delta = size - bytes[node];
+            bytes[node] = size;
+            propagate(parentNode, delta, 0);
+        } catch (IOException e) {
+            // 随后会收到删除事件
+        }
+    }
+
+    /**
+     * 将字节数与文件数的变化累加到node及其所有祖先
+     */
+    private void propagate(int node, long deltaBytes, int deltaFiles) {
+        if (deltaBytes == 0 && deltaFiles == 0) {
+            return;
+        }
+        for (int n = node; n != NONE; n = parent[n]) {
+            bytes[n] += deltaBytes;
+            files[n] += deltaFiles;
+        }
+    }
+
+    /**
+     * 事件溢出后将目录的直接子项与磁盘比对，文件大小一并刷新
+     */
+    private void reconcile(Path dir, int node, List<ListTask> subtrees) {
+        Set<String> onDisk = new HashSet<>();
+        try (Stream<Path> stream = Files.list(dir)) {
+            stream.forEach(path -> onDisk.add(path.getFileName().toString()));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        List<Integer> gone = new ArrayList<>();
+        for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+            String fileName = nameOf(name[child]);
+            if (onDisk.remove(fileName)) {
+                modified(dir, node, fileName);
+            } else {
+                gone.add(child);
+            }
+        }
+        for (int child : gone) {
+            removeSubtree(child);
+        }
+        for (String fileName : onDisk) {
+            created(dir, node, fileName, subtrees);
+        }
+    }
+
+    /**
+     * 插入节点，不更新祖先的合计
+     *
+     * @param size 文件大小，目录忽略
+     */
+    private int addNode(int parentNode, String fileName, boolean isDirectory, long size) {
+        int id = intern(fileName);
+        int node = allocateNode();
+        parent[node] = parentNode;
+        name[node] = id;
+        firstChild[node] = NONE;
+        nextSibling[node] = firstChild[parentNode];
+        firstChild[parentNode] = node;
+        prevSame[node] = NONE;
+        nextSame[node] = nameFirst[id];
+        if (nameFirst[id] != NONE) {
+            prevSame[nameFirst[id]] = node;
+        } else {
+            ++liveNames;
+        }
+        nameFirst[id] = node;
+        bytes[node] = isDirectory ? 0 : size;
+        files[node] = isDirectory ? 0 : 1;
+        directories.set(node, isDirectory);
+        ++liveNodes;
+        return node;
+    }
+
+    private int allocateNode() {
+        if (freeHead != NONE) {
+            int node = freeHead;
+            freeHead = nextSibling[node];
+            return node;
+        }
+        if (nodeCount == parent.length) {
+            int capacity = parent.length + (parent.length >> 1);
+            parent = Arrays.copyOf(parent, capacity);
+            name = Arrays.copyOf(name, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            nextSame = Arrays.copyOf(nextSame, capacity);
+            prevSame = Arrays.copyOf(prevSame, capacity);
+            bytes = Arrays.copyOf(bytes, capacity);
+            files = Arrays.copyOf(files, capacity);
+        }
+        return nodeCount++;
+    }
+
+    private void removeSubtree(int node) {
+        int p = parent[node];
+        propagate(p, -bytes[node], -files[node]);
+        if (firstChild[p] == node) {
+            firstChild[p] = nextSibling[node];
+        } else {
+            int prev = firstChild[p];
+            while (nextSibling[prev] != node) {
+                prev = nextSibling[prev];
+            }
+            nextSibling[prev] = nextSibling[node];
+        }
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(node);
+        while (!pending.isEmpty()) {
+            int n = pending.pop();
+            for (int child = firstChild[n]; child != NONE; child = nextSibling[child]) {
+                pending.push(child);
+            }
+            freeNode(n);
+        }
+    }
+
+    private void freeNode(int node) {
+        int id = name[node];
+        if (prevSame[node] == NONE) {
+            nameFirst[id] = nextSame[node];
+        } else {
+            nextSame[prevSame[node]] = nextSame[node];
+        }
+        if (nextSame[node] != NONE) {
+            prevSame[nextSame[node]] = prevSame[node];
+        }
+        if (nameFirst[id] == NONE) {
+            --liveNames;
+        }
+        WatchKey key = nodeKeys.remove(node);
+        if (key != null) {
+            key.cancel();
+            keyNodes.remove(key);
+        }
+        directories.clear(node);
+        parent[node] = NONE;
+        name[node] = NONE;
+        firstChild[node] = NONE;
+        nextSibling[node] = freeHead;
+        freeHead = node;
+        --liveNodes;
+    }
+
+    /**
+     * 文件名去重。
+     * 不再被任何路径使用的文件名暂留在表中，同名链表为空，查询时跳过，由compactNames回收。
+     */
+    private int intern(String fileName) {
+        int mask = nameTable.length - 1;
+        for (int i = spread(fileName.hashCode()) & mask; ; i = (i + 1) & mask) {
+            int id = nameTable[i] - 1;
+            if (id == NONE) {
+                id = addName(fileName);
+                nameTable[i] = id + 1;
+                if (nameCount * 2 > nameTable.length) {
+                    rehash();
+                }
+                if (nameCount - sortedCount > Math.max(MIN_UNSORTED, sortedCount / 8)) {
+                    mergeUnsorted();
+                }
+                return id;
+            }
+            if (nameEquals(id, fileName)) {
+                return id;
+            }
+        }
+    }
+
+    private int findName(String fileName) {
+        int mask = nameTable.length - 1;
+        for (int i = spread(fileName.hashCode()) & mask; nameTable[i] != 0; i = (i + 1) & mask) {
+            int id = nameTable[i] - 1;
+            if (nameEquals(id, fileName)) {
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    private int addName(String fileName) {
+        int length = fileName.length();
+        if (charCount + length > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(chars.length + (chars.length >> 1), charCount + length));
+        }
+        fileName.getChars(0, length, chars, charCount);
+        if (nameCount == nameStart.length) {
+            int capacity = nameStart.length + (nameStart.length >> 1);
+            nameStart = Arrays.copyOf(nameStart, capacity);
+            nameLength = Arrays.copyOf(nameLength, capacity);
+            nameFirst = Arrays.copyOf(nameFirst, capacity);
+        }
+        nameStart[nameCount] = charCount;
+        nameLength[nameCount] = length;
+        nameFirst[nameCount] = NONE;
+        charCount += length;
+        return nameCount++;
+    }
+
+    private void rehash() {
+        rebuildTable(nameTable.length * 2);
+    }
+
+    private void rebuildTable(int capacity) {
+        nameTable = new int[capacity];
+        int mask = nameTable.length - 1;
+        for (int id = 0; id < nameCount; ++id) {
+            int hash = 0;
+            for (int j = nameStart[id], end = j + nameLength[id]; j < end; ++j) {
+                hash = 31 * hash + chars[j];
+            }
+            int i = spread(hash) & mask;
+            while (nameTable[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            nameTable[i] = id + 1;
+        }
+    }
+
+    /**
+     * 不再使用的文件名超过一半且不少于MIN_DEAD_NAMES个时压缩文件名池：
+     * 按编号顺序保留仍在使用的文件名，重写各节点的文件名编号，再重建散列表。
+     * 新编号保持原有的先后顺序，排序数组只需去掉不再使用的编号，与未排序尾部的划分不变。
+     */
+    private void compactNames() {
+        int dead = nameCount - liveNames;
+        if (dead < MIN_DEAD_NAMES || dead <= liveNames) {
+            return;
+        }
+        int[] remap = new int[nameCount];
+        int count = 0;
+        int total = 0;
+        for (int id = 0; id < nameCount; ++id) {
+            if (nameFirst[id] == NONE) {
+                remap[id] = NONE;
+            } else {
+                remap[id] = count++;
+                total += nameLength[id];
+            }
+        }
+        char[] compactChars = new char[Math.max(INITIAL_CHARS, total + (total >> 1))];
+        int capacity = Math.max(INITIAL_NODES, count + (count >> 1));
+        int[] compactStart = new int[capacity];
+        int[] compactLength = new int[capacity];
+        int[] compactFirst = new int[capacity];
+        int position = 0;
+        for (int id = 0; id < nameCount; ++id) {
+            int k = remap[id];
+            if (k != NONE) {
+                System.arraycopy(chars, nameStart[id], compactChars, position, nameLength[id]);
+                compactStart[k] = position;
+                compactLength[k] = nameLength[id];
+                compactFirst[k] = nameFirst[id];
+                position += nameLength[id];
+            }
+        }
+        int compactSorted = 0;
+        for (int i = 0; i < sortedCount; ++i) {
+            if (remap[sorted[i]] != NONE) {
+                sorted[compactSorted++] = remap[sorted[i]];
+            }
+        }
+        sorted = Arrays.copyOf(sorted, compactSorted);
+        for (int node = 0; node < nodeCount; ++node) {
+            if (name[node] != NONE) {
+                name[node] = remap[name[node]];
+            }
+        }
+        chars = compactChars;
+        charCount = position;
+        nameStart = compactStart;
+        nameLength = compactLength;
+        nameFirst = compactFirst;
+        nameCount = count;
+        sortedCount = compactSorted;
+        int tableSize = INITIAL_NODES * 2;
+        while (count * 2 > tableSize) {
+            tableSize *= 2;
+        }
+        rebuildTable(tableSize);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean nameEquals(int id, String fileName) {
+        if (nameLength[id] != fileName.length()) {
+            return false;
+        }
+        for (int j = 0, start = nameStart[id]; j < nameLength[id]; ++j) {
+            if (chars[start + j] != fileName.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String nameOf(int id) {
+        return new String(chars, nameStart[id], nameLength[id]);
+    }
+
+    private int child(int parentNode, String fileName) {
+        int id = findName(fileName);
+        if (id == NONE) {
+            return NONE;
+        }
+        for (int child = firstChild[parentNode]; child != NONE; child = nextSibling[child]) {
+            if (name[child] == id) {
+                return child;
+            }
+        }
+        return NONE;
+    }
+
+    private int nodeOf(Path relative) {
+        int node = ROOT_NODE;
+        for (Path part : relative) {
+            if (part.toString().isEmpty()) {
+                continue;
+            }
+            node = child(node, part.toString());
+            if (node == NONE) {
+                return NONE;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * 依次访问与模式匹配、且仍被路径使用的文件名
+     *
+     * @param pattern 单级通配模式
+     * @param visitor 返回false时停止
+     */
+    private void forEachName(String pattern, IntPredicate visitor) {
+        int wildcard = 0;
+        while (wildcard < pattern.length() && pattern.charAt(wildcard) != '*' && pattern.charAt(wildcard) != '?') {
+            ++wildcard;
+        }
+        if (wildcard > 0) {
+            String prefix = pattern.substring(0, wildcard);
+            for (int i = bound(prefix, false), end = bound(prefix, true); i < end; ++i) {
+                if (!visitName(pattern, sorted[i], visitor)) {
+                    return;
+                }
+            }
+            for (int id = sortedCount; id < nameCount; ++id) {
+                if (!visitName(pattern, id, visitor)) {
+                    return;
+                }
+            }
+            return;
+        }
+        String literal = longestLiteral(pattern);
+        if (literal.isEmpty()) {
+            for (int id = 0; id < nameCount; ++id) {
+                if (!visitName(pattern, id, visitor)) {
+                    return;
+                }
+            }
+            return;
+        }
+        // Horspool：以窗口末字符查跳跃表，字面片段越长跳得越远
+        char[] pool = chars;
+        int m = literal.length();
+        char last = literal.charAt(m - 1);
+        int[] shift = new int[256];
+        Arrays.fill(shift, m);
+        for (int j = 0; j < m - 1; ++j) {
+            shift[literal.charAt(j) & 0xFF] = m - 1 - j;
+        }
+        for (int i = 0, end = charCount - m; i <= end; ) {
+            char c = pool[i + m - 1];
+            if (c != last || !regionMatches(i, literal)) {
+                i += shift[c & 0xFF];
+                continue;
+            }
+            int id = nameAt(i);
+            int nameEnd = nameStart[id] + nameLength[id];
+            if (i + m <= nameEnd && !visitName(pattern, id, visitor)) {
+                return;
+            }
+            i = Math.max(i + 1, nameEnd);
+        }
+    }
+
+    private boolean visitName(String pattern, int id, IntPredicate visitor) {
+        return nameFirst[id] == NONE || !matches(pattern, id) || visitor.test(id);
+    }
+
+    private static String longestLiteral(String pattern) {
+        String longest = "";
+        for (String literal : pattern.split("[*?]")) {
+            if (literal.length() > longest.length()) {
+                longest = literal;
+            }
+        }
+        return longest;
+    }
+
+    private boolean regionMatches(int offset, String literal) {
+        for (int j = 0; j < literal.length() - 1; ++j) {
+            if (chars[offset + j] != literal.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param position char数组中的位置
+     * @return 包含该位置的文件名编号（文件名按编号顺序连续存放）
+     */
+    private int nameAt(int position) {
+        int low = 0;
+        int high = nameCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (nameStart[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 在排序数组中二分前缀区间的边界
+     *
+     * @param prefix 前缀
+     * @param upper false求第一个不小于前缀的位置，true求第一个大于全部以前缀开头的名称的位置
+     */
+    private int bound(String prefix, boolean upper) {
+        int low = 0;
+        int high = sortedCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = comparePrefix(sorted[mid], prefix);
+            if (cmp < 0 || (upper && cmp == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 只比较文件名的前prefix.length()个字符
+     */
+    private int comparePrefix(int id, String prefix) {
+        int start = nameStart[id];
+        int length = Math.min(nameLength[id], prefix.length());
+        for (int j = 0; j < length; ++j) {
+            int diff = chars[start + j] - prefix.charAt(j);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return nameLength[id] < prefix.length() ? -1 : 0;
+    }
+
+    private int compareNames(int a, int b) {
+        int startA = nameStart[a];
+        int startB = nameStart[b];
+        int length = Math.min(nameLength[a], nameLength[b]);
+        for (int j = 0; j < length; ++j) {
+            int diff = chars[startA + j] - chars[startB + j];
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return nameLength[a] - nameLength[b];
+    }
+
+    /**
+     * 将未排序的尾部排序后与排序数组归并
+     */
+    private void mergeUnsorted() {
+        int[] tail = new int[nameCount - sortedCount];
+        for (int i = 0; i < tail.length; ++i) {
+            tail[i] = sortedCount + i;
+        }
+        int[] buffer = new int[tail.length];
+        for (int width = 1; width < tail.length; width *= 2) {
+            for (int from = 0; from < tail.length - width; from += 2 * width) {
+                merge(tail, from, from + width, Math.min(from + 2 * width, tail.length), buffer);
+            }
+        }
+        int[] merged = new int[nameCount];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < sortedCount && j < tail.length) {
+            merged[k++] = compareNames(sorted[i], tail[j]) <= 0 ? sorted[i++] : tail[j++];
+        }
+        while (i < sortedCount) {
+            merged[k++] = sorted[i++];
+        }
+        while (j < tail.length) {
+            merged[k++] = tail[j++];
+        }
+        sorted = merged;
+        sortedCount = nameCount;
+    }
+
+    private void merge(int[] a, int from, int mid, int to, int[] buffer) {
+        System.arraycopy(a, from, buffer, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; ++k) {
+            if (j >= to || (i < mid && compareNames(buffer[i], buffer[j]) <= 0)) {
+                a[k] = buffer[i++];
+            } else {
+                a[k] = buffer[j++];
+            }
+        }
+    }
+
+    /**
+     * 自node起逐级向上匹配路径模式的各级
+     *
+     * @return 匹配到的最上一级节点，不匹配时返回NONE
+     */
+    private int matchAncestors(int node, List<String> parts) {
+        for (int k = parts.size() - 2; k >= 0; --k) {
+            node = parent[node];
+            if (node == ROOT_NODE || !matches(parts.get(k), name[node])) {
+                return NONE;
+            }
+        }
+        return node;
+    }
+
+    private boolean isBelow(int node, int ancestor) {
+        for (int p = parent[node]; p != NONE; p = parent[p]) {
+            if (p == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String pathOf(int node, int scopeNode) {
+        char separator = ROOT.getFileSystem().getSeparator().charAt(0);
+        int length = directories.get(node) ? 1 : 0;
+        for (int n = node; n != scopeNode; n = parent[n]) {
+            length += nameLength[name[n]] + 1;
+        }
+        char[] path = new char[length - 1];
+        int end = path.length;
+        if (directories.get(node)) {
+            path[--end] = separator;
+        }
+        for (int n = node; n != scopeNode; n = parent[n]) {
+            if (n != node) {
+                path[--end] = separator;
+            }
+            end -= nameLength[name[n]];
+            System.arraycopy(chars, nameStart[name[n]], path, end, nameLength[name[n]]);
+        }
+        return new String(path);
+    }
+
+    /**
+     * 通配匹配，*匹配任意多个字符，?匹配一个字符；失配时回退到最近的*，不分配对象
+     */
+    private boolean matches(String pattern, int id) {
+        int start = nameStart[id];
+        int length = nameLength[id];
+        int p = 0;
+        int s = 0;
+        int star = NONE;
+        int mark = 0;
+        while (s < length) {
+            char c = p < pattern.length() ? pattern.charAt(p) : 0;
+            if (p < pattern.length() && (c == '?' || c == chars[start + s]) && c != '*') {
+                ++p;
+                ++s;
+            } else if (c == '*' && p < pattern.length()) {
+                star = p++;
+                mark = s;
+            } else if (star != NONE) {
+                p = star + 1;
+                s = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            ++p;
+        }
+        return p == pattern.length();
+    }
+}
@@ -0,0 +1,100 @@
+package edu.lepturus.ftp.server;
+
+import edu.lepturus.ftp.utils.Reply;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * 控制连接的输出。
+ * 经write写出的都是回复正文，行首为Reply中的控制字符时自动转义；
+ * 回复结尾与通知只能经end与notice写出，正文无法伪造。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class ReplyWriter extends BufferedWriter {
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private boolean lineStart = true;
+
+    public ReplyWriter(Writer out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        synchronized (lock) {
+            if (lineStart && Reply.needsEscape((char) c)) {
+                super.write(Reply.ESCAPE);
+            }
+            super.write(c);
+            lineStart = c == '\n' || c == '\r';
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        synchronized (lock) {
+            int start = off;
+            for (int i = off, end = off + len; i < end; ++i) {
+                if (lineStart && Reply.needsEscape(cbuf[i])) {
+                    super.write(cbuf, start, i - start);
+                    super.write(Reply.ESCAPE);
+                    start = i;
+                }
+                lineStart = cbuf[i] == '\n' || cbuf[i] == '\r';
+            }
+            super.write(cbuf, start, off + len - start);
+        }
+    }
+
+    @Override
+    public void write(String s, int off, int len) throws IOException {
+        synchronized (lock) {
+            int start = off;
+            for (int i = off, end = off + len; i < end; ++i) {
+                char c = s.charAt(i);
+                if (lineStart && Reply.needsEscape(c)) {
+                    super.write(s, start, i - start);
+                    super.write(Reply.ESCAPE);
+                    start = i;
+                }
+                lineStart = c == '\n' || c == '\r';
+            }
+            super.write(s, start, off + len - start);
+        }
+    }
+
+    /**
+     * 写出回复的结尾行
+     *
+     * @param pwd 当前工作目录
+     * @throws IOException IOException
+     */
+    public void end(String pwd) throws IOException {
+        control(Reply.END + pwd);
+    }
+
+    /**
+     * 写出一行服务器通知
+     *
+     * @param notice 通知，以Reply.NOTICE开头
+     * @throws IOException IOException
+     */
+    public void notice(String notice) throws IOException {
+        control(notice);
+    }
+
+    private void control(String line) throws IOException {
+        synchronized (lock) {
+            if (!lineStart) {
+                super.write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length());
+            }
+            super.write(line, 0, line.length());
+            super.write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length());
+            lineStart = true;
+        }
+    }
+}
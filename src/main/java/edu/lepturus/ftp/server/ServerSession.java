@@ -1,13 +1,12 @@
 package edu.lepturus.ftp.server;
 
 import edu.lepturus.ftp.utils.SessionInfo;
+import edu.lepturus.ftp.utils.SessionTrace;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.file.*;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * 服务器会话类
@@ -18,62 +17,189 @@ import java.util.List;
 public class ServerSession implements Runnable {
     private final Socket tcpSocket;
     private final BufferedReader tcpIn;
-    private final BufferedWriter tcpOut;
+    private final ReplyWriter tcpOut;
     private static final int TIMEOUT = 5 * 60 * 1000;
     private final SessionInfo sessionInfo;
     private final Navigator navigator;
+    private final CommandLexer lexer = new CommandLexer();
+    private final AdmissionController admission;
+    private final ChunkCache chunkCache;
+    private final TransferCoordinator coordinator;
+    private final PathIndex pathIndex;
+    private final Path TRACE_DIR;
+
+    private volatile CommandHandler commandHandler;
+    private NoticeWriter notices;
+    private ListingWatch listingWatch;
+    private volatile long lastActive = System.currentTimeMillis();
+    private volatile boolean handling = false;
 
     private final Object lock = new Object();
     private static final long DELTA = 1;
 
     public ServerSession(Socket tcpSocket,
                          BufferedReader tcpIn,
-                         BufferedWriter tcpOut,
+                         ReplyWriter tcpOut,
                          SessionInfo sessionInfo,
-                         Path ROOT) throws SocketException {
+                         Path ROOT,
+                         AdmissionController admission,
+                         ChunkCache chunkCache,
+                         TransferCoordinator coordinator,
+                         PathIndex pathIndex,
+                         Path TRACE_DIR) throws SocketException {
         this.tcpSocket = tcpSocket;
         this.tcpIn = tcpIn;
         this.tcpOut = tcpOut;
         this.tcpSocket.setSoTimeout(TIMEOUT);
         this.sessionInfo = sessionInfo;
         this.navigator = new Navigator(ROOT);
+        this.admission = admission;
+        this.chunkCache = chunkCache;
+        this.coordinator = coordinator;
+        this.pathIndex = pathIndex;
+        this.TRACE_DIR = TRACE_DIR;
+    }
+
+    public SessionInfo getSessionInfo() {
+        return sessionInfo;
+    }
+
+    /**
+     * @return 距上次活动的毫秒数，处理命令期间或有后台传输时为0；只有跟随的会话照常计算空闲
+     */
+    public long idleFor() {
+        CommandHandler handler = commandHandler;
+        if (handling || (handler != null && handler.hasTransfers())) {
+            return 0;
+        }
+        return System.currentTimeMillis() - lastActive;
+    }
+
+    /**
+     * 强制关闭会话，阻塞中的readLine将抛出异常，run随之结束
+     */
+    public void close() {
+        try {
+            tcpSocket.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * 打开会话轨迹，未指定轨迹目录或无法创建文件时不记录
+     *
+     * @return 会话轨迹
+     */
+    private SessionTrace openTrace() {
+        if (TRACE_DIR == null) {
+            return SessionTrace.disabled();
+        }
+        try {
+            return SessionTrace.create(TRACE_DIR, sessionInfo);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return SessionTrace.disabled();
+        }
+    }
+
+    /**
+     * 读取并解析下一条命令；超长的命令已被读掉，回复错误后继续读取
+     *
+     * @return 是否读到命令，连接关闭时为false
+     * @throws IOException IOException
+     */
+    private boolean readCommand() throws IOException {
+        while (true) {
+            try {
+                return lexer.read(tcpIn);
+            } catch (CommandLexer.LineTooLongException e) {
+                tcpOut.write(e.getMessage());
+                tcpOut.newLine();
+                tcpOut.end(FileSystems.getDefault().getSeparator() + navigator.getPwd());
+                tcpOut.flush();
+            }
+        }
     }
 
     @Override
     public void run() {
+        admission.register(this);
+        SessionTrace trace = openTrace();
         try {
-            CommandHandler commandHandler = new CommandHandler(
+            notices = new NoticeWriter(tcpOut, "notices-" + sessionInfo.getUuid());
+            if (sessionInfo.isListingInvalidation()) {
+                listingWatch = new ListingWatch(notices, pathIndex);
+            }
+            commandHandler = new CommandHandler(
                     navigator,
                     sessionInfo,
+                    tcpIn,
                     tcpOut,
                     sessionInfo.getClientAddress(),
                     sessionInfo.getClientUdpPort(),
-                    sessionInfo.getFILE_UDP_PACKET_SIZE());
-            tcpOut.write(FileSystems.getDefault().getSeparator() + navigator.getPwd());
+                    sessionInfo.getFILE_UDP_PACKET_SIZE(),
+                    admission,
+                    chunkCache,
+                    coordinator,
+                    pathIndex,
+                    trace,
+                    notices,
+                    listingWatch);
+            String msg = "Session establishing: address "
+                    + sessionInfo.getClientAddress()
+                    + ", tcp port "
+                    + sessionInfo.getClientTcpPort()
+                    + ", udp port "
+                    + sessionInfo.getClientUdpPort()
+                    + ", uuid "
+                    + sessionInfo.getUuid()
+                    + ", packet size "
+                    + sessionInfo.getFILE_UDP_PACKET_SIZE();
+            System.out.println(msg);
+            tcpOut.write(msg);
+            tcpOut.newLine();
+            tcpOut.write(SessionInfo.sessionInfoToJsonString(sessionInfo));
             tcpOut.newLine();
+            tcpOut.end(FileSystems.getDefault().getSeparator() + navigator.getPwd());
             tcpOut.flush();
-            String line;
-            while ((line = tcpIn.readLine()) != null) {
+            while (readCommand()) {
+                handling = true;
+                notices.begin();
+                long start = trace.now();
+                String line = lexer.source();
                 System.out.println("Session " + sessionInfo.getUuid() + ", TCP IN: " + line);
-                if (line.trim().equals("bye")) {
+                if (line.equals("bye")) {
                     tcpOut.write("Bye for now!");
                     tcpOut.newLine();
                     tcpOut.flush();
+                    trace.command(start, trace.now() - start, line);
                     break;
                 } else {
-                    List<String> args = parse(line.trim(), tcpIn);
+                    boolean violated = false;
                     try {
-                        commandHandler.handle(args);
+                        commandHandler.handle(lexer);
                     } catch (CommandHandler.NoSuchCommandException | CommandHandler.ArgumentCountException e) {
                         tcpOut.write(e.getMessage());
                         tcpOut.newLine();
                         tcpOut.flush();
-                    } finally {
-                        tcpOut.write(FileSystems.getDefault().getSeparator() + navigator.getPwd());
+                    } catch (CommandHandler.ProtocolViolationException e) {
+                        System.out.println("Session " + sessionInfo.getUuid() + ", protocol violation: " + e.getMessage());
+                        tcpOut.write(e.getMessage());
                         tcpOut.newLine();
+                        violated = true;
+                    } finally {
+                        tcpOut.end(FileSystems.getDefault().getSeparator() + navigator.getPwd());
                         tcpOut.flush();
                     }
+                    trace.command(start, trace.now() - start, line);
+                    if (violated) {
+                        break;
+                    }
                 }
+                notices.end();
+                lastActive = System.currentTimeMillis();
+                handling = false;
                 synchronized (lock) {
                     try {
                         lock.wait(DELTA);
@@ -82,9 +208,20 @@ public class ServerSession implements Runnable {
                     }
                 }
             }
-        } catch (IOException e) {
+        } catch (Exception e) {
             System.err.println(e.getMessage());
         } finally {
+            if (commandHandler != null) {
+                commandHandler.close();
+            }
+            trace.close();
+            if (listingWatch != null) {
+                listingWatch.close();
+            }
+            if (notices != null) {
+                notices.close();
+            }
+            admission.deregister(this);
             try {
                 System.out.println("Closing Session: uuid " + sessionInfo.getUuid());
                 tcpIn.close();
@@ -95,91 +232,4 @@ public class ServerSession implements Runnable {
             }
         }
     }
-
-    /**
-     * 解析命令字符串为字元组。
-     * 允许折行，遇行尾反斜杠会尝试读取新行，若新行非空则继续解析；
-     * 空格分隔参数，但可以使用引号将包含空格的参数包围起来；
-     * 在单引号内反斜杠转义单引号，双引号内反斜杠转义双引号，
-     * 引号内双反斜杠表示反斜杠。
-     *
-     * @param line 命令字符串
-     * @param in BufferedReader
-     * @return 解析结果
-     * @throws IOException 解析过程中遇到的IO异常
-     */
-    private List<String> parse(String line, BufferedReader in) throws IOException {
-        List<String> list = new ArrayList<>();
-        boolean inSingleQuote = false;
-        boolean inDoubleQuote = false;
-        StringBuilder argBuilder = new StringBuilder();
-        StringBuilder lineBuilder = new StringBuilder(line);
-        for (int i = 0; i < lineBuilder.length(); ++i) {
-            switch (lineBuilder.charAt(i)) {
-                case '\\': {
-                    if (i == lineBuilder.length() - 1) {
-                        String nextLine = in.readLine();
-                        if (nextLine != null && !nextLine.trim().isEmpty()) {
-                            lineBuilder.append(nextLine.trim());
-                        } else {
-                            argBuilder.append('\\');
-                        }
-                    } else if ((inSingleQuote || inDoubleQuote)
-                            && i < lineBuilder.length() - 1
-                            && lineBuilder.charAt(i + 1) == '\\') {
-                        argBuilder.append('\\');
-                        ++i;
-                    } else if (inSingleQuote
-                            && i < lineBuilder.length() - 1
-                            && lineBuilder.charAt(i + 1) == '\'') {
-                        argBuilder.append('\'');
-                        ++i;
-                    } else if (inDoubleQuote
-                            && i < lineBuilder.length() - 1
-                            && lineBuilder.charAt(i + 1) == '\"') {
-                        argBuilder.append('\"');
-                        ++i;
-                    } else {
-                        argBuilder.append('\\');
-                    }
-                    break;
-                }
-                case '\'': {
-                    if (!inDoubleQuote) {
-                        inSingleQuote = !inSingleQuote;
-                    } else {
-                        argBuilder.append('\'');
-                    }
-                    break;
-                }
-                case '\"': {
-                    if (!inSingleQuote) {
-                        inDoubleQuote = !inDoubleQuote;
-                    } else {
-                        argBuilder.append('\"');
-                    }
-                    break;
-                }
-                case ' ': {
-                    if (inSingleQuote || inDoubleQuote) {
-                        argBuilder.append(' ');
-                    } else {
-                        if (!argBuilder.toString().trim().isEmpty()) {
-                            list.add(argBuilder.toString());
-                        }
-                        argBuilder = new StringBuilder();
-                    }
-                    break;
-                }
-                default: {
-                    argBuilder.append(lineBuilder.charAt(i));
-                    break;
-                }
-            }
-        }
-        if (!argBuilder.toString().trim().isEmpty()) {
-            list.add(argBuilder.toString());
-        }
-        return list;
-    }
 }
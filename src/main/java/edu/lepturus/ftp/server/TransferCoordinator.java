@@ -0,0 +1,323 @@
+package edu.lepturus.ftp.server;
+
+import edu.lepturus.ftp.utils.DataPacket;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+
+/**
+ * 并发下载合并。
+ * 同一文件（同一文件标识、同一报文长度）的并发get加入同一个共享传输：
+ * 只有一条读取流水线按报文顺序循环读取，每个报文扇出给所有订阅者；
+ * 中途加入的订阅者从当前报文开始接收，绕回文件开头补齐之前错过的部分后结束；
+ * 取消订阅返回的future即退订，下一个报文起不再发给该订阅者。
+ * 发送时经块缓存读取并预读后面几块，读盘延迟与报文间隔重叠；
+ * 一次性的临时文件（如增量）不经缓存，直接从文件读取，不挤占缓存。
+ * 开启前向纠错时每组数据报文读完后发送该组的校验报文，组按绝对报文号划分，
+ * 中途加入者第一轮已收到所在组的校验报文；结束在组末的订阅者收到该组校验报文后才结束。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class TransferCoordinator {
+    private final ChunkCache chunkCache;
+    private final ConcurrentHashMap<TransferKey, SharedTransfer> transfers = new ConcurrentHashMap<>();
+    private final ExecutorService senders = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "shared-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Object lock = new Object();
+    private static final long DELTA = 200;
+
+    public TransferCoordinator(ChunkCache chunkCache) {
+        this.chunkCache = chunkCache;
+    }
+
+    /**
+     * 共享传输的键：文件标识、报文长度、校验组大小与是否经缓存读取
+     */
+    private static final class TransferKey {
+        private final FileIdentity identity;
+        private final int packetSize;
+        private final int fecGroupSize;
+        private final boolean cached;
+
+        TransferKey(FileIdentity identity, int packetSize, int fecGroupSize, boolean cached) {
+            this.identity = identity;
+            this.packetSize = packetSize;
+            this.fecGroupSize = fecGroupSize;
+            this.cached = cached;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            TransferKey that = (TransferKey) o;
+            return packetSize == that.packetSize && fecGroupSize == that.fecGroupSize && cached == that.cached
+                    && Objects.equals(identity, that.identity);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * identity.hashCode() + packetSize) + fecGroupSize) + Boolean.hashCode(cached);
+        }
+    }
+
+    /**
+     * 订阅者：一个等待接收完整文件的客户端
+     */
+    private static final class Subscriber {
+        private final InetSocketAddress address;
+        private long sentPackets = 0;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Subscriber(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * 订阅一个文件的共享传输（经块缓存读取），必要时启动新的传输
+     *
+     * @param identity 文件标识
+     * @param packetSize 报文长度
+     * @param fecGroupSize 每组数据报文数，0表示不发送校验报文
+     * @param address 客户端地址
+     * @param port 客户端UDP端口
+     * @return 该订阅者收齐所有报文后完成，取消即退订
+     */
+    public CompletableFuture<Void> subscribe(FileIdentity identity, int packetSize, int fecGroupSize,
+                                             InetAddress address, int port) {
+        return subscribe(identity, packetSize, fecGroupSize, true, address, port);
+    }
+
+    /**
+     * 订阅一个文件的共享传输，必要时启动新的传输
+     *
+     * @param identity 文件标识
+     * @param packetSize 报文长度
+     * @param fecGroupSize 每组数据报文数，0表示不发送校验报文
+     * @param cached 是否经块缓存读取，不同的读取方式不合并
+     * @param address 客户端地址
+     * @param port 客户端UDP端口
+     * @return 该订阅者收齐所有报文后完成，取消即退订
+     */
+    public CompletableFuture<Void> subscribe(FileIdentity identity, int packetSize, int fecGroupSize, boolean cached,
+                                             InetAddress address, int port) {
+        InetSocketAddress target = new InetSocketAddress(address, port);
+        if (identity.getSize() == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        TransferKey key = new TransferKey(identity, packetSize, fecGroupSize, cached);
+        while (true) {
+            SharedTransfer transfer = transfers.computeIfAbsent(key, k -> {
+                SharedTransfer created = new SharedTransfer(k);
+                senders.execute(created);
+                return created;
+            });
+            Subscriber subscriber = transfer.join(target);
+            if (subscriber != null) {
+                return subscriber.done;
+            }
+            transfers.remove(key, transfer);
+        }
+    }
+
+    /**
+     * 一个正在进行的共享传输
+     */
+    private final class SharedTransfer implements Runnable {
+        private final TransferKey key;
+        private final long totalPackets;
+        private final List<Subscriber> subscribers = new ArrayList<>();
+        private long currentPacket = 0;
+        private boolean closed = false;
+
+        SharedTransfer(TransferKey key) {
+            this.key = key;
+            this.totalPackets = DataPacket.packetCount(key.identity.getSize(), key.packetSize);
+        }
+
+        /**
+         * @param address 客户端地址
+         * @return 订阅者，传输已结束时返回null
+         */
+        synchronized Subscriber join(InetSocketAddress address) {
+            if (closed) {
+                return null;
+            }
+            Subscriber subscriber = new Subscriber(address);
+            subscribers.add(subscriber);
+            System.out.println("Shared transfer " + key.identity.getPath().getFileName()
+                    + ": subscriber " + address + " joined at packet " + currentPacket
+                    + ", " + subscribers.size() + " subscriber(s)");
+            return subscriber;
+        }
+
+        /**
+         * @return 当前订阅者快照，没有订阅者时关闭传输并返回null
+         */
+        private synchronized List<Subscriber> snapshot() {
+            if (subscribers.isEmpty()) {
+                closed = true;
+                return null;
+            }
+            return new ArrayList<>(subscribers);
+        }
+
+        private synchronized void finish(Subscriber subscriber) {
+            subscribers.remove(subscriber);
+        }
+
+        private synchronized void advance() {
+            currentPacket = (currentPacket + 1) % totalPackets;
+        }
+
+        /**
+         * 报文之间的间隔
+         *
+         * @return 被中断时返回false
+         */
+        private boolean pace() {
+            synchronized (lock) {
+                try {
+                    lock.wait(DELTA);
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int payloadSize = DataPacket.payloadSize(key.packetSize);
+            long chunkInterval = TimeUnit.MILLISECONDS.toNanos(DELTA) * ChunkCache.CHUNK_SIZE / payloadSize;
+            int group = key.fecGroupSize;
+            byte[] buffer = new byte[key.packetSize];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            byte[] parity = group > 0 ? new byte[key.packetSize] : null;
+            DatagramPacket parityPacket = group > 0 ? new DatagramPacket(parity, parity.length) : null;
+            int parityLength = 0;
+            int lengths = 0;
+            ChunkCache.Cursor cursor = new ChunkCache.Cursor();
+            ByteBuffer payload = ByteBuffer.wrap(buffer, DataPacket.HEADER_SIZE, payloadSize).slice();
+            try (DatagramSocket udpOut = new DatagramSocket();
+                 FileChannel channel = FileChannel.open(key.identity.getPath(), StandardOpenOption.READ)) {
+                List<Subscriber> active;
+                while ((active = snapshot()) != null) {
+                    long offset = currentPacket * payloadSize;
+                    int bytesRead;
+                    if (key.cached) {
+                        chunkCache.readAhead(key.identity, channel, offset, key.identity.getSize(),
+                                chunkCache.readAheadDepth(chunkInterval));
+                        bytesRead = chunkCache.read(key.identity, channel, offset,
+                                buffer, DataPacket.HEADER_SIZE, payloadSize, cursor);
+                    } else {
+                        bytesRead = readDirect(channel, offset, payload);
+                    }
+                    if (bytesRead <= 0) {
+                        throw new IOException("File shrank during transfer: " + key.identity.getPath());
+                    }
+                    DataPacket.writeOffset(buffer, offset);
+                    packet.setLength(DataPacket.HEADER_SIZE + bytesRead);
+                    boolean groupEnd = false;
+                    if (group > 0) {
+                        if (currentPacket % group == 0) {
+                            Arrays.fill(parity, (byte) 0);
+                            parityLength = 0;
+                            lengths = 0;
+                        }
+                        DataPacket.xor(parity, DataPacket.HEADER_SIZE, buffer, DataPacket.HEADER_SIZE, bytesRead);
+                        parityLength = Math.max(parityLength, bytesRead);
+                        lengths ^= bytesRead;
+                        groupEnd = (currentPacket + 1) % group == 0 || currentPacket + 1 == totalPackets;
+                    }
+                    for (Subscriber subscriber : active) {
+                        if (subscriber.done.isCancelled()) {
+                            finish(subscriber);
+                            continue;
+                        }
+                        packet.setSocketAddress(subscriber.address);
+                        udpOut.send(packet);
+                        if (++subscriber.sentPackets == totalPackets && !groupEnd) {
+                            finish(subscriber);
+                            subscriber.done.complete(null);
+                        }
+                    }
+                    if (groupEnd) {
+                        if (!pace()) {
+                            break;
+                        }
+                        DataPacket.writeParityHeader(parity, currentPacket / group, lengths);
+                        parityPacket.setLength(DataPacket.HEADER_SIZE + parityLength);
+                        for (Subscriber subscriber : active) {
+                            if (subscriber.done.isDone()) {
+                                continue;
+                            }
+                            parityPacket.setSocketAddress(subscriber.address);
+                            udpOut.send(parityPacket);
+                            if (subscriber.sentPackets == totalPackets) {
+                                finish(subscriber);
+                                subscriber.done.complete(null);
+                            }
+                        }
+                    }
+                    advance();
+                    if (!pace()) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                failAll(e);
+            } finally {
+                transfers.remove(key, this);
+                failAll(new IOException("Shared transfer stopped"));
+            }
+        }
+
+        /**
+         * 不经缓存，从offset起读满一个报文的数据或读到文件末尾
+         *
+         * @param payload 报文缓冲区中数据部分的视图
+         * @return 读到的字节数，文件末尾返回-1
+         */
+        private int readDirect(FileChannel channel, long offset, ByteBuffer payload) throws IOException {
+            payload.clear();
+            while (payload.hasRemaining()) {
+                if (channel.read(payload, offset + payload.position()) < 0) {
+                    break;
+                }
+            }
+            return payload.position() == 0 ? -1 : payload.position();
+        }
+
+        private synchronized void failAll(IOException e) {
+            closed = true;
+            for (Subscriber subscriber : subscribers) {
+                subscriber.done.completeExceptionally(e);
+            }
+            subscribers.clear();
+        }
+    }
+
+    public void shutdown() {
+        senders.shutdownNow();
+    }
+}
@@ -0,0 +1,111 @@
+package edu.lepturus.ftp.server;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 一次UDP传输的目标与控制。
+ * 报文长度与校验组大小在创建时取定，之后会话再改设置不影响进行中的传输；
+ * 后台传输在自己的线程中运行，客户端为每个后台传输单独开一个UDP端口，
+ * 取消时从共享传输中退订，等待传输许可的也随之放弃。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class TransferJob {
+    /**
+     * 前台传输的编号
+     */
+    public static final int FOREGROUND = 0;
+
+    private final int id;
+    private final String fileName;
+    private final int port;
+    private final int packetSize;
+    private final int fecGroupSize;
+    private volatile boolean cancelled = false;
+    private volatile Thread thread;
+    private volatile CompletableFuture<Void> transfer;
+
+    /**
+     * @param id 编号，前台传输为FOREGROUND
+     * @param fileName 文件名
+     * @param port 客户端接收该传输的UDP端口
+     * @param packetSize 报文长度
+     * @param fecGroupSize 每组数据报文数，0表示不发送校验报文
+     */
+    public TransferJob(int id, String fileName, int port, int packetSize, int fecGroupSize) {
+        this.id = id;
+        this.fileName = fileName;
+        this.port = port;
+        this.packetSize = packetSize;
+        this.fecGroupSize = fecGroupSize;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    public int getFecGroupSize() {
+        return fecGroupSize;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 在新线程中运行后台传输
+     *
+     * @param body 传输主体
+     */
+    void start(Runnable body) {
+        thread = new Thread(body, "transfer-job-" + id);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 等待共享传输把所有报文发给本传输的目标
+     *
+     * @param transfer 订阅共享传输得到的future
+     * @throws ExecutionException 共享传输失败
+     * @throws InterruptedException 被中断
+     * @throws CancellationException 已取消
+     */
+    void await(CompletableFuture<Void> transfer) throws ExecutionException, InterruptedException {
+        this.transfer = transfer;
+        if (cancelled) {
+            transfer.cancel(false);
+        }
+        transfer.get();
+    }
+
+    /**
+     * 取消传输：退订共享传输，并打断等待许可或等待发送完毕的线程
+     */
+    public void cancel() {
+        cancelled = true;
+        CompletableFuture<Void> current = transfer;
+        if (current != null) {
+            current.cancel(false);
+        }
+        Thread worker = thread;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package edu.lepturus.ftp.utils;
+
+/**
+ * 数据报文头工具类。
+ * 每个UDP数据报文以8字节大端序的文件偏移开头，其后为文件内容，
+ * 接收方据此进行定位写入，不依赖报文到达顺序。
+ * 开启前向纠错时，每组连续的若干数据报文之后跟一个校验报文，内容为组内各报文载荷（不足补零）的异或，
+ * 报文头最高位置1，低32位为组号，中间为组内各载荷长度的异或；组内只丢一个报文时接收方可自行恢复。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public final class DataPacket {
+    public static final int HEADER_SIZE = 8;
+
+    /**
+     * IPv4下UDP报文可承载的最大长度
+     */
+    public static final int MAX_PACKET_SIZE = 65507;
+    /**
+     * 不会被任何合规链路分片的报文长度
+     */
+    public static final int MIN_PACKET_SIZE = 512;
+
+    /**
+     * 路径探测时依次尝试的报文长度，分别对应常见的免分片长度
+     */
+    public static final int[] PROBE_SIZES = {32768, 16384, 8972, 4096, 1472, 1232, 548};
+    public static final int PROBE_REPEAT = 16;
+    /**
+     * 选择报文长度时允许比最好的长度少到达的探测报文数，容忍与长度无关的偶发丢包
+     */
+    public static final int PROBE_TOLERANCE = 1;
+
+    /**
+     * IPv4与IPv6下IP头加UDP头的长度
+     */
+    private static final int IPV4_UDP_OVERHEAD = 28;
+    private static final int IPV6_UDP_OVERHEAD = 48;
+
+    private static final long PARITY_FLAG = Long.MIN_VALUE;
+    private static final long GROUP_MASK = 0xFFFFFFFFL;
+
+    /**
+     * 校验组大小的范围，组越大校验开销越小，但组内丢两个以上报文的可能越大
+     */
+    public static final int MIN_FEC_GROUP = 2;
+    public static final int MAX_FEC_GROUP = 64;
+    /**
+     * 选择组大小时允许的单组无法恢复概率
+     */
+    private static final double FEC_TARGET = 0.01;
+
+    private DataPacket() {
+    }
+
+    /**
+     * @param packetSize 报文总长度
+     * @return 每个报文可承载的文件字节数
+     */
+    public static int payloadSize(int packetSize) {
+        return packetSize - HEADER_SIZE;
+    }
+
+    /**
+     * @param fileSize 文件字节数
+     * @param packetSize 报文总长度
+     * @return 传输该文件所需的报文数
+     */
+    public static long packetCount(long fileSize, int packetSize) {
+        int payload = payloadSize(packetSize);
+        return (fileSize + payload - 1) / payload;
+    }
+
+    /**
+     * 协商报文长度：将客户端的提议限制在[MIN_PACKET_SIZE, MAX_PACKET_SIZE]内
+     *
+     * @param proposed 客户端提议的报文长度
+     * @return 协商结果
+     */
+    public static int negotiate(int proposed) {
+        return Math.max(MIN_PACKET_SIZE, Math.min(MAX_PACKET_SIZE, proposed));
+    }
+
+    /**
+     * @param mtu 网络接口的MTU
+     * @param ipv6 是否为IPv6
+     * @return 经该接口发送而不被分片的最大报文长度
+     */
+    public static int unfragmentedSize(int mtu, boolean ipv6) {
+        return mtu - (ipv6 ? IPV6_UDP_OVERHEAD : IPV4_UDP_OVERHEAD);
+    }
+
+    /**
+     * 按探测结果选择报文长度：不超过本机接口的免分片长度、且到达数与最好的长度相差不超过PROBE_TOLERANCE的最大长度。
+     * 与长度无关的丢包对各长度的影响相同，被分片的报文任何一片丢失都会整个丢失，到达数会明显偏低。
+     *
+     * @param sizes 探测的各报文长度
+     * @param counts 各长度到达的探测报文数
+     * @param limit 本机接口的免分片长度
+     * @return 选出的报文长度，没有探测报文到达时为-1
+     */
+    public static int chooseProbedSize(int[] sizes, int[] counts, int limit) {
+        int reference = 0;
+        for (int i = 0; i < sizes.length; ++i) {
+            if (sizes[i] <= limit) {
+                reference = Math.max(reference, counts[i]);
+            }
+        }
+        int best = -1;
+        for (int i = 0; i < sizes.length; ++i) {
+            if (reference > 0 && sizes[i] <= limit && sizes[i] > best
+                    && counts[i] >= reference - PROBE_TOLERANCE) {
+                best = sizes[i];
+            }
+        }
+        return best;
+    }
+
+    public static void writeOffset(byte[] buffer, long offset) {
+        for (int i = HEADER_SIZE - 1; i >= 0; --i) {
+            buffer[i] = (byte) offset;
+            offset >>>= 8;
+        }
+    }
+
+    public static long readOffset(byte[] buffer) {
+        long offset = 0;
+        for (int i = 0; i < HEADER_SIZE; ++i) {
+            offset = (offset << 8) | (buffer[i] & 0xFF);
+        }
+        return offset;
+    }
+
+    /**
+     * 写校验报文头
+     *
+     * @param buffer 报文
+     * @param group 组号
+     * @param lengths 组内各载荷长度的异或
+     */
+    public static void writeParityHeader(byte[] buffer, long group, int lengths) {
+        writeOffset(buffer, PARITY_FLAG | ((long) lengths << 32) | group);
+    }
+
+    public static boolean isParity(long header) {
+        return (header & PARITY_FLAG) != 0;
+    }
+
+    public static long parityGroup(long header) {
+        return header & GROUP_MASK;
+    }
+
+    public static int parityLengths(long header) {
+        return (int) ((header & ~PARITY_FLAG) >>> 32);
+    }
+
+    /**
+     * dst[dstPos, dstPos + length) ^= src[srcPos, srcPos + length)
+     */
+    public static void xor(byte[] dst, int dstPos, byte[] src, int srcPos, int length) {
+        for (int i = 0; i < length; ++i) {
+            dst[dstPos + i] ^= src[srcPos + i];
+        }
+    }
+
+    /**
+     * 按丢包率选择校验组大小：组内（含校验报文）丢两个以上报文的概率不超过FEC_TARGET的最大组，
+     * 丢包率过高时取MIN_FEC_GROUP
+     *
+     * @param lossRate 观测到的丢包率
+     * @return 每组数据报文数
+     */
+    public static int fecGroupSize(double lossRate) {
+        double p = Math.max(0, Math.min(1, lossRate));
+        for (int group = MAX_FEC_GROUP; group > MIN_FEC_GROUP; --group) {
+            int n = group + 1;
+            double unrecoverable = 1 - Math.pow(1 - p, n) - n * p * Math.pow(1 - p, n - 1);
+            if (unrecoverable <= FEC_TARGET) {
+                return group;
+            }
+        }
+        return MIN_FEC_GROUP;
+    }
+}
@@ -0,0 +1,349 @@
+package edu.lepturus.ftp.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync风格的增量编解码。
+ * 客户端对旧文件按块计算签名（滚动弱校验和+MD5强校验），
+ * 服务器在新文件上滑动窗口查找与签名相同的块，只输出块引用和无法匹配的字面数据，
+ * 客户端再用旧文件和增量数据还原出新文件。
+ * 签名在控制连接上紧随命令发送，每行至多SIGNATURES_PER_LINE个块签名的Base64，
+ * 行数由命令中的块数决定，单行长度有上限，服务器不必缓冲任意长的行。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public final class DeltaCodec {
+    /**
+     * 每块签名的字节数：4字节弱校验和+16字节MD5
+     */
+    public static final int SIGNATURE_SIZE = 20;
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int MAX_LITERAL = 64 * 1024;
+    /**
+     * 每行签名的块数（编码后约27 KiB）与一次增量允许的最多块数（签名共20 MiB）
+     */
+    public static final int SIGNATURES_PER_LINE = 1024;
+    public static final int MAX_BLOCKS = 1 << 20;
+
+    private static final byte OP_COPY = 'C';
+    private static final byte OP_LITERAL = 'L';
+    private static final byte OP_END = 'E';
+
+    private DeltaCodec() {
+    }
+
+    /**
+     * 按文件大小选择块长度：约为文件大小的平方根，与rsync一致
+     *
+     * @param fileSize 旧文件字节数
+     * @return 块长度
+     */
+    public static int blockSize(long fileSize) {
+        long size = (long) Math.sqrt((double) fileSize) & ~7L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * @param blockSize 对端给出的块长度
+     * @return 是否在允许范围内
+     */
+    public static boolean isValidBlockSize(int blockSize) {
+        return blockSize >= MIN_BLOCK_SIZE && blockSize <= MAX_BLOCK_SIZE;
+    }
+
+    /**
+     * 计算文件的块签名
+     *
+     * @param file 旧文件
+     * @param blockSize 块长度
+     * @return 依次排列的各块签名
+     * @throws IOException IOException
+     */
+    public static byte[] signatures(Path file, int blockSize) throws IOException {
+        MessageDigest md5 = md5();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] block = new byte[blockSize];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file.toFile()))) {
+            int length;
+            while ((length = readFully(in, block)) > 0) {
+                int weak = weakChecksum(block, 0, length);
+                out.write(weak >>> 24);
+                out.write(weak >>> 16);
+                out.write(weak >>> 8);
+                out.write(weak);
+                md5.update(block, 0, length);
+                out.write(md5.digest());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param blockCount 块数
+     * @return 发送这些块签名所需的行数
+     */
+    public static int signatureLineCount(long blockCount) {
+        return (int) ((blockCount + SIGNATURES_PER_LINE - 1) / SIGNATURES_PER_LINE);
+    }
+
+    /**
+     * 把签名分成若干行
+     *
+     * @param signatures 依次排列的各块签名
+     * @return 各行的Base64
+     */
+    public static List<String> signatureLines(byte[] signatures) {
+        List<String> lines = new ArrayList<>();
+        int lineBytes = SIGNATURES_PER_LINE * SIGNATURE_SIZE;
+        for (int start = 0; start < signatures.length; start += lineBytes) {
+            int end = Math.min(signatures.length, start + lineBytes);
+            lines.add(Base64.getEncoder().encodeToString(Arrays.copyOfRange(signatures, start, end)));
+        }
+        return lines;
+    }
+
+    /**
+     * 计算新文件相对于签名的增量
+     *
+     * @param channel 新文件
+     * @param blockSize 块长度
+     * @param signatures 旧文件的块签名
+     * @param out 增量输出
+     * @throws IOException IOException
+     */
+    public static void encode(FileChannel channel, int blockSize, byte[] signatures, OutputStream out)
+            throws IOException {
+        int blockCount = signatures.length / SIGNATURE_SIZE;
+        Map<Integer, int[]> weakIndex = new HashMap<>();
+        for (int i = 0; i < blockCount; ++i) {
+            int weak = ByteBuffer.wrap(signatures, i * SIGNATURE_SIZE, 4).getInt();
+            int[] blocks = weakIndex.get(weak);
+            if (blocks == null) {
+                blocks = new int[]{i};
+            } else {
+                blocks = Arrays.copyOf(blocks, blocks.length + 1);
+                blocks[blocks.length - 1] = i;
+            }
+            weakIndex.put(weak, blocks);
+        }
+        MessageDigest md5 = md5();
+        DataOutputStream delta = new DataOutputStream(new BufferedOutputStream(out));
+        Window window = new Window(channel, Math.max(blockSize * 16, 1024 * 1024));
+        ByteArrayOutputStream literal = new ByteArrayOutputStream();
+        int copyStart = -1, copyCount = 0;
+        boolean rolled = false;
+        int a = 0, b = 0;
+        while (window.ensure(blockSize)) {
+            if (!rolled) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; ++i) {
+                    int x = window.buf[window.pos + i] & 0xFF;
+                    a += x;
+                    b += (blockSize - i) * x;
+                }
+                rolled = true;
+            }
+            int match = -1;
+            int[] candidates = weakIndex.get((a & 0xFFFF) | (b << 16));
+            if (candidates != null) {
+                md5.update(window.buf, window.pos, blockSize);
+                byte[] strong = md5.digest();
+                for (int candidate : candidates) {
+                    if (equalsRange(strong, signatures, candidate * SIGNATURE_SIZE + 4)) {
+                        match = candidate;
+                        break;
+                    }
+                }
+            }
+            if (match >= 0) {
+                flushLiteral(delta, literal);
+                if (copyCount > 0 && copyStart + copyCount == match) {
+                    ++copyCount;
+                } else {
+                    flushCopy(delta, copyStart, copyCount);
+                    copyStart = match;
+                    copyCount = 1;
+                }
+                window.pos += blockSize;
+                rolled = false;
+            } else {
+                flushCopy(delta, copyStart, copyCount);
+                copyCount = 0;
+                int out0 = window.buf[window.pos] & 0xFF;
+                literal.write(out0);
+                if (literal.size() >= MAX_LITERAL) {
+                    flushLiteral(delta, literal);
+                }
+                ++window.pos;
+                if (window.ensure(blockSize)) {
+                    int in0 = window.buf[window.pos + blockSize - 1] & 0xFF;
+                    a += in0 - out0;
+                    b += a - blockSize * out0;
+                }
+            }
+        }
+        flushCopy(delta, copyStart, copyCount);
+        flushLiteral(delta, literal);
+        literal.write(window.buf, window.pos, window.end - window.pos);
+        flushLiteral(delta, literal);
+        delta.writeByte(OP_END);
+        delta.flush();
+    }
+
+    /**
+     * 用旧文件和增量还原新文件
+     *
+     * @param base 旧文件
+     * @param blockSize 块长度
+     * @param delta 增量输入
+     * @param out 新文件输出
+     * @throws IOException 增量数据损坏或IO异常
+     */
+    public static void apply(Path base, int blockSize, InputStream delta, OutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(delta));
+        try (FileChannel baseChannel = FileChannel.open(base, StandardOpenOption.READ)) {
+            byte[] buffer = new byte[Math.max(blockSize, MAX_LITERAL)];
+            while (true) {
+                byte op = in.readByte();
+                if (op == OP_END) {
+                    break;
+                } else if (op == OP_COPY) {
+                    long position = (long) in.readInt() * blockSize;
+                    long remaining = (long) in.readInt() * blockSize;
+                    while (remaining > 0) {
+                        ByteBuffer view = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        int n = baseChannel.read(view, position);
+                        if (n <= 0) {
+                            throw new IOException("Delta refers beyond the local copy");
+                        }
+                        out.write(buffer, 0, n);
+                        position += n;
+                        remaining -= n;
+                    }
+                } else if (op == OP_LITERAL) {
+                    int length = in.readInt();
+                    if (length < 0 || length > buffer.length) {
+                        throw new IOException("Corrupted delta");
+                    }
+                    in.readFully(buffer, 0, length);
+                    out.write(buffer, 0, length);
+                } else {
+                    throw new IOException("Corrupted delta");
+                }
+            }
+        }
+    }
+
+    /**
+     * rsync滚动校验和的初值：低16位为字节和，高16位为加权和
+     */
+    private static int weakChecksum(byte[] data, int off, int len) {
+        int a = 0, b = 0;
+        for (int i = 0; i < len; ++i) {
+            int x = data[off + i] & 0xFF;
+            a += x;
+            b += (len - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    private static void flushCopy(DataOutputStream delta, int start, int count) throws IOException {
+        if (count > 0) {
+            delta.writeByte(OP_COPY);
+            delta.writeInt(start);
+            delta.writeInt(count);
+        }
+    }
+
+    private static void flushLiteral(DataOutputStream delta, ByteArrayOutputStream literal) throws IOException {
+        if (literal.size() > 0) {
+            delta.writeByte(OP_LITERAL);
+            delta.writeInt(literal.size());
+            literal.writeTo(delta);
+            literal.reset();
+        }
+    }
+
+    private static boolean equalsRange(byte[] digest, byte[] signatures, int off) {
+        for (int i = 0; i < digest.length; ++i) {
+            if (digest[i] != signatures[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0, n;
+        while (total < buffer.length && (n = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 新文件上的滑动读取窗口，按需从文件补充数据
+     */
+    private static final class Window {
+        private final FileChannel channel;
+        private final byte[] buf;
+        private int pos = 0;
+        private int end = 0;
+        private long filePosition = 0;
+        private boolean eof = false;
+
+        Window(FileChannel channel, int capacity) {
+            this.channel = channel;
+            this.buf = new byte[capacity];
+        }
+
+        /**
+         * @param length 需要的字节数
+         * @return 从pos开始是否有length个可用字节
+         */
+        boolean ensure(int length) throws IOException {
+            if (end - pos >= length) {
+                return true;
+            }
+            if (eof) {
+                return false;
+            }
+            System.arraycopy(buf, pos, buf, 0, end - pos);
+            end -= pos;
+            pos = 0;
+            while (end < buf.length) {
+                int n = channel.read(ByteBuffer.wrap(buf, end, buf.length - end), filePosition);
+                if (n < 0) {
+                    eof = true;
+                    break;
+                }
+                end += n;
+                filePosition += n;
+            }
+            return end - pos >= length;
+        }
+    }
+}
@@ -14,11 +14,72 @@ public class FileInfo implements Serializable {
     private final String fileName;
     private final long packetCount;
     private final String crc32;
+    private final int payloadSize;
+    private final int fecGroupSize;
+    private String error;
+
+    /**
+     * 报文数为此值表示条件get命中，客户端的本地副本与服务器一致，不会发送数据报文
+     */
+    private static final long NOT_MODIFIED = -1;
+    /**
+     * 报文数为此值表示后台传输在开始发送前失败，原因见error
+     */
+    private static final long FAILED = -2;
+    /**
+     * 报文数为此值表示跟随传输开始：文件仍在增长，数据报文头为绝对偏移，没有总数；
+     * 跟随期间出错时再发送一个失败的文件信息
+     */
+    private static final long FOLLOWING = -3;
+    /**
+     * 跟随下载的文件标识覆盖的开头长度，见prefixCrc32
+     */
+    public static final int IDENTITY_PREFIX = 64 * 1024;
 
     public FileInfo(String fileName, long packetCount, String crc32) {
+        this(fileName, packetCount, crc32, 0, 0);
+    }
+
+    /**
+     * @param payloadSize 每个数据报文的载荷长度（最后一个可能更短）
+     * @param fecGroupSize 每组数据报文数，0表示不发送校验报文
+     */
+    public FileInfo(String fileName, long packetCount, String crc32, int payloadSize, int fecGroupSize) {
         this.fileName = fileName;
         this.packetCount = packetCount;
         this.crc32 = crc32;
+        this.payloadSize = payloadSize;
+        this.fecGroupSize = fecGroupSize;
+    }
+
+    public static FileInfo notModified(String fileName, String crc32) {
+        return new FileInfo(fileName, NOT_MODIFIED, crc32);
+    }
+
+    public static FileInfo failed(String fileName, String error) {
+        FileInfo fileInfo = new FileInfo(fileName, FAILED, null);
+        fileInfo.error = error;
+        return fileInfo;
+    }
+
+    public static FileInfo following(String fileName) {
+        return new FileInfo(fileName, FOLLOWING, null);
+    }
+
+    public boolean isFollowing() {
+        return packetCount == FOLLOWING;
+    }
+
+    public boolean isNotModified() {
+        return packetCount == NOT_MODIFIED;
+    }
+
+    public boolean isFailed() {
+        return packetCount == FAILED;
+    }
+
+    public String getError() {
+        return error;
     }
 
     public String getFileName() {
@@ -33,6 +94,21 @@ public class FileInfo implements Serializable {
         return crc32;
     }
 
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    public int getFecGroupSize() {
+        return fecGroupSize;
+    }
+
+    /**
+     * @return 数据报文之外的校验报文数
+     */
+    public long getParityCount() {
+        return fecGroupSize > 0 ? (packetCount + fecGroupSize - 1) / fecGroupSize : 0;
+    }
+
     /**
      * 序列化为byte[]
      *
@@ -49,6 +125,18 @@ public class FileInfo implements Serializable {
         }
     }
 
+    /**
+     * 文件信息报文是Java序列化数据，以流魔数0xACED开头；
+     * 数据报文头的偏移达不到这个值，校验报文头的首字节为0x80
+     *
+     * @param buffer 报文
+     * @param length 报文长度
+     * @return 是否为文件信息报文
+     */
+    public static boolean isFileInfo(byte[] buffer, int length) {
+        return length >= 2 && buffer[0] == (byte) 0xAC && buffer[1] == (byte) 0xED;
+    }
+
     /**
      * 反序列化从byte[]
      *
@@ -64,6 +152,32 @@ public class FileInfo implements Serializable {
         }
     }
 
+    /**
+     * 跟随下载的检查点所属文件的标识：文件开头至多IDENTITY_PREFIX字节的CRC32。
+     * 客户端本地文件在检查点之前与服务器一致，双方对同样长度的开头计算，结果相同即为同一文件
+     *
+     * @param file 文件路径
+     * @param offset 检查点
+     * @return 开头min(offset, IDENTITY_PREFIX)字节的CRC32十六进制字符串
+     * @throws IOException 文件短于该长度或读取失败
+     */
+    public static String prefixCrc32(Path file, long offset) throws IOException {
+        CRC32 crc32 = new CRC32();
+        try (FileInputStream fis = new FileInputStream(file.toFile())) {
+            byte[] buffer = new byte[1024];
+            long remaining = Math.min(offset, IDENTITY_PREFIX);
+            while (remaining > 0) {
+                int length = fis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (length == -1) {
+                    throw new EOFException("File shorter than checkpoint: " + file.getFileName());
+                }
+                crc32.update(buffer, 0, length);
+                remaining -= length;
+            }
+        }
+        return Long.toHexString(crc32.getValue());
+    }
+
     public static String crc32Calculator(Path file) throws IOException {
         CRC32 crc32 = new CRC32();
         try (FileInputStream fis = new FileInputStream(file.toFile())) {
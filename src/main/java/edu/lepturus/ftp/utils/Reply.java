@@ -0,0 +1,90 @@
+package edu.lepturus.ftp.utils;
+
+/**
+ * 控制连接上回复的分帧，以及客户端与服务器都要识别的协议字符串（每个只在这里定义一次）。
+ * 每条回复以一行“END+工作目录”结束；两条回复之间可能有以NOTICE开头的服务器通知行。
+ * 正文中以END、NOTICE或ESCAPE开头的行由服务器在行首加一个ESCAPE，
+ * 因此任何正文（错误信息、文件名等）都不会被当作回复结尾或通知。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public final class Reply {
+    public static final char END = '\u0004';
+    public static final char NOTICE = '!';
+    public static final char ESCAPE = '\u001B';
+
+    /**
+     * 通知：ls回复之前，其后为该目录的键，客户端可以缓存这条回复
+     */
+    public static final String WATCH = NOTICE + "watch ";
+    /**
+     * 通知：其后为目录的键，该目录的缓存列表已失效
+     */
+    public static final String INVALIDATE = NOTICE + "invalidate ";
+    /**
+     * 通知：后台传输结束（完成、失败或取消），其后为编号
+     */
+    public static final String JOB_FINISHED = NOTICE + "finished ";
+
+    /**
+     * 握手或命令被拒绝（过载），客户端稍后重试
+     */
+    public static final String BUSY = "Server busy";
+    /**
+     * 后台传输已开始：JOB编号JOB_STARTED文件名
+     */
+    public static final String JOB = "Job ";
+    public static final String JOB_STARTED = " started: ";
+    /**
+     * 区间发送完毕，其后为报文数
+     */
+    public static final String RANGE_SENT = "Range sent: ";
+    /**
+     * 跟随的检查点与服务器文件不符（文件已被替换），其后为文件名
+     */
+    public static final String CHECKPOINT_MISMATCH = "Checkpoint does not match: ";
+
+    private Reply() {
+    }
+
+    /**
+     * @param c 正文一行的首字符
+     * @return 该行是否需要转义
+     */
+    public static boolean needsEscape(char c) {
+        return c == END || c == NOTICE || c == ESCAPE;
+    }
+
+    /**
+     * @param line 控制连接上读到的一行
+     * @return 是否为回复的结尾行
+     */
+    public static boolean isEnd(String line) {
+        return !line.isEmpty() && line.charAt(0) == END;
+    }
+
+    /**
+     * @param line 控制连接上读到的一行
+     * @return 是否为服务器通知
+     */
+    public static boolean isNotice(String line) {
+        return !line.isEmpty() && line.charAt(0) == NOTICE;
+    }
+
+    /**
+     * @param endLine 回复的结尾行
+     * @return 其中的工作目录
+     */
+    public static String pwd(String endLine) {
+        return endLine.substring(1);
+    }
+
+    /**
+     * @param line 正文一行
+     * @return 去掉转义后的原文
+     */
+    public static String unescape(String line) {
+        return !line.isEmpty() && line.charAt(0) == ESCAPE ? line.substring(1) : line;
+    }
+}
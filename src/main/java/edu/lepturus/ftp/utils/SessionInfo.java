@@ -27,6 +27,16 @@ public class SessionInfo implements Serializable {
 
     private int FILE_UDP_PACKET_SIZE;
 
+    /**
+     * 客户端缓存目录列表，服务器在列出过的目录变化时推送失效通知；服务器不支持时协商结果为false
+     */
+    private boolean listingInvalidation;
+
+    /**
+     * Jsonb实例线程安全且创建代价高，全局复用
+     */
+    private static final Jsonb JSONB = JsonbBuilder.create();
+
     /**
      * 为了能成功调用Jsonb序列化为JSON
      */
@@ -81,6 +91,14 @@ public class SessionInfo implements Serializable {
         this.FILE_UDP_PACKET_SIZE = FILE_UDP_PACKET_SIZE;
     }
 
+    public boolean isListingInvalidation() {
+        return listingInvalidation;
+    }
+
+    public void setListingInvalidation(boolean listingInvalidation) {
+        this.listingInvalidation = listingInvalidation;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -102,9 +120,7 @@ public class SessionInfo implements Serializable {
      * @throws Exception Exception
      */
     public static String sessionInfoToJsonString(SessionInfo sessionInfo) throws Exception {
-        try (Jsonb jsonb = JsonbBuilder.create()) {
-            return jsonb.toJson(sessionInfo);
-        }
+        return JSONB.toJson(sessionInfo);
     }
 
     /**
@@ -115,8 +131,6 @@ public class SessionInfo implements Serializable {
      * @throws Exception Exception
      */
     public static SessionInfo jsonStringToSessionInfo(String jsonString) throws Exception {
-        try (Jsonb jsonb = JsonbBuilder.create()) {
-            return jsonb.fromJson(jsonString, SessionInfo.class);
-        }
+        return JSONB.fromJson(jsonString, SessionInfo.class);
     }
 }
@@ -0,0 +1,339 @@
+package edu.lepturus.ftp.utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 会话轨迹：服务器记录一个会话做过什么，供回放工具在测试服务器上重现。
+ * 二进制格式，整数均为无符号变长编码，时间为相对会话开始的微秒数：
+ * <pre>
+ * 头部   MAGIC(4) VERSION(1) 开始时间(毫秒, 8) uuid(16) 客户端地址 报文长度
+ * 命令   COMMAND 开始 耗时 命令行
+ * 传输   TRANSFER 开始 耗时 传输编号 文件名 字节数 报文数 结果(1)
+ * 结束   END
+ * </pre>
+ * 字符串为长度加UTF-8字节。会话异常中断时没有END，读取时以文件末尾为准。
+ * 写入失败只停止记录，不影响会话。
+ *
+ * @author T.lepturus
+ * @version 1.0
+ */
+public class SessionTrace implements Closeable {
+    private static final int MAGIC = 0x46545054;
+    private static final int VERSION = 1;
+
+    private static final int END = 0;
+    public static final int COMMAND = 1;
+    public static final int TRANSFER = 2;
+
+    /**
+     * 传输结果
+     */
+    public static final int SENT = 0;
+    public static final int NOT_MODIFIED = 1;
+    public static final int FAILED = 2;
+    public static final int CANCELLED = 3;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private DataOutputStream out;
+    private final long startNanos = System.nanoTime();
+
+    private SessionTrace(DataOutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * @return 不记录任何内容的轨迹
+     */
+    public static SessionTrace disabled() {
+        return new SessionTrace(null);
+    }
+
+    /**
+     * 在目录下创建会话的轨迹文件 trace-uuid.bin
+     *
+     * @param dir 轨迹目录
+     * @param sessionInfo 协商后的会话信息
+     * @return 轨迹
+     * @throws IOException 无法创建文件
+     */
+    public static SessionTrace create(Path dir, SessionInfo sessionInfo) throws IOException {
+        Files.createDirectories(dir);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(dir.resolve("trace-" + sessionInfo.getUuid() + ".bin")), BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.writeLong(sessionInfo.getUuid().getMostSignificantBits());
+        out.writeLong(sessionInfo.getUuid().getLeastSignificantBits());
+        writeString(out, sessionInfo.getClientAddress() == null ? "" : sessionInfo.getClientAddress().getHostAddress());
+        writeVarLong(out, sessionInfo.getFILE_UDP_PACKET_SIZE());
+        return new SessionTrace(out);
+    }
+
+    /**
+     * @return 相对会话开始的微秒数
+     */
+    public long now() {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    /**
+     * 记录一条命令
+     *
+     * @param start 开始时间
+     * @param duration 从收到命令到回复完毕的耗时
+     * @param line 命令行
+     */
+    public synchronized void command(long start, long duration, String line) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(COMMAND);
+            writeVarLong(out, start);
+            writeVarLong(out, duration);
+            writeString(out, line);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * 记录一次传输
+     *
+     * @param start 开始时间
+     * @param duration 耗时
+     * @param job 传输编号，前台传输为0
+     * @param fileName 文件名
+     * @param bytes 发送的字节数
+     * @param packets 发送的数据报文数
+     * @param outcome 结果
+     */
+    public synchronized void transfer(long start, long duration, int job, String fileName,
+                                      long bytes, long packets, int outcome) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(TRANSFER);
+            writeVarLong(out, start);
+            writeVarLong(out, duration);
+            writeVarLong(out, job);
+            writeString(out, fileName);
+            writeVarLong(out, bytes);
+            writeVarLong(out, packets);
+            out.writeByte(outcome);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        System.err.println("Session trace disabled: " + e.getMessage());
+        try {
+            out.close();
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+        }
+        out = null;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(END);
+            out.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * 轨迹中的一条记录，命令与传输共用，不适用的字段为默认值
+     */
+    public static final class Record {
+        private final int type;
+        private final long start;
+        private final long duration;
+        private final String line;
+        private final int job;
+        private final String fileName;
+        private final long bytes;
+        private final long packets;
+        private final int outcome;
+
+        Record(int type, long start, long duration, String line,
+               int job, String fileName, long bytes, long packets, int outcome) {
+            this.type = type;
+            this.start = start;
+            this.duration = duration;
+            this.line = line;
+            this.job = job;
+            this.fileName = fileName;
+            this.bytes = bytes;
+            this.packets = packets;
+            this.outcome = outcome;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public String getLine() {
+            return line;
+        }
+
+        public int getJob() {
+            return job;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getPackets() {
+            return packets;
+        }
+
+        public int getOutcome() {
+            return outcome;
+        }
+    }
+
+    /**
+     * 读出的一个会话轨迹
+     */
+    public static final class Recording {
+        private final long startMillis;
+        private final UUID uuid;
+        private final String clientAddress;
+        private final int packetSize;
+        private final List<Record> records;
+
+        Recording(long startMillis, UUID uuid, String clientAddress, int packetSize, List<Record> records) {
+            this.startMillis = startMillis;
+            this.uuid = uuid;
+            this.clientAddress = clientAddress;
+            this.packetSize = packetSize;
+            this.records = records;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        public String getClientAddress() {
+            return clientAddress;
+        }
+
+        public int getPacketSize() {
+            return packetSize;
+        }
+
+        public List<Record> getRecords() {
+            return records;
+        }
+    }
+
+    /**
+     * 读取轨迹文件，截断的末尾记录忽略
+     *
+     * @param file 轨迹文件
+     * @return 会话轨迹
+     * @throws IOException 不是轨迹文件或读取失败
+     */
+    public static Recording read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(file), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Not a session trace: " + file);
+            }
+            long startMillis = in.readLong();
+            UUID uuid = new UUID(in.readLong(), in.readLong());
+            String clientAddress = readString(in);
+            int packetSize = (int) readVarLong(in);
+            List<Record> records = new ArrayList<>();
+            try {
+                int type;
+                while ((type = in.readUnsignedByte()) != END) {
+                    long start = readVarLong(in);
+                    long duration = readVarLong(in);
+                    if (type == COMMAND) {
+                        records.add(new Record(type, start, duration, readString(in), 0, null, 0, 0, SENT));
+                    } else if (type == TRANSFER) {
+                        int job = (int) readVarLong(in);
+                        String fileName = readString(in);
+                        long bytes = readVarLong(in);
+                        long packets = readVarLong(in);
+                        records.add(new Record(type, start, duration, null, job, fileName, bytes, packets,
+                                in.readUnsignedByte()));
+                    } else {
+                        throw new IOException("Unknown record type " + type + " in " + file);
+                    }
+                }
+            } catch (EOFException e) {
+                // 会话中断，没有结束记录
+            }
+            return new Recording(startMillis, uuid, clientAddress, packetSize, records);
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}